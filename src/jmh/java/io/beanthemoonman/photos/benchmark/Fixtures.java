@@ -0,0 +1,117 @@
+package io.beanthemoonman.photos.benchmark;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.service.MetadataStore;
+import io.beanthemoonman.photos.service.PhotoCatalog;
+import io.beanthemoonman.photos.service.PhotoService;
+import io.beanthemoonman.photos.service.ThumbnailCache;
+import io.beanthemoonman.photos.service.ThumbnailService;
+import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic fixtures for the benchmarks, generated at setup so that no test data has to be checked in.
+ */
+final class Fixtures {
+
+  private Fixtures() {
+  }
+
+  /**
+   * Get the filename of the n-th photo created by {@link #createPhotoFiles(Path, int)}.
+   */
+  static String photoName(int n) {
+    return String.format("IMG_%06d.jpg", n);
+  }
+
+  /**
+   * Create photo files with small placeholder content and random modification times over the last ten years. Listing
+   * and lookups only look at the directory entries, so the content does not need to be an image.
+   */
+  static void createPhotoFiles(Path directory, int count) throws IOException {
+    Random random = new Random(42);
+    long now = System.currentTimeMillis();
+    byte[] content = "not an image".getBytes();
+    for (int i = 0; i < count; i++) {
+      Path photo = directory.resolve(photoName(i));
+      Files.write(photo, content);
+      long age = (long) (random.nextDouble() * 10 * 365 * 86_400_000L);
+      Files.setLastModifiedTime(photo, FileTime.fromMillis(now - age));
+    }
+  }
+
+  /**
+   * Create an image with a gradient and noise, which compresses about as well as a photo.
+   */
+  static BufferedImage image(int width, int height) {
+    Random random = new Random(42);
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int red = (x * 255 / width + random.nextInt(32)) & 0xFF;
+        int green = (y * 255 / height + random.nextInt(32)) & 0xFF;
+        int blue = ((x + y) * 127 / (width + height) + random.nextInt(32)) & 0xFF;
+        image.setRGB(x, y, red << 16 | green << 8 | blue);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Write a synthetic image in the given format.
+   */
+  static Path writeImage(Path directory, String format, int width, int height) throws IOException {
+    Path file = directory.resolve("image-" + width + "x" + height + "." + format);
+    if (!ImageIO.write(image(width, height), format, file.toFile())) {
+      throw new IOException("No image writer for format " + format);
+    }
+    return file;
+  }
+
+  /**
+   * Create the photo service with its real collaborators, serving the given directory and keeping its caches in a
+   * separate temporary directory.
+   */
+  static PhotoService photoService(Path directory, Path cacheDir) {
+    PhotosConfig config = new PhotosConfig();
+    config.setDirectory(directory.toString());
+    config.getThumbnail().setSizes(List.of(200, 400, 800, 1600, 2560));
+
+    config.getCache().setDirectory(cacheDir.toString());
+    config.getThumbnail().setMemoryCacheMb(0);
+
+    MeterRegistry registry = new SimpleMeterRegistry();
+    ThumbnailService thumbnailService = new ThumbnailService(config, registry);
+    ThumbnailCache thumbnailCache = new ThumbnailCache(thumbnailService, config, registry);
+    MetadataStore metadataStore = new MetadataStore(thumbnailCache);
+    ThumbnailHasher thumbnailHasher = new ThumbnailHasher(config, thumbnailCache, metadataStore, registry);
+    return new PhotoService(config,
+        thumbnailService,
+        thumbnailHasher,
+        thumbnailCache,
+        new PhotoCatalog(config, metadataStore));
+  }
+
+  static void delete(Path directory) throws IOException {
+    if (directory == null || !Files.exists(directory)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package io.beanthemoonman.photos.benchmark;
+
+import io.beanthemoonman.photos.utility.Utility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content hashing of a photo: reading the whole file into memory against streaming it through a reusable buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashingBenchmark {
+
+  @Param({ "1048576", "16777216", "67108864" })
+  public int bytes;
+
+  private Path directory;
+
+  private Path file;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    byte[] content = new byte[bytes];
+    new Random(42).nextBytes(content);
+    directory = Files.createTempDirectory("photos-benchmark");
+    file = Files.write(directory.resolve("photo.jpg"), content);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Fixtures.delete(directory);
+  }
+
+  @Benchmark
+  public String bytesToSha256() throws IOException, NoSuchAlgorithmException {
+    return Utility.bytesToSha256(Files.readAllBytes(file));
+  }
+
+  @Benchmark
+  public String fileToSha256() throws IOException, NoSuchAlgorithmException {
+    return Utility.fileToSha256(file);
+  }
+}
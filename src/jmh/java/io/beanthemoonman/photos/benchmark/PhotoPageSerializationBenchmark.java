@@ -0,0 +1,78 @@
+package io.beanthemoonman.photos.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.beanthemoonman.photos.model.Photo;
+import io.beanthemoonman.photos.model.PhotoPage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON serialization of a page of photos with fingerprinted URLs and srcsets, as the listing endpoint writes it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhotoPageSerializationBenchmark {
+
+  @Param({ "24", "100" })
+  public int size;
+
+  private ObjectMapper objectMapper;
+
+  private PhotoPage photoPage;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    // Configured like the object mapper of the application
+    objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    Random random = new Random(42);
+    List<Photo> photos = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      String id = Fixtures.photoName(i);
+      byte[] hash = new byte[32];
+      random.nextBytes(hash);
+      String version = HexFormat.of().formatHex(hash);
+
+      Photo photo = new Photo(id,
+          id,
+          "/api/photos/" + id + "/thumbnail?v=" + version + "-1f2e3d4c",
+          "/api/photos/" + id + "/full?v=" + version);
+      StringJoiner srcset = new StringJoiner(", ");
+      for (int width : new int[] { 200, 400, 800, 1600, 2560 }) {
+        srcset.add("/api/photos/" + id + "/thumbnail?w=" + width + "&v=" + version + "-5a6b7c8d " + width + "w");
+      }
+      photo.setSrcset(srcset.toString());
+      photos.add(photo);
+    }
+    photoPage = new PhotoPage(photos, 3, size, 42, 42L * size);
+    photoPage.setNextCursor("AAAAAYyvb0NASU1HXzAwMDA5OS5qcGc");
+  }
+
+  @Benchmark
+  public byte[] writePhotoPage() throws JsonProcessingException {
+    return objectMapper.writeValueAsBytes(photoPage);
+  }
+}
@@ -0,0 +1,104 @@
+package io.beanthemoonman.photos.benchmark;
+
+import io.beanthemoonman.photos.model.Photo;
+import io.beanthemoonman.photos.model.PhotoPage;
+import io.beanthemoonman.photos.model.PhotoSort;
+import io.beanthemoonman.photos.service.PhotoService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing and lookup of photos in libraries of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhotoServiceBenchmark {
+
+  private static final int PAGE_SIZE = 24;
+
+  @Param({ "1000", "10000", "100000" })
+  public int files;
+
+  private Path directory;
+
+  private Path cacheDir;
+
+  private PhotoService photoService;
+
+  private int lastPage;
+
+  private String middleId;
+
+  private String middleIdWithOtherExtension;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("photos-benchmark");
+    cacheDir = Files.createTempDirectory("photos-benchmark-cache");
+    Fixtures.createPhotoFiles(directory, files);
+    photoService = Fixtures.photoService(directory, cacheDir);
+
+    lastPage = Math.ceilDiv(files, PAGE_SIZE) - 1;
+    middleId = Fixtures.photoName(files / 2);
+    middleIdWithOtherExtension = middleId.replace(".jpg", ".png");
+
+    // Build the catalog snapshot and the sort indexes outside the measurement
+    photoService.getPhotos(0, PAGE_SIZE);
+    photoService.getPhotos(0, PAGE_SIZE, PhotoSort.NAME);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Fixtures.delete(directory);
+    Fixtures.delete(cacheDir);
+  }
+
+  @Benchmark
+  public PhotoPage getPhotosFirstPage() {
+    return photoService.getPhotos(0, PAGE_SIZE);
+  }
+
+  @Benchmark
+  public PhotoPage getPhotosLastPage() {
+    return photoService.getPhotos(lastPage, PAGE_SIZE);
+  }
+
+  @Benchmark
+  public PhotoPage getPhotosSortedByName() {
+    return photoService.getPhotos(lastPage / 2, PAGE_SIZE, PhotoSort.NAME);
+  }
+
+  @Benchmark
+  public Photo findPhotoById() {
+    return photoService.getPhoto(middleId);
+  }
+
+  /**
+   * A lookup with the wrong extension, which is a constant-time map lookup of the name without extension, like an
+   * exact match, rather than a search of the directory.
+   */
+  @Benchmark
+  public Photo findPhotoByBaseName() {
+    return photoService.getPhoto(middleIdWithOtherExtension);
+  }
+}
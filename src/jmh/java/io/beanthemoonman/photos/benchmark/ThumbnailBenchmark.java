@@ -0,0 +1,79 @@
+package io.beanthemoonman.photos.benchmark;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.service.ThumbnailService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thumbnail creation from originals of different sizes and formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ThumbnailBenchmark {
+
+  @Param({ "jpg", "png", "gif" })
+  public String format;
+
+  @Param({ "1024x768", "4000x3000", "8000x6000" })
+  public String dimensions;
+
+  private Path directory;
+
+  private Path image;
+
+  private ThumbnailService thumbnailService;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    String[] size = dimensions.split("x");
+    directory = Files.createTempDirectory("photos-benchmark");
+    image = Fixtures.writeImage(directory, format, Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+
+    PhotosConfig config = new PhotosConfig();
+    config.getThumbnail().setWidth(400);
+    config.getThumbnail().setHeight(400);
+    config.getThumbnail().setSizes(List.of(200, 400, 800, 1600, 2560));
+    thumbnailService = new ThumbnailService(config, new SimpleMeterRegistry());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Fixtures.delete(directory);
+  }
+
+  @Benchmark
+  public byte[] createThumbnail() throws IOException {
+    return thumbnailService.createThumbnail(image);
+  }
+
+  /**
+   * All derivative sizes from a single decode, as the cache creates them for a new photo.
+   */
+  @Benchmark
+  public Object createThumbnails() throws IOException {
+    return thumbnailService.createThumbnails(image, thumbnailService.getSizes());
+  }
+}
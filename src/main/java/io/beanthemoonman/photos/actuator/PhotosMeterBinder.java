@@ -0,0 +1,69 @@
+package io.beanthemoonman.photos.actuator;
+
+import io.beanthemoonman.photos.service.PhotoCatalog;
+import io.beanthemoonman.photos.service.ThumbnailCache;
+import io.beanthemoonman.photos.utility.ByteCache;
+import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import io.beanthemoonman.photos.utility.WarmupProgress;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Gauges of the catalog, the warm-up and the in-memory thumbnail cache. They are read when the registry is scraped,
+ * so nothing is counted twice on the request path.
+ */
+@Component
+public class PhotosMeterBinder implements MeterBinder {
+
+  private final PhotoCatalog photoCatalog;
+
+  private final ThumbnailHasher thumbnailHasher;
+
+  private final ThumbnailCache thumbnailCache;
+
+  public PhotosMeterBinder(PhotoCatalog photoCatalog, ThumbnailHasher thumbnailHasher, ThumbnailCache thumbnailCache) {
+    this.photoCatalog = photoCatalog;
+    this.thumbnailHasher = thumbnailHasher;
+    this.thumbnailCache = thumbnailCache;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    Gauge.builder("photos.catalog.size", photoCatalog, PhotoCatalog::size)
+        .description("Photos in the catalog")
+        .register(registry);
+    Gauge.builder("photos.warmup.backlog", thumbnailHasher, PhotosMeterBinder::backlog)
+        .description("Photos still waiting for the thumbnail warm-up")
+        .register(registry);
+
+    memoryCounter(registry, "hits", ByteCache.Stats::hits);
+    memoryCounter(registry, "misses", ByteCache.Stats::misses);
+    memoryCounter(registry, "evictions", ByteCache.Stats::evictions);
+    memoryCounter(registry, "rejections", ByteCache.Stats::rejections);
+    Gauge.builder("photos.cache.memory.entries", thumbnailCache, cache -> cache.getMemoryStats().entries())
+        .description("Thumbnails held in memory")
+        .register(registry);
+    Gauge.builder("photos.cache.memory.size", thumbnailCache, cache -> cache.getMemoryStats().bytes())
+        .description("Bytes of thumbnails held in memory")
+        .baseUnit("bytes")
+        .register(registry);
+  }
+
+  private void memoryCounter(MeterRegistry registry, String name, ToDoubleFunction<ByteCache.Stats> value) {
+    FunctionCounter.builder("photos.cache.memory." + name,
+            thumbnailCache,
+            cache -> value.applyAsDouble(cache.getMemoryStats()))
+        .description("In-memory thumbnail cache " + name)
+        .register(registry);
+  }
+
+  private static double backlog(ThumbnailHasher thumbnailHasher) {
+    WarmupProgress progress = thumbnailHasher.getProgress();
+    return Math.max(0, progress.getTotal() - progress.getCompleted());
+  }
+}
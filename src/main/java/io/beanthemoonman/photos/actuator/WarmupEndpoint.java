@@ -0,0 +1,54 @@
+package io.beanthemoonman.photos.actuator;
+
+import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import io.beanthemoonman.photos.utility.WarmupProgress;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Actuator endpoint reporting the progress of the thumbnail warm-up at {@code /actuator/warmup}.
+ */
+@Component
+@Endpoint(id = "warmup")
+public class WarmupEndpoint {
+
+  private final ThumbnailHasher thumbnailHasher;
+
+  public WarmupEndpoint(ThumbnailHasher thumbnailHasher) {
+    this.thumbnailHasher = thumbnailHasher;
+  }
+
+  @ReadOperation
+  public Map<String, Object> warmup() {
+    return describe(thumbnailHasher);
+  }
+
+  /**
+   * Describe the current warm-up state and counters.
+   *
+   * @param thumbnailHasher the hasher running the warm-up
+   * @return the warm-up details
+   */
+  static Map<String, Object> describe(ThumbnailHasher thumbnailHasher) {
+    WarmupProgress progress = thumbnailHasher.getProgress();
+    Map<String, Object> details = new LinkedHashMap<>();
+    details.put("state", thumbnailHasher.isWarmingUp() ? "running" : progress.isFinished() ? "finished" : "pending");
+    details.put("total", progress.getTotal());
+    details.put("seen", progress.getSeen());
+    details.put("indexed", progress.getIndexed());
+    details.put("hashed", progress.getHashed());
+    details.put("thumbnailed", progress.getThumbnailed());
+    details.put("failed", progress.getFailed());
+    details.put("completed", progress.getCompleted());
+    details.put("elapsedSeconds", progress.getElapsed().toSeconds());
+    details.put("photosPerSecond", Math.round(progress.getThroughput() * 10) / 10.0);
+    Duration eta = progress.getEta();
+    details.put("etaSeconds", eta != null ? eta.toSeconds() : null);
+    return details;
+  }
+}
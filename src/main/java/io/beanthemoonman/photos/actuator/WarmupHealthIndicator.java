@@ -0,0 +1,31 @@
+package io.beanthemoonman.photos.actuator;
+
+import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Health indicator for the thumbnail warm-up, included in the readiness group.
+ * <p>
+ * The application can serve requests while the cache is cold, so the indicator always reports UP and exposes the warm
+ * state as details. Orchestrators can route traffic immediately and use {@code warm} as a soft signal.
+ */
+@Component
+public class WarmupHealthIndicator implements HealthIndicator {
+
+  private final ThumbnailHasher thumbnailHasher;
+
+  public WarmupHealthIndicator(ThumbnailHasher thumbnailHasher) {
+    this.thumbnailHasher = thumbnailHasher;
+  }
+
+  @Override
+  public Health health() {
+    boolean warm = !thumbnailHasher.isWarmingUp() && thumbnailHasher.getProgress().isFinished();
+    return Health.up()
+        .withDetail("warm", warm)
+        .withDetails(WarmupEndpoint.describe(thumbnailHasher))
+        .build();
+  }
+}
@@ -5,6 +5,8 @@ import org.springframework.stereotype.Component;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Configuration properties for the photo gallery application.
@@ -19,6 +21,14 @@ public class PhotosConfig {
 
   private Website website = new Website();
 
+  private Watch watch = new Watch();
+
+  private Warmup warmup = new Warmup();
+
+  private RateLimit rateLimit = new RateLimit();
+
+  private Cache cache = new Cache();
+
   public String getDirectory() {
     return directory;
   }
@@ -47,11 +57,55 @@ public class PhotosConfig {
     this.website = website;
   }
 
+  public Watch getWatch() {
+    return watch;
+  }
+
+  public void setWatch(Watch watch) {
+    this.watch = watch;
+  }
+
+  public Warmup getWarmup() {
+    return warmup;
+  }
+
+  public void setWarmup(Warmup warmup) {
+    this.warmup = warmup;
+  }
+
+  public RateLimit getRateLimit() {
+    return rateLimit;
+  }
+
+  public void setRateLimit(RateLimit rateLimit) {
+    this.rateLimit = rateLimit;
+  }
+
+  public Cache getCache() {
+    return cache;
+  }
+
+  public void setCache(Cache cache) {
+    this.cache = cache;
+  }
+
   public static class Thumbnail {
     private int width = 300;
 
     private int height = 200;
 
+    private long decodeMemoryMb = 0;
+
+    private long memoryCacheMb = 32;
+
+    private boolean memoryCacheOffHeap = false;
+
+    private List<Integer> sizes = new ArrayList<>();
+
+    private boolean embeddedPreview = true;
+
+    private int resizeThreads = 0;
+
     public int getWidth() {
       return width;
     }
@@ -67,6 +121,74 @@ public class PhotosConfig {
     public void setHeight(int height) {
       this.height = height;
     }
+
+    /**
+     * Memory budget shared by concurrent image decodes, in megabytes. 0 means a quarter of the maximum heap.
+     */
+    public long getDecodeMemoryMb() {
+      return decodeMemoryMb;
+    }
+
+    public void setDecodeMemoryMb(long decodeMemoryMb) {
+      this.decodeMemoryMb = decodeMemoryMb;
+    }
+
+    /**
+     * Size of the in-memory thumbnail cache in front of the disk cache, in megabytes. 0 disables it.
+     */
+    public long getMemoryCacheMb() {
+      return memoryCacheMb;
+    }
+
+    public void setMemoryCacheMb(long memoryCacheMb) {
+      this.memoryCacheMb = memoryCacheMb;
+    }
+
+    /**
+     * Whether the in-memory thumbnail cache keeps its data in direct buffers outside the Java heap.
+     */
+    public boolean isMemoryCacheOffHeap() {
+      return memoryCacheOffHeap;
+    }
+
+    public void setMemoryCacheOffHeap(boolean memoryCacheOffHeap) {
+      this.memoryCacheOffHeap = memoryCacheOffHeap;
+    }
+
+    /**
+     * Additional thumbnail sizes offered to clients for responsive images. Each size is the maximum width and height of
+     * the derivative in pixels.
+     */
+    public List<Integer> getSizes() {
+      return sizes;
+    }
+
+    public void setSizes(List<Integer> sizes) {
+      this.sizes = sizes;
+    }
+
+    /**
+     * Whether a thumbnail or preview embedded in a photo by the camera is used instead of decoding the photo, when it
+     * is large enough.
+     */
+    public boolean isEmbeddedPreview() {
+      return embeddedPreview;
+    }
+
+    public void setEmbeddedPreview(boolean embeddedPreview) {
+      this.embeddedPreview = embeddedPreview;
+    }
+
+    /**
+     * Platform threads that generate thumbnails for requests and the warm-up. 0 means one per processor.
+     */
+    public int getResizeThreads() {
+      return resizeThreads;
+    }
+
+    public void setResizeThreads(int resizeThreads) {
+      this.resizeThreads = resizeThreads;
+    }
   }
 
   public static class Website {
@@ -130,4 +252,284 @@ public class PhotosConfig {
       this.ogSiteName = ogSiteName;
     }
   }
-}
\ No newline at end of file
+
+  public static class Watch {
+    private boolean enabled = true;
+
+    private long debounceMillis = 500;
+
+    private long rescanIntervalSeconds = 3600;
+
+    private long checkIntervalMillis = 1000;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public long getDebounceMillis() {
+      return debounceMillis;
+    }
+
+    public void setDebounceMillis(long debounceMillis) {
+      this.debounceMillis = debounceMillis;
+    }
+
+    public long getRescanIntervalSeconds() {
+      return rescanIntervalSeconds;
+    }
+
+    public void setRescanIntervalSeconds(long rescanIntervalSeconds) {
+      this.rescanIntervalSeconds = rescanIntervalSeconds;
+    }
+
+    /**
+     * How often the catalog checks the modification time of the photos directory when it is not watched, in
+     * milliseconds. 0 checks on every lookup.
+     */
+    public long getCheckIntervalMillis() {
+      return checkIntervalMillis;
+    }
+
+    public void setCheckIntervalMillis(long checkIntervalMillis) {
+      this.checkIntervalMillis = checkIntervalMillis;
+    }
+  }
+
+  public static class Warmup {
+    private boolean virtualThreads = false;
+
+    private int hashConcurrency = 4;
+
+    private int resizeConcurrency = 0;
+
+    private long progressIntervalSeconds = 10;
+
+    private int maxSize = 800;
+
+    private long reindexIntervalMillis = 2000;
+
+    public boolean isVirtualThreads() {
+      return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+      this.virtualThreads = virtualThreads;
+    }
+
+    public int getHashConcurrency() {
+      return hashConcurrency;
+    }
+
+    public void setHashConcurrency(int hashConcurrency) {
+      this.hashConcurrency = hashConcurrency;
+    }
+
+    /**
+     * Number of thumbnails resized concurrently. 0 means one per available processor.
+     */
+    public int getResizeConcurrency() {
+      return resizeConcurrency;
+    }
+
+    public void setResizeConcurrency(int resizeConcurrency) {
+      this.resizeConcurrency = resizeConcurrency;
+    }
+
+    public long getProgressIntervalSeconds() {
+      return progressIntervalSeconds;
+    }
+
+    public void setProgressIntervalSeconds(long progressIntervalSeconds) {
+      this.progressIntervalSeconds = progressIntervalSeconds;
+    }
+
+    /**
+     * Largest derivative size the warm-up creates. Larger derivatives are created when first requested; 0 means the
+     * warm-up creates all sizes. With a disk cache budget the warm-up only creates the default thumbnails.
+     */
+    public int getMaxSize() {
+      return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * Minimum time between rebuilds of the capture date order while metadata is being extracted. Until then, listings
+     * by capture date are served from the previous order; 0 rebuilds it on every listing after a change.
+     */
+    public long getReindexIntervalMillis() {
+      return reindexIntervalMillis;
+    }
+
+    public void setReindexIntervalMillis(long reindexIntervalMillis) {
+      this.reindexIntervalMillis = reindexIntervalMillis;
+    }
+  }
+
+  /**
+   * Per-client request limits of the photo API. Each limit is the number of requests a client may make per minute,
+   * which is also the burst it may make at once; 0 means unlimited.
+   */
+  public static class RateLimit {
+    private boolean enabled = true;
+
+    private int maxClients = 10000;
+
+    private long listingPerMinute = 120;
+
+    private long thumbnailPerMinute = 1200;
+
+    private long thumbnailGeneratePerMinute = 120;
+
+    private long fullSizePerMinute = 60;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    /**
+     * Number of clients whose buckets are tracked. The least recently seen clients are forgotten beyond it.
+     */
+    public int getMaxClients() {
+      return maxClients;
+    }
+
+    public void setMaxClients(int maxClients) {
+      this.maxClients = maxClients;
+    }
+
+    public long getListingPerMinute() {
+      return listingPerMinute;
+    }
+
+    public void setListingPerMinute(long listingPerMinute) {
+      this.listingPerMinute = listingPerMinute;
+    }
+
+    /**
+     * Limit of thumbnails that are already cached.
+     */
+    public long getThumbnailPerMinute() {
+      return thumbnailPerMinute;
+    }
+
+    public void setThumbnailPerMinute(long thumbnailPerMinute) {
+      this.thumbnailPerMinute = thumbnailPerMinute;
+    }
+
+    /**
+     * Limit of thumbnails that have to be generated. A batch of thumbnails counts each photo that is not cached yet.
+     */
+    public long getThumbnailGeneratePerMinute() {
+      return thumbnailGeneratePerMinute;
+    }
+
+    public void setThumbnailGeneratePerMinute(long thumbnailGeneratePerMinute) {
+      this.thumbnailGeneratePerMinute = thumbnailGeneratePerMinute;
+    }
+
+    public long getFullSizePerMinute() {
+      return fullSizePerMinute;
+    }
+
+    public void setFullSizePerMinute(long fullSizePerMinute) {
+      this.fullSizePerMinute = fullSizePerMinute;
+    }
+  }
+
+  /**
+   * Garbage collection of the thumbnail disk cache.
+   */
+  public static class Cache {
+    private String directory = "cache";
+
+    private String store = "files";
+
+    private long packSegmentMb = 64;
+
+    private long maxSizeMb = 0;
+
+    private long gcIntervalSeconds = 300;
+
+    private int gcBatchSize = 1000;
+
+    /**
+     * Root directory of the thumbnail disk cache, which also holds the hash and metadata indexes.
+     */
+    public String getDirectory() {
+      return directory;
+    }
+
+    public void setDirectory(String directory) {
+      this.directory = directory;
+    }
+
+    /**
+     * How thumbnails are kept on disk: {@code files}, a file per thumbnail, or {@code pack}, appended to large segment
+     * files. Switching starts from an empty cache; the other store's files are left in place.
+     */
+    public String getStore() {
+      return store;
+    }
+
+    public void setStore(String store) {
+      this.store = store;
+    }
+
+    /**
+     * Size at which the pack store starts a new segment file, in megabytes, at most 1024.
+     */
+    public long getPackSegmentMb() {
+      return packSegmentMb;
+    }
+
+    public void setPackSegmentMb(long packSegmentMb) {
+      this.packSegmentMb = packSegmentMb;
+    }
+
+    /**
+     * Byte budget of the thumbnail files on disk, in megabytes. Beyond it, the thumbnails served least recently are
+     * deleted. 0 means unbounded. A budget below the size of a full warm-up makes every start regenerate the evicted
+     * thumbnails.
+     */
+    public long getMaxSizeMb() {
+      return maxSizeMb;
+    }
+
+    public void setMaxSizeMb(long maxSizeMb) {
+      this.maxSizeMb = maxSizeMb;
+    }
+
+    /**
+     * Seconds between garbage collection passes. 0 disables garbage collection.
+     */
+    public long getGcIntervalSeconds() {
+      return gcIntervalSeconds;
+    }
+
+    public void setGcIntervalSeconds(long gcIntervalSeconds) {
+      this.gcIntervalSeconds = gcIntervalSeconds;
+    }
+
+    /**
+     * Maximum number of files deleted by one pass, so that a pass never holds up the disk for long.
+     */
+    public int getGcBatchSize() {
+      return gcBatchSize;
+    }
+
+    public void setGcBatchSize(int gcBatchSize) {
+      this.gcBatchSize = gcBatchSize;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package io.beanthemoonman.photos.controller;
+
+import io.beanthemoonman.photos.utility.PhotoMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Counts the response bytes written by the photo API, by endpoint.
+ * <p>
+ * Bytes are counted as they are written rather than when the filter chain returns, so that streamed responses which
+ * complete asynchronously are counted too. Responses written through a {@code Writer} are not counted; the photo API
+ * writes JSON and images to the output stream.
+ */
+@Component
+public class BytesServedFilter extends OncePerRequestFilter {
+
+  private static final String PREFIX = "/api/photos";
+
+  private final Counter list;
+
+  private final Counter photo;
+
+  private final Counter thumbnail;
+
+  private final Counter thumbnails;
+
+  private final Counter full;
+
+  public BytesServedFilter(MeterRegistry meterRegistry) {
+    this.list = PhotoMetrics.bytesServed(meterRegistry, "list");
+    this.photo = PhotoMetrics.bytesServed(meterRegistry, "photo");
+    this.thumbnail = PhotoMetrics.bytesServed(meterRegistry, "thumbnail");
+    this.thumbnails = PhotoMetrics.bytesServed(meterRegistry, "thumbnails");
+    this.full = PhotoMetrics.bytesServed(meterRegistry, "full");
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    return !request.getRequestURI().startsWith(PREFIX, request.getContextPath().length());
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+      throws ServletException, IOException {
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    filterChain.doFilter(request, new CountingResponse(response, counterFor(path)));
+  }
+
+  /**
+   * Find the counter of the endpoint serving a path below {@code /api/photos}.
+   *
+   * @param path The request path without the context path
+   * @return The counter
+   */
+  Counter counterFor(String path) {
+    String rest = path.substring(PREFIX.length());
+    if (rest.isEmpty() || rest.equals("/")) {
+      return list;
+    } else if (rest.equals("/thumbnails")) {
+      return thumbnails;
+    } else if (rest.endsWith("/thumbnail")) {
+      return thumbnail;
+    } else if (rest.endsWith("/full")) {
+      return full;
+    }
+    return photo;
+  }
+
+  private static final class CountingResponse extends HttpServletResponseWrapper {
+
+    private final Counter counter;
+
+    private ServletOutputStream outputStream;
+
+    CountingResponse(HttpServletResponse response, Counter counter) {
+      super(response);
+      this.counter = counter;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (outputStream == null) {
+        outputStream = new CountingOutputStream(super.getOutputStream(), counter);
+      }
+      return outputStream;
+    }
+  }
+
+  private static final class CountingOutputStream extends ServletOutputStream {
+
+    private final ServletOutputStream delegate;
+
+    private final Counter counter;
+
+    CountingOutputStream(ServletOutputStream delegate, Counter counter) {
+      this.delegate = delegate;
+      this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      delegate.write(b);
+      counter.increment();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      delegate.write(b, off, len);
+      counter.increment(len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegate.close();
+    }
+
+    @Override
+    public boolean isReady() {
+      return delegate.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      delegate.setWriteListener(writeListener);
+    }
+  }
+}
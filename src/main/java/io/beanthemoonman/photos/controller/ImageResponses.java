@@ -0,0 +1,134 @@
+package io.beanthemoonman.photos.controller;
+
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+
+/**
+ * Builds image responses with HTTP range support.
+ * <p>
+ * Spring MVC answers {@code Range} requests for {@link Resource} bodies by itself: a single range is written as a
+ * 206 region, several ranges as {@code multipart/byteranges}, and unsatisfiable ranges as 416. Regions are copied
+ * from the resource's stream, so file-backed images are never read in full. What Spring does not evaluate is
+ * {@code If-Range}, which is handled here together with the ETag based {@code If-None-Match} check.
+ */
+final class ImageResponses {
+
+  private ImageResponses() {
+  }
+
+  /**
+   * Format an image version as a strong ETag.
+   *
+   * @param version The image version, or null if unknown
+   * @return The ETag, or null if the version is unknown
+   */
+  static String etag(String version) {
+    return version != null ? "\"" + version + "\"" : null;
+  }
+
+  /**
+   * Check whether the client already holds the current representation according to {@code If-None-Match}.
+   *
+   * @param requestHeaders The request headers
+   * @param etag           The current ETag, or null if unknown
+   * @return Whether a 304 response should be sent
+   */
+  static boolean isNotModified(HttpHeaders requestHeaders, String etag) {
+    if (etag == null) {
+      return false;
+    }
+    for (String candidate : requestHeaders.getIfNoneMatch()) {
+      // If-None-Match uses the weak comparison
+      if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Build a 304 response, repeating the validator and caching headers as required.
+   *
+   * @param etag         The current ETag
+   * @param cacheControl The cache control to apply
+   * @return The response
+   */
+  static ResponseEntity<Resource> notModified(String etag, CacheControl cacheControl) {
+    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(cacheControl).build();
+  }
+
+  /**
+   * Build a 200 response for an image, letting Spring turn it into a partial response if the request carries an
+   * applicable {@code Range} header.
+   *
+   * @param requestHeaders The request headers
+   * @param image          The image
+   * @param mediaType      The content type of the image
+   * @param etag           The ETag of the image, or null if unknown
+   * @param lastModified   The last modified time of the image in epoch milliseconds, or -1 if unknown
+   * @param cacheControl   The cache control to apply, or null for none
+   * @return The response
+   * @throws IOException If the image cannot be opened
+   */
+  static ResponseEntity<Resource> image(HttpHeaders requestHeaders,
+      Resource image,
+      MediaType mediaType,
+      String etag,
+      long lastModified,
+      CacheControl cacheControl) throws IOException {
+
+    ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+        .contentType(mediaType)
+        .header(HttpHeaders.ACCEPT_RANGES, "bytes");
+    if (etag != null) {
+      builder.eTag(etag);
+    }
+    if (lastModified >= 0) {
+      builder.lastModified(lastModified);
+    }
+    if (cacheControl != null) {
+      builder.cacheControl(cacheControl);
+    }
+
+    if (requestHeaders.getFirst(HttpHeaders.RANGE) != null && !ifRangeMatches(requestHeaders, etag, lastModified)) {
+      // The client's copy is stale, so the range must be ignored and the full image sent. Spring only skips range
+      // processing for stream-backed resources, hence the wrapping.
+      return builder.contentLength(image.contentLength()).body(new InputStreamResource(image.getInputStream()));
+    }
+    return builder.body(image);
+  }
+
+  /**
+   * Evaluate the {@code If-Range} precondition. A missing header always matches; an ETag matches if it is strongly
+   * equal to the current ETag; a date matches if it equals the last modified time at second precision.
+   *
+   * @param requestHeaders The request headers
+   * @param etag           The current ETag, or null if unknown
+   * @param lastModified   The last modified time of the image in epoch milliseconds, or -1 if unknown
+   * @return Whether a {@code Range} header should be honoured
+   */
+  static boolean ifRangeMatches(HttpHeaders requestHeaders, String etag, long lastModified) {
+    String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return ifRange.equals(etag);
+    }
+    if (lastModified < 0) {
+      return false;
+    }
+    try {
+      return requestHeaders.getFirstDate(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package io.beanthemoonman.photos.controller;
+
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes a {@code multipart/mixed} body part by part, flushing after each part so that clients can use it before the
+ * rest of the response is ready.
+ * <p>
+ * Every part carries a {@code Content-Length}, so clients can cut the parts from the stream without scanning binary
+ * bodies for the boundary, and a {@code Content-ID} with the URL-encoded ID of the resource it holds.
+ */
+final class MultipartWriter {
+
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private final OutputStream outputStream;
+
+  private final String boundary;
+
+  MultipartWriter(OutputStream outputStream, String boundary) {
+    this.outputStream = outputStream;
+    this.boundary = boundary;
+  }
+
+  /**
+   * Create a boundary that cannot occur in the headers of the parts.
+   *
+   * @return The boundary
+   */
+  static String newBoundary() {
+    return "part-" + UUID.randomUUID();
+  }
+
+  /**
+   * Get the content type of a multipart body with the given boundary.
+   *
+   * @param boundary The boundary
+   * @return The content type
+   */
+  static MediaType contentType(String boundary) {
+    return new MediaType("multipart", "mixed", Map.of("boundary", boundary));
+  }
+
+  /**
+   * Write a part and flush it to the client.
+   *
+   * @param id        The ID of the resource in the part
+   * @param mediaType The content type of the part
+   * @param body      The content of the part
+   * @throws IOException If the part cannot be written, e.g. because the client went away
+   */
+  void writePart(String id, MediaType mediaType, byte[] body) throws IOException {
+    String headers = "--" + boundary + "\r\n"
+        + "Content-Type: " + mediaType + "\r\n"
+        + "Content-ID: <" + URLEncoder.encode(id, StandardCharsets.UTF_8) + ">\r\n"
+        + "Content-Length: " + body.length + "\r\n"
+        + "\r\n";
+    outputStream.write(headers.getBytes(StandardCharsets.US_ASCII));
+    outputStream.write(body);
+    outputStream.write(CRLF);
+    outputStream.flush();
+  }
+
+  /**
+   * Write the closing delimiter.
+   *
+   * @throws IOException If the delimiter cannot be written
+   */
+  void close() throws IOException {
+    outputStream.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    outputStream.flush();
+  }
+}
@@ -2,19 +2,30 @@ package io.beanthemoonman.photos.controller;
 
 import io.beanthemoonman.photos.model.Photo;
 import io.beanthemoonman.photos.model.PhotoPage;
+import io.beanthemoonman.photos.model.PhotoSort;
 import io.beanthemoonman.photos.service.PhotoService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -26,6 +37,8 @@ public class PhotoController {
 
   private static final Logger logger = LoggerFactory.getLogger(PhotoController.class);
 
+  static final int MAX_BATCH_SIZE = 100;
+
   private final PhotoService photoService;
 
   @Autowired
@@ -34,19 +47,71 @@ public class PhotoController {
   }
 
   /**
-   * Get a paginated list of photos.
+   * Get a paginated list of photos. If a cursor parameter is present, even an empty one, the page starts after the
+   * cursor instead of at the page number.
    *
-   * @param page Page number (0-based)
-   * @param size Number of photos per page
-   * @return A page of photos
+   * @param page   Page number (0-based)
+   * @param size   Number of photos per page
+   * @param cursor The next cursor of the previous page, or empty for the first page
+   * @param sort   The sort order: modified (default), taken, name or size
+   * @return A page of photos, or 400 if the cursor or sort order is not valid
    */
   @GetMapping
   public ResponseEntity<PhotoPage> getPhotos(@RequestParam(defaultValue = "0") int page,
-      @RequestParam(defaultValue = "12") int size) {
+      @RequestParam(defaultValue = "12") int size,
+      @RequestParam(required = false) String cursor,
+      @RequestParam(required = false) String sort) {
+
+    try {
+      return ResponseEntity.ok(findPage(page, size, cursor, sort));
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().build();
+    }
+  }
+
+  /**
+   * Get the thumbnails of several photos in one response. It is meant for photos that are not hashed yet, whose
+   * thumbnail URLs carry no fingerprint and so cannot be cached by the client; fingerprinted thumbnails are better
+   * loaded from their own immutable URLs. The response is a {@code multipart/mixed} stream with one image part per
+   * photo, identified by its Content-ID. Parts are written as soon as each thumbnail is ready, so the order may differ
+   * from the request, and photos whose thumbnail cannot be created are left out.
+   *
+   * @param ids   The photo IDs, at most 100
+   * @param width The requested width in pixels, or none for the default thumbnail
+   * @return The thumbnails, or 400 if there are too many IDs
+   */
+  @GetMapping("/thumbnails")
+  public ResponseEntity<StreamingResponseBody> getThumbnails(@RequestParam(name = "id") List<String> ids,
+      @RequestParam(name = "w", required = false) Integer width) {
 
-    logger.info("Getting photos page {} with size {}", page, size);
-    PhotoPage photoPage = photoService.getPhotos(page, size);
-    return ResponseEntity.ok(photoPage);
+    if (ids.size() > MAX_BATCH_SIZE) {
+      return ResponseEntity.badRequest().build();
+    }
+    logger.info("Getting {} thumbnails in one batch", ids.size());
+
+    String boundary = MultipartWriter.newBoundary();
+    StreamingResponseBody body = outputStream -> {
+      MultipartWriter writer = new MultipartWriter(outputStream, boundary);
+      photoService.getThumbnailImages(ids,
+          width,
+          (id, imageData) -> writer.writePart(id, MediaType.IMAGE_JPEG, imageData));
+      writer.close();
+    };
+    return ResponseEntity.ok()
+        .contentType(MultipartWriter.contentType(boundary))
+        .cacheControl(CacheControl.noCache())
+        .body(body);
+  }
+
+  private PhotoPage findPage(int page, int size, String cursor, String sort) {
+    PhotoSort photoSort = PhotoSort.parse(sort);
+    if (cursor != null) {
+      logger.info("Getting photos after cursor '{}' with size {} sorted by {}", cursor, size, photoSort);
+      return photoService.getPhotosAfter(cursor, size, photoSort);
+    }
+
+    logger.info("Getting photos page {} with size {} sorted by {}", page, size, photoSort);
+    return photoService.getPhotos(page, size, photoSort);
   }
 
   /**
@@ -68,43 +133,88 @@ public class PhotoController {
   }
 
   /**
-   * Get a thumbnail image for a photo.
+   * Get a thumbnail image for a photo, optionally in the derivative size that best fits a requested width. Requests
+   * carrying the current ETag are answered with 304 without loading the thumbnail. A thumbnail that still has to be
+   * generated completes the response asynchronously, without a request thread waiting for the resize.
    *
-   * @param id The photo ID
+   * @param id             The photo ID
+   * @param width          The requested width in pixels, or none for the default thumbnail
+   * @param version        The version the URL was fingerprinted with, if any
+   * @param requestHeaders The request headers, used for conditional and range requests
    * @return The thumbnail image
    */
-
   @GetMapping(value = "/{id}/thumbnail", produces = MediaType.IMAGE_JPEG_VALUE)
-  public ResponseEntity<byte[]> getThumbnail(@PathVariable String id) {
+  public CompletableFuture<ResponseEntity<Resource>> getThumbnail(@PathVariable String id,
+      @RequestParam(name = "w", required = false) Integer width,
+      @RequestParam(name = "v", required = false) String version,
+      @RequestHeader HttpHeaders requestHeaders) {
     logger.info("Getting thumbnail for photo with id: {}", id);
-    byte[] imageData = photoService.getThumbnailImage(id);
-
-    if (imageData != null) {
-      // Define caching behavior
-      CacheControl cacheControl = CacheControl.maxAge(1, TimeUnit.DAYS).cachePublic();
-
-      return ResponseEntity.ok().cacheControl(cacheControl).body(imageData);
-
-    } else {
-      return ResponseEntity.notFound().build();
+    String currentVersion = photoService.getThumbnailVersion(id, width);
+    String etag = ImageResponses.etag(currentVersion);
+    CacheControl cacheControl = cacheControl(version, currentVersion);
+    if (ImageResponses.isNotModified(requestHeaders, etag)) {
+      return CompletableFuture.completedFuture(ImageResponses.notModified(etag, cacheControl));
     }
+
+    return photoService.getThumbnailImageAsync(id, width).thenApply(imageData -> {
+      if (imageData == null) {
+        return ResponseEntity.notFound().build();
+      }
+      try {
+        return ImageResponses.image(requestHeaders,
+            new ByteArrayResource(imageData),
+            MediaType.IMAGE_JPEG,
+            etag,
+            -1,
+            cacheControl);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
   }
 
   /**
-   * Get a full-size image for a photo.
+   * Get a full-size image for a photo. The image is streamed from the file rather than loaded into memory, and range
+   * requests are served from the requested regions of the file. Requests carrying the current ETag are answered with
+   * 304 without opening the file.
    *
-   * @param id The photo ID
+   * @param id             The photo ID
+   * @param version        The version the URL was fingerprinted with, if any
+   * @param requestHeaders The request headers, used for conditional and range requests
    * @return The full-size image
+   * @throws IOException If the image cannot be read
    */
-  @GetMapping(value = "/{id}/full", produces = MediaType.IMAGE_JPEG_VALUE)
-  public ResponseEntity<byte[]> getFullSizeImage(@PathVariable String id) {
+  @GetMapping("/{id}/full")
+  public ResponseEntity<Resource> getFullSizeImage(@PathVariable String id,
+      @RequestParam(name = "v", required = false) String version,
+      @RequestHeader HttpHeaders requestHeaders) throws IOException {
     logger.info("Getting full-size image for photo with id: {}", id);
-    byte[] imageData = photoService.getFullSizeImage(id);
+    String currentVersion = photoService.getFullSizeVersion(id);
+    String etag = ImageResponses.etag(currentVersion);
+    CacheControl cacheControl = cacheControl(version, currentVersion);
+    if (ImageResponses.isNotModified(requestHeaders, etag)) {
+      return ImageResponses.notModified(etag, cacheControl);
+    }
+
+    Resource image = photoService.getFullSizeImage(id);
 
-    if (imageData != null) {
-      return ResponseEntity.ok(imageData);
+    if (image != null) {
+      MediaType mediaType = MediaTypeFactory.getMediaType(image).orElse(MediaType.IMAGE_JPEG);
+      long lastModified = image.isFile() ? image.lastModified() : -1;
+      return ImageResponses.image(requestHeaders, image, mediaType, etag, lastModified, cacheControl);
     } else {
       return ResponseEntity.notFound().build();
     }
   }
+
+  /**
+   * URLs fingerprinted with the current version never change their content and may be cached forever; everything
+   * else is cached for a day and then revalidated.
+   */
+  private static CacheControl cacheControl(String requestedVersion, String currentVersion) {
+    if (currentVersion != null && currentVersion.equals(requestedVersion)) {
+      return CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable();
+    }
+    return CacheControl.maxAge(1, TimeUnit.DAYS).cachePublic();
+  }
 }
\ No newline at end of file
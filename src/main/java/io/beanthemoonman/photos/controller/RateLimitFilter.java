@@ -0,0 +1,158 @@
+package io.beanthemoonman.photos.controller;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.service.PhotoService;
+import io.beanthemoonman.photos.utility.ClientRateLimiter;
+import io.beanthemoonman.photos.utility.ClientRateLimiter.EndpointClass;
+import io.beanthemoonman.photos.utility.PhotoMetrics;
+import io.github.bucket4j.ConsumptionProbe;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UriUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many requests each client may make to the photo API, with separate buckets for listing, cached
+ * thumbnails, thumbnails that have to be generated and full-size images. Rejected requests get 429 with a
+ * {@code Retry-After} telling the client when its next token is due.
+ */
+@Component
+public class RateLimitFilter extends OncePerRequestFilter {
+
+  private static final Logger logger = LoggerFactory.getLogger(RateLimitFilter.class);
+
+  private static final String PREFIX = "/api/photos";
+
+  private static final String THUMBNAIL_SUFFIX = "/thumbnail";
+
+  private static final String FULL_SIZE_SUFFIX = "/full";
+
+  private final PhotoService photoService;
+
+  private final boolean enabled;
+
+  private final ClientRateLimiter rateLimiter;
+
+  private final Map<EndpointClass, Counter> rejected = new EnumMap<>(EndpointClass.class);
+
+  /**
+   * The tokens a request takes, and from which bucket.
+   */
+  record Charge(EndpointClass endpointClass, long tokens) {
+  }
+
+  public RateLimitFilter(PhotosConfig config, PhotoService photoService, MeterRegistry meterRegistry) {
+    this.photoService = photoService;
+    PhotosConfig.RateLimit rateLimit = config.getRateLimit();
+    this.enabled = rateLimit.isEnabled();
+    this.rateLimiter = new ClientRateLimiter(Map.of(
+        EndpointClass.LISTING, rateLimit.getListingPerMinute(),
+        EndpointClass.THUMBNAIL, rateLimit.getThumbnailPerMinute(),
+        EndpointClass.THUMBNAIL_GENERATE, rateLimit.getThumbnailGeneratePerMinute(),
+        EndpointClass.FULL_SIZE, rateLimit.getFullSizePerMinute()), rateLimit.getMaxClients());
+
+    for (EndpointClass endpointClass : EndpointClass.values()) {
+      rejected.put(endpointClass, PhotoMetrics.rateLimited(meterRegistry, endpointClass.tag()));
+    }
+    Gauge.builder("photos.rate.limit.buckets", rateLimiter, ClientRateLimiter::size)
+        .description("Client buckets tracked by the rate limit")
+        .register(meterRegistry);
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    return !enabled || !request.getRequestURI().startsWith(PREFIX, request.getContextPath().length());
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+      throws ServletException, IOException {
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    Charge charge = classify(path, request.getParameter("w"), request.getParameterValues("id"));
+    EndpointClass endpointClass = charge.endpointClass();
+    ConsumptionProbe probe = rateLimiter.tryConsume(request.getRemoteAddr(), endpointClass, charge.tokens());
+    if (probe.isConsumed()) {
+      filterChain.doFilter(request, response);
+      return;
+    }
+
+    rejected.get(endpointClass).increment();
+    long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(probe.getNanosToWaitForRefill() + 999_999_999));
+    logger.debug("Rate limited {} request from {}, retry after {}s", endpointClass.tag(), request.getRemoteAddr(),
+        retryAfter);
+    response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+    response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfter));
+  }
+
+  /**
+   * Find what a request to a path below {@code /api/photos} is charged. Single thumbnails are classed by whether they
+   * are already cached. A batch of thumbnails takes one generating token for each photo whose thumbnail is not cached,
+   * so it costs as much as loading those thumbnails one by one, or one thumbnail token if all of them are cached.
+   *
+   * @param path  The request path without the context path
+   * @param width The requested thumbnail width, if any
+   * @param ids   The photo IDs of a batch of thumbnails, if any
+   * @return The charge
+   */
+  Charge classify(String path, String width, String[] ids) {
+    String rest = path.substring(PREFIX.length());
+    if (rest.equals("/thumbnails")) {
+      long uncached = uncached(ids, parseWidth(width));
+      return uncached > 0 ? new Charge(EndpointClass.THUMBNAIL_GENERATE, uncached) : charge(EndpointClass.THUMBNAIL);
+    } else if (rest.endsWith(FULL_SIZE_SUFFIX)) {
+      return charge(EndpointClass.FULL_SIZE);
+    } else if (rest.endsWith(THUMBNAIL_SUFFIX) && rest.length() > THUMBNAIL_SUFFIX.length() + 1) {
+      String id = UriUtils.decode(rest.substring(1, rest.length() - THUMBNAIL_SUFFIX.length()), StandardCharsets.UTF_8);
+      return photoService.isThumbnailCached(id, parseWidth(width))
+          ? charge(EndpointClass.THUMBNAIL)
+          : charge(EndpointClass.THUMBNAIL_GENERATE);
+    }
+    return charge(EndpointClass.LISTING);
+  }
+
+  /**
+   * Count the photos of a batch whose thumbnails are not cached. Batches larger than the controller accepts are
+   * rejected there, so only that many IDs are looked at.
+   */
+  private long uncached(String[] ids, Integer width) {
+    if (ids == null) {
+      return 0;
+    }
+    return Arrays.stream(ids)
+        .limit(PhotoController.MAX_BATCH_SIZE)
+        .filter(id -> !photoService.isThumbnailCached(id, width))
+        .count();
+  }
+
+  private static Charge charge(EndpointClass endpointClass) {
+    return new Charge(endpointClass, 1);
+  }
+
+  private static Integer parseWidth(String width) {
+    if (width == null) {
+      return null;
+    }
+    try {
+      return Integer.valueOf(width);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
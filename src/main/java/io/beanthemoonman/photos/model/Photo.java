@@ -13,6 +13,8 @@ public class Photo {
 
   private String fullSizeUrl;
 
+  private String srcset;
+
   public Photo() {
   }
 
@@ -54,4 +56,17 @@ public class Photo {
   public void setFullSizeUrl(String fullSizeUrl) {
     this.fullSizeUrl = fullSizeUrl;
   }
+
+  /**
+   * Get the derivative URLs of the photo with their sizes, in the format of the HTML {@code srcset} attribute.
+   *
+   * @return The srcset, or null if no derivative sizes are configured
+   */
+  public String getSrcset() {
+    return srcset;
+  }
+
+  public void setSrcset(String srcset) {
+    this.srcset = srcset;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package io.beanthemoonman.photos.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in the photo listing, pointing just after the photo with the given sort key. Clients receive it as an
+ * opaque URL-safe string and pass it back unchanged, with the same sort order, to continue the listing. The sort order
+ * is part of the cursor, since its key means nothing in any other order.
+ *
+ * @param sort The sort order the cursor was created for
+ * @param key  The sort key of the photo, e.g. its last modified time in epoch milliseconds
+ * @param id   The photo ID (filename)
+ */
+public record PhotoCursor(PhotoSort sort, long key, String id) {
+
+  private static final int HEADER_BYTES = Byte.BYTES + Long.BYTES;
+
+  /**
+   * Encode the cursor as an opaque string.
+   *
+   * @return The encoded cursor
+   */
+  public String encode() {
+    byte[] name = id.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + name.length)
+        .put((byte) sort.ordinal())
+        .putLong(key)
+        .put(name);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+  }
+
+  /**
+   * Decode a cursor created by {@link #encode()}.
+   *
+   * @param cursor The encoded cursor
+   * @return The cursor
+   * @throws IllegalArgumentException If the string is not a valid cursor
+   */
+  public static PhotoCursor decode(String cursor) {
+    byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+    if (bytes.length <= HEADER_BYTES || bytes[0] < 0 || bytes[0] >= PhotoSort.values().length) {
+      throw new IllegalArgumentException("Invalid cursor: " + cursor);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    PhotoSort sort = PhotoSort.values()[buffer.get()];
+    long key = buffer.getLong();
+    return new PhotoCursor(sort, key, StandardCharsets.UTF_8.decode(buffer).toString());
+  }
+}
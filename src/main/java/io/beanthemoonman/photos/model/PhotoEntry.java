@@ -0,0 +1,14 @@
+package io.beanthemoonman.photos.model;
+
+import java.nio.file.Path;
+
+/**
+ * Immutable catalog entry for a photo file, captured from a single stat of the file.
+ *
+ * @param id           The photo ID (filename)
+ * @param path         The path to the photo file
+ * @param size         The file size in bytes
+ * @param lastModified The last modified time in epoch milliseconds
+ */
+public record PhotoEntry(String id, Path path, long size, long lastModified) {
+}
@@ -0,0 +1,23 @@
+package io.beanthemoonman.photos.model;
+
+/**
+ * Metadata extracted once from the content of a photo.
+ *
+ * @param captureTime The capture date from the EXIF data, as camera wall-clock time in epoch milliseconds, or
+ *                    {@link #UNKNOWN_TIME} if none is recorded
+ * @param width       The width in pixels as displayed, i.e. with the orientation applied, or 0 if unknown
+ * @param height      The height in pixels as displayed, or 0 if unknown
+ * @param orientation The EXIF orientation, 1 to 8
+ * @param camera      The camera make and model, or null if none is recorded
+ */
+public record PhotoMetadata(long captureTime, int width, int height, int orientation, String camera) {
+
+  /**
+   * Capture time of photos without a recorded capture date.
+   */
+  public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+  public boolean hasCaptureTime() {
+    return captureTime != UNKNOWN_TIME;
+  }
+}
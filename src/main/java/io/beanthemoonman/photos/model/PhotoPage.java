@@ -17,6 +17,8 @@ public class PhotoPage {
 
   private long totalElements;
 
+  private String nextCursor;
+
   public PhotoPage() {
   }
 
@@ -67,4 +69,17 @@ public class PhotoPage {
   public void setTotalElements(long totalElements) {
     this.totalElements = totalElements;
   }
+
+  /**
+   * Get the cursor to request the photos following this page with.
+   *
+   * @return The cursor, or null if this is the last page
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  public void setNextCursor(String nextCursor) {
+    this.nextCursor = nextCursor;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+package io.beanthemoonman.photos.model;
+
+import java.util.Locale;
+
+/**
+ * Sort orders of the photo listing. Ties are broken by the filename, so every order is total and stable.
+ */
+public enum PhotoSort {
+
+  /**
+   * Most recently modified file first.
+   */
+  MODIFIED,
+
+  /**
+   * Most recently taken first, by the EXIF capture date. Photos without one are placed by their modification time.
+   */
+  TAKEN,
+
+  /**
+   * By filename.
+   */
+  NAME,
+
+  /**
+   * Largest file first.
+   */
+  SIZE;
+
+  /**
+   * Parse a sort order from a request parameter, ignoring case.
+   *
+   * @param value The parameter value, or null or empty for the default order
+   * @return The sort order
+   * @throws IllegalArgumentException If the value is not a sort order
+   */
+  public static PhotoSort parse(String value) {
+    if (value == null || value.isEmpty()) {
+      return MODIFIED;
+    }
+    return valueOf(value.toUpperCase(Locale.ROOT));
+  }
+}
@@ -1,12 +1,20 @@
 package io.beanthemoonman.photos.runner;
 
 import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 
+/**
+ * Starts the thumbnail warm-up in the background, so the application accepts traffic while the cache is filled.
+ * Progress is reported by the {@code warmup} actuator endpoint and health indicator.
+ */
 @Component
 public class ThumbnailHasherRunner implements CommandLineRunner {
 
+  private static final Logger logger = LoggerFactory.getLogger(ThumbnailHasherRunner.class);
+
   private final ThumbnailHasher thumbnailHasher;
 
   public ThumbnailHasherRunner(ThumbnailHasher thumbnailHasher) {
@@ -14,7 +22,13 @@ public class ThumbnailHasherRunner implements CommandLineRunner {
   }
 
   @Override
-  public void run(String... args) throws Exception {
-    thumbnailHasher.boot();
+  public void run(String... args) {
+    Thread.ofPlatform().name("thumbnail-warmup").daemon().start(() -> {
+      try {
+        thumbnailHasher.boot();
+      } catch (Exception e) {
+        logger.error("Thumbnail warm-up failed", e);
+      }
+    });
   }
 }
@@ -0,0 +1,223 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.utility.CacheLedger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.stream.Stream;
+
+import static io.beanthemoonman.photos.utility.Utility.createDirectoryIfNotExists;
+
+/**
+ * Stores each thumbnail in a file of its own. Files are written to a temporary file and atomically moved into place,
+ * so readers never see a partially written thumbnail.
+ * <p>
+ * Files are sharded by the first two pairs of hex digits of the photo hash ({@code ab/cd/abcd….jpg}), so that no
+ * directory grows past a few hundred entries however large the library. Caches written with the earlier flat layout
+ * are migrated while the application runs: a thumbnail is moved into its shard when it is first read, and
+ * {@link #scan(CacheLedger)} moves the rest. Flat thumbnails named by the photo hash alone date from before cache keys
+ * carried the settings fingerprint; they are default thumbnails and move to the key of the current fingerprint.
+ */
+public class FileThumbnailStore implements ThumbnailStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(FileThumbnailStore.class);
+
+  private static final String TEMP_DIR = "tmp";
+
+  private static final String EXTENSION = ".jpg";
+
+  private final Path cacheDir;
+
+  private final Path tempDir;
+
+  private final String fingerprint;
+
+  private volatile boolean flatLayout;
+
+  /**
+   * Open the thumbnail files in a directory.
+   *
+   * @param cacheDir    the cache directory
+   * @param fingerprint the fingerprint of the default thumbnail, under which thumbnails of the flat layout that predate
+   *                    fingerprinted keys are kept
+   */
+  public FileThumbnailStore(Path cacheDir, String fingerprint) {
+    this.cacheDir = cacheDir;
+    this.tempDir = cacheDir.resolve(TEMP_DIR);
+    this.fingerprint = fingerprint;
+    createDirectoryIfNotExists(cacheDir);
+    createDirectoryIfNotExists(tempDir);
+    deleteLeftoverTempFiles();
+    this.flatLayout = hasFlatFiles();
+  }
+
+  @Override
+  public byte[] read(String key) throws IOException {
+    try {
+      return Files.readAllBytes(pathOf(key));
+    } catch (NoSuchFileException e) {
+      if (flatLayout && migrate(key)) {
+        return read(key);
+      }
+      return null;
+    }
+  }
+
+  @Override
+  public boolean contains(String key) throws IOException {
+    return Files.exists(pathOf(key)) || (flatLayout && migrate(key));
+  }
+
+  @Override
+  public void write(String key, byte[] imageData) throws IOException {
+    Path temp = Files.createTempFile(tempDir, key, ".tmp");
+    try {
+      Files.write(temp, imageData);
+      Path target = pathOf(key);
+      Files.createDirectories(target.getParent());
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  @Override
+  public void delete(String key) throws IOException {
+    Files.deleteIfExists(pathOf(key));
+    if (flatLayout) {
+      Files.deleteIfExists(flatPathOf(key));
+    }
+  }
+
+  /**
+   * Record the thumbnails on disk in the ledger, first moving any left in the flat layout into their shards.
+   */
+  @Override
+  public int scan(CacheLedger ledger) throws IOException {
+    if (flatLayout) {
+      int migrated = migrateFlatFiles();
+      flatLayout = false;
+      logger.info("Moved {} thumbnails from {} into shards", migrated, cacheDir);
+    }
+    int found = 0;
+    try (Stream<Path> files = Files.find(cacheDir, 3, (file, attributes) -> attributes.isRegularFile()
+        && file.getFileName().toString().endsWith(EXTENSION)
+        && !file.startsWith(tempDir))) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (found(ledger, file)) {
+          found++;
+        }
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return found;
+  }
+
+  /**
+   * Get the path of a thumbnail in its shard. Hashes shorter than four characters only occur in tests, and are sharded
+   * by what there is of them.
+   */
+  private Path pathOf(String key) {
+    String photoHash = ThumbnailCache.photoHashOf(key);
+    return cacheDir.resolve(photoHash.substring(0, Math.min(2, photoHash.length())))
+        .resolve(photoHash.substring(Math.min(2, photoHash.length()), Math.min(4, photoHash.length())))
+        .resolve(key + EXTENSION);
+  }
+
+  /**
+   * Get the path of a thumbnail in the flat layout. A default thumbnail may still be named by the photo hash alone.
+   */
+  private Path flatPathOf(String key) {
+    Path flat = cacheDir.resolve(key + EXTENSION);
+    String photoHash = ThumbnailCache.photoHashOf(key);
+    if (key.equals(photoHash + "-" + fingerprint) && !Files.exists(flat)) {
+      return cacheDir.resolve(photoHash + EXTENSION);
+    }
+    return flat;
+  }
+
+  /**
+   * Move a thumbnail from the flat layout into its shard.
+   *
+   * @return Whether there was a thumbnail to move
+   */
+  private boolean migrate(String key) throws IOException {
+    return migrate(flatPathOf(key), key);
+  }
+
+  private boolean migrate(Path flat, String key) throws IOException {
+    Path shard = pathOf(key);
+    // Most lookups miss the flat layout, so check before creating the shard
+    if (!Files.exists(flat)) {
+      return Files.exists(shard);
+    }
+    Files.createDirectories(shard.getParent());
+    try {
+      Files.move(flat, shard, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (NoSuchFileException e) {
+      // Another caller moved it first
+      return Files.exists(shard);
+    }
+  }
+
+  private int migrateFlatFiles() throws IOException {
+    int migrated = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDir, "*" + EXTENSION)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        String key = name.substring(0, name.length() - EXTENSION.length());
+        if (key.indexOf('-') < 0) {
+          key = key + "-" + fingerprint;
+        }
+        if (Files.isRegularFile(file) && migrate(file, key)) {
+          migrated++;
+        }
+      }
+    }
+    return migrated;
+  }
+
+  private boolean hasFlatFiles() {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDir, "*" + EXTENSION)) {
+      return files.iterator().hasNext();
+    } catch (IOException e) {
+      logger.warn("Failed to list {}, assuming thumbnails are in the flat layout", cacheDir, e);
+      return true;
+    }
+  }
+
+  private static boolean found(CacheLedger ledger, Path file) throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      // Evicted while listing
+      return false;
+    }
+    String name = file.getFileName().toString();
+    ledger.found(name.substring(0, name.length() - EXTENSION.length()),
+        attributes.size(),
+        attributes.lastModifiedTime().toMillis());
+    return true;
+  }
+
+  private void deleteLeftoverTempFiles() {
+    try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tempDir)) {
+      for (Path leftover : leftovers) {
+        Files.deleteIfExists(leftover);
+      }
+    } catch (IOException e) {
+      logger.warn("Failed to clean up temporary thumbnail files in {}", tempDir, e);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.model.PhotoMetadata;
+import io.beanthemoonman.photos.utility.Exif;
+import io.beanthemoonman.photos.utility.MetadataIndex;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metadata of the photos in the library, extracted once per content hash and persisted next to the thumbnail cache.
+ * <p>
+ * Photos are bound to their metadata by filename as they are indexed, so that the catalog can build its sort indexes
+ * from memory. The version changes whenever a binding changes, which tells the catalog when to rebuild them.
+ */
+@Component
+public class MetadataStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(MetadataStore.class);
+
+  private static final String METADATA_INDEX_FILE = "metadata.idx";
+
+  private final MetadataIndex metadataIndex;
+
+  private final ConcurrentMap<String, PhotoMetadata> byName = new ConcurrentHashMap<>();
+
+  private final AtomicLong version = new AtomicLong();
+
+  @Autowired
+  public MetadataStore(ThumbnailCache thumbnailCache) {
+    this(thumbnailCache.getCacheDir());
+  }
+
+  MetadataStore(Path cacheDir) {
+    this.metadataIndex = openMetadataIndex(cacheDir.resolve(METADATA_INDEX_FILE));
+  }
+
+  private static MetadataIndex openMetadataIndex(Path file) {
+    try {
+      return MetadataIndex.open(file);
+    } catch (IOException e) {
+      logger.error("Failed to open metadata index {}, metadata will be read again on every start", file, e);
+      return null;
+    }
+  }
+
+  @PreDestroy
+  public void close() throws IOException {
+    if (metadataIndex != null) {
+      metadataIndex.close();
+    }
+  }
+
+  /**
+   * Get the metadata of a photo, reading it from the file only if no photo with the same content was read before, and
+   * bind it to the photo's filename.
+   *
+   * @param id        the photo ID (filename)
+   * @param photoHash the content hash of the photo
+   * @param photo     the path to the photo file
+   * @return the metadata
+   * @throws IOException if the photo cannot be read
+   */
+  public PhotoMetadata extract(String id, String photoHash, Path photo) throws IOException {
+    PhotoMetadata metadata = metadataIndex != null ? metadataIndex.lookup(photoHash) : null;
+    if (metadata == null) {
+      metadata = read(photo);
+      if (metadataIndex != null) {
+        metadataIndex.put(photoHash, metadata);
+      }
+    }
+    if (!metadata.equals(byName.put(id, metadata))) {
+      version.incrementAndGet();
+    }
+    return metadata;
+  }
+
+  /**
+   * Mark the metadata extracted so far, before listing the library for {@link #compact(Set, long)}.
+   *
+   * @return the mark
+   */
+  public long mark() {
+    return metadataIndex != null ? metadataIndex.mark() : 0;
+  }
+
+  /**
+   * Drop the persisted metadata of photos that are no longer in the library. Metadata extracted after the mark is kept.
+   *
+   * @param liveHashes the content hashes of the photos in the library when it was listed
+   * @param mark       the mark taken before the library was listed
+   */
+  public void compact(Set<String> liveHashes, long mark) {
+    if (metadataIndex != null) {
+      metadataIndex.compact(liveHashes, mark);
+    }
+  }
+
+  /**
+   * Get the metadata bound to a photo. Never reads the file.
+   *
+   * @param id the photo ID (filename)
+   * @return the metadata, or null if the photo has not been indexed yet
+   */
+  public PhotoMetadata get(String id) {
+    return byName.get(id);
+  }
+
+  /**
+   * Forget the metadata bound to a photo, e.g. after it was modified or deleted.
+   *
+   * @param id the photo ID (filename)
+   */
+  public void invalidate(String id) {
+    if (byName.remove(id) != null) {
+      version.incrementAndGet();
+    }
+  }
+
+  /**
+   * Get the version of the bindings, which changes whenever the metadata of a photo is bound or forgotten.
+   *
+   * @return the version
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Read the metadata of a photo from the header of the file: the dimensions from the image header and, for JPEG
+   * files, the EXIF data. The pixels are not decoded.
+   *
+   * @param photo the path to the photo file
+   * @return the metadata
+   * @throws IOException if the photo cannot be read
+   */
+  static PhotoMetadata read(Path photo) throws IOException {
+    int width = 0;
+    int height = 0;
+    Exif exif = Exif.NONE;
+    try (ImageInputStream input = ImageIO.createImageInputStream(photo.toFile())) {
+      Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+      if (readers != null && readers.hasNext()) {
+        ImageReader reader = readers.next();
+        try {
+          reader.setInput(input, true, true);
+          if ("jpeg".equalsIgnoreCase(reader.getFormatName())) {
+            exif = Exif.read(photo);
+          }
+          width = reader.getWidth(0);
+          height = reader.getHeight(0);
+        } catch (IOException e) {
+          // Not a readable image, but the EXIF data may still be usable
+          logger.debug("Unable to read the dimensions of photo: {}", photo.getFileName(), e);
+        } finally {
+          reader.dispose();
+        }
+      }
+    }
+
+    long captureTime = exif.getDateTaken() != null
+        ? exif.getDateTaken().toInstant(ZoneOffset.UTC).toEpochMilli()
+        : PhotoMetadata.UNKNOWN_TIME;
+    return exif.isTransposed()
+        ? new PhotoMetadata(captureTime, height, width, exif.getOrientation(), exif.getCamera())
+        : new PhotoMetadata(captureTime, width, height, exif.getOrientation(), exif.getCamera());
+  }
+}
@@ -0,0 +1,417 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.utility.CacheLedger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores thumbnails appended to large segment files instead of in a file each. This saves an inode and an open, read
+ * and close per thumbnail, and keeps backups to a few large files.
+ * <p>
+ * A segment is a file of records {@code [i32 magic][u16 key length][key, UTF-8][i64 written][i32 length][data]}. A
+ * record with a length of -1 is a tombstone for a deleted thumbnail, and the last record for a key wins. Records are
+ * appended to the newest segment until it reaches the segment size, then a new segment is started.
+ * <p>
+ * The segments are memory-mapped, and thumbnails are read straight from the mappings. The newest segment is mapped
+ * as far as it reached when it was opened, and only mapped in full once a new segment is started; thumbnails appended
+ * in between are read from the file. The index from key to segment, offset and length is kept in memory. It is rebuilt
+ * at startup from the record headers in the mappings, so it cannot get out of step with the segments. A torn record at
+ * the end of a segment, e.g. after a crash, is discarded.
+ * <p>
+ * Deleting or replacing a thumbnail leaves garbage in its segment. {@link #compact()} picks the segment with the most
+ * garbage, once garbage is the larger part of it, copies its live records to the newest segment and deletes it.
+ * Tombstones are only copied while an older segment still holds a record they hide. Readers still holding a location
+ * in a deleted segment keep reading from its mapping until the mapping is garbage collected.
+ */
+public class PackThumbnailStore implements ThumbnailStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(PackThumbnailStore.class);
+
+  private static final int SEGMENT_MAGIC = 0x50504B31; // "PPK1"
+
+  private static final int RECORD_MAGIC = 0x54484D42; // "THMB"
+
+  private static final int TOMBSTONE = -1;
+
+  private static final String EXTENSION = ".pack";
+
+  private static final long MAX_SEGMENT_SIZE = 1024L * 1024 * 1024;
+
+  private final Path directory;
+
+  private final long segmentSize;
+
+  private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+
+  private final NavigableMap<Integer, Segment> segments = new TreeMap<>();
+
+  private Segment active;
+
+  private record Location(Segment segment, int offset, int length, long written) {
+  }
+
+  @FunctionalInterface
+  private interface RecordVisitor {
+    void visit(String key, int offset, int length, long written);
+  }
+
+  private static final class Segment {
+
+    private final int id;
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    private final Set<String> tombstones = ConcurrentHashMap.newKeySet();
+
+    private volatile MappedByteBuffer mapped;
+
+    private long size;
+
+    private Segment(int id, Path file) throws IOException {
+      this.id = id;
+      this.file = file;
+      this.channel = FileChannel.open(file,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      this.size = channel.size();
+    }
+
+    private ByteBuffer slice(int offset, int length) throws IOException {
+      MappedByteBuffer buffer = mapped;
+      if (buffer != null && offset + length <= buffer.capacity()) {
+        return buffer.slice(offset, length);
+      }
+      // Only the newest segment grows beyond its mapping. Remapping it on every append would map the whole segment
+      // again each time, so until it is full the thumbnails written since it was mapped are read from the file
+      ByteBuffer read = ByteBuffer.allocate(length);
+      while (read.hasRemaining()) {
+        if (channel.read(read, offset + read.position()) < 0) {
+          throw new EOFException("Pack segment " + file + " ends before the thumbnail at " + offset);
+        }
+      }
+      return read.flip();
+    }
+
+    private synchronized MappedByteBuffer remap() throws IOException {
+      long length = channel.size();
+      if (mapped == null || mapped.capacity() != length) {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      }
+      return mapped;
+    }
+
+    private void append(ByteBuffer... buffers) throws IOException {
+      long position = size;
+      for (ByteBuffer buffer : buffers) {
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      }
+      size = position;
+    }
+
+    private long garbageBytes() {
+      return size - Integer.BYTES - liveBytes.get();
+    }
+  }
+
+  private PackThumbnailStore(Path directory, long segmentSize) {
+    this.directory = directory;
+    this.segmentSize = Math.min(segmentSize, MAX_SEGMENT_SIZE);
+  }
+
+  /**
+   * Open the segments in a directory, creating it if it does not exist, and index their records.
+   *
+   * @param directory   the directory of the segment files
+   * @param segmentSize the size at which a new segment is started, in bytes
+   * @return the opened store
+   * @throws IOException if the segments cannot be read or created
+   */
+  public static PackThumbnailStore open(Path directory, long segmentSize) throws IOException {
+    PackThumbnailStore store = new PackThumbnailStore(directory, segmentSize);
+    store.load();
+    return store;
+  }
+
+  @Override
+  public byte[] read(String key) throws IOException {
+    Location location = index.get(key);
+    if (location == null) {
+      return null;
+    }
+    byte[] imageData = new byte[location.length()];
+    location.segment().slice(location.offset(), location.length()).get(imageData);
+    return imageData;
+  }
+
+  @Override
+  public boolean contains(String key) {
+    return index.containsKey(key);
+  }
+
+  @Override
+  public synchronized void write(String key, byte[] imageData) throws IOException {
+    remember(key, append(key, System.currentTimeMillis(), ByteBuffer.wrap(imageData)));
+  }
+
+  @Override
+  public synchronized void delete(String key) throws IOException {
+    if (forget(key)) {
+      append(key, System.currentTimeMillis(), null);
+    }
+  }
+
+  @Override
+  public int scan(CacheLedger ledger) {
+    int found = 0;
+    for (Map.Entry<String, Location> entry : index.entrySet()) {
+      ledger.found(entry.getKey(), entry.getValue().length(), entry.getValue().written());
+      found++;
+    }
+    return found;
+  }
+
+  /**
+   * Compact the segment with the most garbage, if garbage makes up most of it. One segment is compacted per call, so
+   * writers are never held up for long.
+   */
+  @Override
+  public synchronized long compact() throws IOException {
+    Segment victim = null;
+    for (Segment segment : segments.values()) {
+      if (segment != active && segment.garbageBytes() * 2 > segment.size
+          && (victim == null || segment.garbageBytes() > victim.garbageBytes())) {
+        victim = segment;
+      }
+    }
+    if (victim == null) {
+      return 0;
+    }
+
+    long reclaimed = victim.garbageBytes();
+    int copied = 0;
+    for (Map.Entry<String, Location> entry : index.entrySet()) {
+      Location location = entry.getValue();
+      if (location.segment() == victim) {
+        remember(entry.getKey(), append(entry.getKey(),
+            location.written(),
+            victim.slice(location.offset(), location.length())));
+        copied++;
+      }
+    }
+    // A tombstone only hides records in older segments, so it can go once none of them holds a record for its key
+    Set<String> deleted = new HashSet<>();
+    for (String key : victim.tombstones) {
+      if (!index.containsKey(key)) {
+        deleted.add(key);
+      }
+    }
+    Set<String> hidden = new HashSet<>();
+    if (!deleted.isEmpty()) {
+      for (Segment older : segments.headMap(victim.id, false).values()) {
+        walk(older.mapped.duplicate(), (key, offset, length, written) -> {
+          if (length != TOMBSTONE && deleted.contains(key)) {
+            hidden.add(key);
+          }
+        });
+      }
+    }
+    for (String key : hidden) {
+      append(key, System.currentTimeMillis(), null);
+    }
+
+    segments.remove(victim.id);
+    victim.channel.close();
+    Files.delete(victim.file);
+    logger.info("Compacted pack segment {}, moving {} thumbnails and reclaiming {} KB",
+        victim.file.getFileName(),
+        copied,
+        reclaimed / 1024);
+    return reclaimed;
+  }
+
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (Segment segment : segments.values()) {
+      segment.channel.close();
+    }
+  }
+
+  private void load() throws IOException {
+    Files.createDirectories(directory);
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          int id = Integer.parseInt(name.substring(0, name.length() - EXTENSION.length()));
+          segments.put(id, new Segment(id, file));
+        } catch (NumberFormatException e) {
+          logger.warn("Ignoring unknown file {} among the pack segments", file);
+        }
+      }
+    }
+    // Segments are replayed oldest first, so that later records win
+    for (Segment segment : segments.values()) {
+      load(segment);
+    }
+
+    if (segments.isEmpty()) {
+      active = newSegment(0);
+    } else {
+      active = segments.lastEntry().getValue();
+    }
+    logger.info("Loaded {} thumbnails from {} pack segments in {}", index.size(), segments.size(), directory);
+  }
+
+  private void load(Segment segment) throws IOException {
+    MappedByteBuffer buffer = segment.remap();
+    long validLength = walk(buffer.duplicate(), (key, offset, length, written) -> {
+      if (length == TOMBSTONE) {
+        forget(key);
+        segment.tombstones.add(key);
+      } else {
+        remember(key, new Location(segment, offset, length, written));
+      }
+    });
+    if (validLength == 0 && buffer.capacity() > 0) {
+      logger.warn("Resetting pack segment {} with unknown format", segment.file);
+    }
+
+    if (validLength < segment.channel.size()) {
+      if (validLength > 0) {
+        logger.warn("Discarding torn record at the end of pack segment {}", segment.file);
+      }
+      segment.channel.truncate(validLength);
+      segment.size = validLength;
+      segment.mapped = null;
+    }
+    if (validLength == 0) {
+      segment.append(ByteBuffer.allocate(Integer.BYTES).putInt(0, SEGMENT_MAGIC));
+    }
+    segment.remap();
+  }
+
+  /**
+   * Visit the records of a segment in order, up to the first torn or unknown record.
+   *
+   * @param buffer  the contents of the segment
+   * @param visitor receives each record, with the offset of its data
+   * @return the length of the segment up to the end of the last complete record, or 0 if it is not a segment
+   */
+  private static long walk(ByteBuffer buffer, RecordVisitor visitor) {
+    if (buffer.remaining() < Integer.BYTES || buffer.getInt() != SEGMENT_MAGIC) {
+      return 0;
+    }
+    long validLength = buffer.position();
+    while (buffer.remaining() >= Integer.BYTES && buffer.getInt() == RECORD_MAGIC) {
+      try {
+        byte[] key = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(key);
+        long written = buffer.getLong();
+        int length = buffer.getInt();
+        int offset = buffer.position();
+        if (length != TOMBSTONE) {
+          buffer.position(offset + length);
+        }
+        visitor.visit(new String(key, StandardCharsets.UTF_8), offset, length, written);
+        validLength = buffer.position();
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        break;
+      }
+    }
+    return validLength;
+  }
+
+  private Segment newSegment(int id) throws IOException {
+    Segment segment = new Segment(id, directory.resolve("%08d%s".formatted(id, EXTENSION)));
+    segment.channel.truncate(0);
+    segment.size = 0;
+    segment.append(ByteBuffer.allocate(Integer.BYTES).putInt(0, SEGMENT_MAGIC));
+    segments.put(id, segment);
+    return segment;
+  }
+
+  /**
+   * Append a record to the newest segment, starting a new one if it would grow beyond the segment size.
+   *
+   * @param data the thumbnail image data, or null for a tombstone
+   * @return the location of the data, or null for a tombstone
+   */
+  private Location append(String key, long written, ByteBuffer data) throws IOException {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int length = data != null ? data.remaining() : TOMBSTONE;
+    ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES + Short.BYTES + keyBytes.length + Long.BYTES)
+        .putInt(RECORD_MAGIC)
+        .putShort((short) keyBytes.length)
+        .put(keyBytes)
+        .putLong(written)
+        .putInt(length)
+        .flip();
+
+    long recordLength = header.remaining() + Math.max(length, 0);
+    if (active.size > Integer.BYTES && active.size + recordLength > segmentSize) {
+      active.remap();
+      active = newSegment(active.id + 1);
+    }
+    Segment segment = active;
+    int offset = Math.toIntExact(segment.size + header.remaining());
+    if (data != null) {
+      segment.append(header, data);
+      return new Location(segment, offset, length, written);
+    }
+    segment.append(header);
+    segment.tombstones.add(key);
+    return null;
+  }
+
+  private void remember(String key, Location location) {
+    location.segment().liveBytes.addAndGet(recordLength(key, location.length()));
+    Location previous = index.put(key, location);
+    if (previous != null) {
+      previous.segment().liveBytes.addAndGet(-recordLength(key, previous.length()));
+    }
+  }
+
+  private boolean forget(String key) {
+    Location previous = index.remove(key);
+    if (previous == null) {
+      return false;
+    }
+    previous.segment().liveBytes.addAndGet(-recordLength(key, previous.length()));
+    return true;
+  }
+
+  private static long recordLength(String key, int length) {
+    return 2 * Integer.BYTES + Short.BYTES + key.getBytes(StandardCharsets.UTF_8).length + Long.BYTES + length;
+  }
+}
@@ -0,0 +1,462 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.model.PhotoCursor;
+import io.beanthemoonman.photos.model.PhotoEntry;
+import io.beanthemoonman.photos.model.PhotoMetadata;
+import io.beanthemoonman.photos.model.PhotoSort;
+import io.beanthemoonman.photos.utility.FileFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static io.beanthemoonman.photos.utility.FileFilter.getNameWithoutExtension;
+
+/**
+ * In-memory catalog of the photos directory.
+ * <p>
+ * The catalog holds an immutable, pre-sorted snapshot of the photo files so that listing a page is a slice of a list
+ * rather than a directory scan. Writers build a complete new snapshot and publish it atomically; readers never block.
+ * Other sort orders are indexed on first use and kept with the snapshot, so listing never reads photo metadata from
+ * disk. Each snapshot also maps filenames and names without extension to their entries, so looking up a photo never
+ * touches the file system either.
+ */
+@Component
+public class PhotoCatalog {
+
+  private static final Logger logger = LoggerFactory.getLogger(PhotoCatalog.class);
+
+  /**
+   * Newest first, with the filename as a tie-breaker so the order is stable across rebuilds.
+   */
+  static final Comparator<PhotoEntry> NEWEST_FIRST = Comparator.comparingLong(PhotoEntry::lastModified)
+      .reversed()
+      .thenComparing(PhotoEntry::id);
+
+  private final PhotosConfig config;
+
+  private final MetadataStore metadataStore;
+
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+  private volatile boolean watched;
+
+  /**
+   * When the directory was last checked for changes or scanned, on the {@link System#nanoTime()} scale.
+   */
+  private volatile long checkedAt;
+
+  public PhotoCatalog(PhotosConfig config, MetadataStore metadataStore) {
+    this.config = config;
+    this.metadataStore = metadataStore;
+  }
+
+  /**
+   * Get the current snapshot. Unless the directory is watched, the snapshot is first rebuilt if the photos directory
+   * has changed since it was taken. That check costs a stat of the directory, so it runs at most once per check
+   * interval and a change may take that long to show; only a watched catalog is current at all times.
+   *
+   * @return The current snapshot
+   */
+  public Snapshot getSnapshot() {
+    Snapshot current = snapshot.get();
+    if (current == null || (!watched && checkDue() && current.directoryModified() != directoryModified())) {
+      current = refreshIfStale();
+    }
+    return current;
+  }
+
+  /**
+   * Get the number of photos in the last published snapshot, without checking the directory for changes.
+   *
+   * @return The number of photos, or 0 before the first scan
+   */
+  public int size() {
+    Snapshot current = snapshot.get();
+    return current == null ? 0 : current.getEntries().size();
+  }
+
+  /**
+   * Mark the photos directory as watched. While watched, change events keep the snapshot current through
+   * {@link #apply(Collection)} and readers skip the directory check.
+   *
+   * @param watched Whether the directory is watched
+   */
+  public void setWatched(boolean watched) {
+    this.watched = watched;
+  }
+
+  /**
+   * Rescan the photos directory and atomically publish a new snapshot.
+   *
+   * @return The new snapshot
+   */
+  public synchronized Snapshot refresh() {
+    checkedAt = System.nanoTime();
+    long directoryModified = directoryModified();
+    List<PhotoEntry> entries = scan();
+    return publish(entries, directoryModified);
+  }
+
+  /**
+   * Rescan the photos directory, publish a new snapshot and report how it differs from the previous one. This lets a
+   * periodic rescan catch changes the watcher missed without reprocessing every photo.
+   *
+   * @return The paths of the photos that were added, modified or removed, or of every photo on the first scan
+   */
+  public synchronized List<Path> reconcile() {
+    Snapshot previous = snapshot.get();
+    Snapshot rescanned = refresh();
+    List<Path> changed = new ArrayList<>();
+    for (PhotoEntry entry : rescanned.getEntries()) {
+      if (previous == null || !entry.equals(previous.byId.get(entry.id()))) {
+        changed.add(entry.path());
+      }
+    }
+    if (previous != null) {
+      for (PhotoEntry entry : previous.getEntries()) {
+        if (!rescanned.byId.containsKey(entry.id())) {
+          changed.add(entry.path());
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Apply changes to individual files to the current snapshot without rescanning the directory. Paths that no longer
+   * exist are removed, all others are added or updated.
+   *
+   * @param changed The paths of the files that were created, modified or deleted
+   * @return The new snapshot
+   */
+  public synchronized Snapshot apply(Collection<Path> changed) {
+    Snapshot current = snapshot.get();
+    if (current == null) {
+      return refresh();
+    }
+
+    long directoryModified = directoryModified();
+    Map<String, PhotoEntry> entries = new HashMap<>(current.getEntries().size() + changed.size());
+    for (PhotoEntry entry : current.getEntries()) {
+      entries.put(entry.id(), entry);
+    }
+    for (Path path : changed) {
+      String id = path.getFileName().toString();
+      PhotoEntry entry = FileFilter.isImageFile(path) ? readEntry(path) : null;
+      if (entry != null) {
+        entries.put(id, entry);
+      } else {
+        entries.remove(id);
+      }
+    }
+    return publish(new ArrayList<>(entries.values()), directoryModified);
+  }
+
+  /**
+   * Claim the next directory check if the check interval has passed since the last one.
+   */
+  private boolean checkDue() {
+    long now = System.nanoTime();
+    if (now - checkedAt < TimeUnit.MILLISECONDS.toNanos(config.getWatch().getCheckIntervalMillis())) {
+      return false;
+    }
+    checkedAt = now;
+    return true;
+  }
+
+  private synchronized Snapshot refreshIfStale() {
+    Snapshot current = snapshot.get();
+    if (current != null && (watched || current.directoryModified() == directoryModified())) {
+      // Another caller already rebuilt the snapshot while we were waiting
+      return current;
+    }
+    return refresh();
+  }
+
+  private Snapshot publish(List<PhotoEntry> entries, long directoryModified) {
+    entries.sort(NEWEST_FIRST);
+    Snapshot rebuilt = new Snapshot(List.copyOf(entries), directoryModified, metadataStore,
+        config.getWarmup().getReindexIntervalMillis());
+    snapshot.set(rebuilt);
+    logger.debug("Catalog updated with {} photos", rebuilt.size());
+    return rebuilt;
+  }
+
+  private List<PhotoEntry> scan() {
+    Path directoryPath = config.getDirectoryPath();
+    List<PhotoEntry> entries = new ArrayList<>();
+    if (!Files.isDirectory(directoryPath)) {
+      return entries;
+    }
+
+    try (Stream<Path> paths = Files.list(directoryPath)) {
+      paths.filter(FileFilter::isImageFile).forEach(path -> {
+        PhotoEntry entry = readEntry(path);
+        if (entry != null) {
+          entries.add(entry);
+        }
+      });
+    } catch (IOException e) {
+      logger.error("Error listing photos", e);
+    }
+    return entries;
+  }
+
+  /**
+   * Build an entry from a single attribute read of the file.
+   *
+   * @param path The path to the photo file
+   * @return The entry, or null if the path is not a regular file or can no longer be read
+   */
+  static PhotoEntry readEntry(Path path) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      if (!attributes.isRegularFile()) {
+        return null;
+      }
+      return new PhotoEntry(path.getFileName().toString(),
+          path,
+          attributes.size(),
+          attributes.lastModifiedTime().toMillis());
+    } catch (NoSuchFileException e) {
+      // Removed between listing and stat
+      return null;
+    } catch (IOException e) {
+      logger.warn("Error reading attributes of photo: {}", path.getFileName(), e);
+      return null;
+    }
+  }
+
+  private long directoryModified() {
+    try {
+      return Files.getLastModifiedTime(config.getDirectoryPath()).toMillis();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * An immutable, sorted view of the photos directory.
+   */
+  public static final class Snapshot {
+
+    private final List<PhotoEntry> entries;
+
+    private final Map<String, PhotoEntry> byId;
+
+    private final Map<String, PhotoEntry> byBaseName;
+
+    private final long directoryModified;
+
+    private final MetadataStore metadataStore;
+
+    private final long reindexIntervalNanos;
+
+    private final ConcurrentMap<PhotoSort, SortIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * The entries in one sort order with their sort keys. The index by capture date depends on the metadata known when
+     * it was built, so it records the metadata version and is rebuilt once more metadata has been extracted. While the
+     * warm-up extracts metadata the version changes with every photo, so rebuilds are spaced by the reindex interval.
+     */
+    private record SortIndex(List<PhotoEntry> entries, long[] keys, long version, long builtAt) {
+    }
+
+    private record Keyed(PhotoEntry entry, long key) {
+    }
+
+    Snapshot(List<PhotoEntry> entries,
+        long directoryModified,
+        MetadataStore metadataStore,
+        long reindexIntervalMillis) {
+      this.entries = entries;
+      this.directoryModified = directoryModified;
+      this.metadataStore = metadataStore;
+      this.reindexIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reindexIntervalMillis);
+      this.byId = HashMap.newHashMap(entries.size());
+      this.byBaseName = HashMap.newHashMap(entries.size());
+      for (PhotoEntry entry : entries) {
+        byId.put(entry.id(), entry);
+        // Entries are newest first, so the newest photo wins a name shared by several extensions
+        byBaseName.putIfAbsent(getNameWithoutExtension(entry.id()), entry);
+      }
+    }
+
+    /**
+     * Find a photo by its filename, or else by a photo with the same name but a different extension.
+     *
+     * @param id The photo ID (filename), with or without extension
+     * @return The entry, or null if there is none
+     */
+    public PhotoEntry find(String id) {
+      PhotoEntry entry = byId.get(id);
+      return entry != null ? entry : byBaseName.get(getNameWithoutExtension(id));
+    }
+
+    /**
+     * Get all entries, newest first.
+     *
+     * @return An unmodifiable list of entries
+     */
+    public List<PhotoEntry> getEntries() {
+      return entries;
+    }
+
+    /**
+     * Get all entries in a sort order.
+     *
+     * @param sort The sort order
+     * @return An unmodifiable list of entries
+     */
+    public List<PhotoEntry> getEntries(PhotoSort sort) {
+      return sort == PhotoSort.MODIFIED ? entries : index(sort).entries();
+    }
+
+    /**
+     * Get the entries in the range [start, end), clamped to the size of the snapshot.
+     *
+     * @param start The first index (inclusive)
+     * @param end   The last index (exclusive)
+     * @return An unmodifiable view of the entries in the range
+     */
+    public List<PhotoEntry> slice(int start, int end) {
+      return slice(PhotoSort.MODIFIED, start, end);
+    }
+
+    /**
+     * Get the entries in the range [start, end) of a sort order, clamped to the size of the snapshot.
+     *
+     * @param sort  The sort order
+     * @param start The first index (inclusive)
+     * @param end   The last index (exclusive)
+     * @return An unmodifiable view of the entries in the range
+     */
+    public List<PhotoEntry> slice(PhotoSort sort, int start, int end) {
+      List<PhotoEntry> sorted = getEntries(sort);
+      int from = Math.max(0, Math.min(start, sorted.size()));
+      int to = Math.max(from, Math.min(end, sorted.size()));
+      return sorted.subList(from, to);
+    }
+
+    /**
+     * Find the position just after a sort key by binary search. The key does not have to be in the snapshot, so a
+     * position stays valid when the photo it was taken from is removed, and photos added before it do not shift it.
+     *
+     * @param lastModified The last modified time of the sort key
+     * @param id           The photo ID of the sort key
+     * @return The index of the first entry that sorts after the key
+     */
+    public int indexAfter(long lastModified, String id) {
+      return indexAfter(new PhotoCursor(PhotoSort.MODIFIED, lastModified, id));
+    }
+
+    /**
+     * Find the position just after a cursor by binary search, in the sort order the cursor was created for.
+     *
+     * @param cursor The cursor
+     * @return The index of the first entry that sorts after the cursor
+     */
+    public int indexAfter(PhotoCursor cursor) {
+      SortIndex index = index(cursor.sort());
+      int low = 0;
+      int high = index.keys().length - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int comparison = compare(index.keys()[middle], index.entries().get(middle).id(), cursor.key(), cursor.id());
+        if (comparison < 0) {
+          low = middle + 1;
+        } else if (comparison > 0) {
+          high = middle - 1;
+        } else {
+          return middle + 1;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Create the cursor pointing just after an entry of a sort order.
+     *
+     * @param sort  The sort order
+     * @param index The index of the entry
+     * @return The cursor
+     */
+    public PhotoCursor cursorAt(PhotoSort sort, int index) {
+      SortIndex sortIndex = index(sort);
+      return new PhotoCursor(sort, sortIndex.keys()[index], sortIndex.entries().get(index).id());
+    }
+
+    public int size() {
+      return entries.size();
+    }
+
+    long directoryModified() {
+      return directoryModified;
+    }
+
+    private SortIndex index(PhotoSort sort) {
+      long version = sort == PhotoSort.TAKEN && metadataStore != null ? metadataStore.getVersion() : 0;
+      SortIndex index = indexes.get(sort);
+      if (index == null || index.version() != version && System.nanoTime() - index.builtAt() >= reindexIntervalNanos) {
+        // Concurrent readers may build the same index twice, which is harmless
+        index = buildIndex(sort, version);
+        indexes.put(sort, index);
+      }
+      return index;
+    }
+
+    private SortIndex buildIndex(PhotoSort sort, long version) {
+      List<Keyed> keyed = new ArrayList<>(entries.size());
+      for (PhotoEntry entry : entries) {
+        keyed.add(new Keyed(entry, sortKey(sort, entry)));
+      }
+      keyed.sort((a, b) -> compare(a.key(), a.entry().id(), b.key(), b.entry().id()));
+
+      List<PhotoEntry> sorted = new ArrayList<>(keyed.size());
+      long[] keys = new long[keyed.size()];
+      for (int i = 0; i < keys.length; i++) {
+        sorted.add(keyed.get(i).entry());
+        keys[i] = keyed.get(i).key();
+      }
+      return new SortIndex(List.copyOf(sorted), keys, version, System.nanoTime());
+    }
+
+    private long sortKey(PhotoSort sort, PhotoEntry entry) {
+      return switch (sort) {
+        case MODIFIED -> entry.lastModified();
+        case TAKEN -> {
+          PhotoMetadata metadata = metadataStore != null ? metadataStore.get(entry.id()) : null;
+          yield metadata != null && metadata.hasCaptureTime() ? metadata.captureTime() : entry.lastModified();
+        }
+        case NAME -> 0;
+        case SIZE -> entry.size();
+      };
+    }
+
+    /**
+     * Every order is descending by its key, with the filename as a tie-breaker. Sorting by name uses the same key for
+     * all entries, which leaves the filename.
+     */
+    private static int compare(long key, String id, long otherKey, String otherId) {
+      return key != otherKey ? Long.compare(otherKey, key) : id.compareTo(otherId);
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.utility.FileFilter;
+import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches the photos directory and applies file changes to the {@link PhotoCatalog} incrementally.
+ * <p>
+ * Events are collected for a short debounce window so that a burst of changes (e.g. an rsync of hundreds of files)
+ * results in a single catalog update. New and modified photos are hashed and thumbnailed in the background, so the
+ * cost of a new photo is paid once on arrival. When the watch service overflows, or periodically as a safety net, the
+ * directory is rescanned in full.
+ */
+@Component
+public class PhotoDirectoryWatcher implements SmartLifecycle {
+
+  private static final Logger logger = LoggerFactory.getLogger(PhotoDirectoryWatcher.class);
+
+  private final PhotosConfig config;
+
+  private final PhotoCatalog photoCatalog;
+
+  private final ThumbnailHasher thumbnailHasher;
+
+  private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+
+  private final AtomicBoolean overflow = new AtomicBoolean();
+
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+  private volatile boolean running;
+
+  private WatchService watchService;
+
+  private ScheduledExecutorService scheduler;
+
+  private ExecutorService indexer;
+
+  public PhotoDirectoryWatcher(PhotosConfig config, PhotoCatalog photoCatalog, ThumbnailHasher thumbnailHasher) {
+    this.config = config;
+    this.photoCatalog = photoCatalog;
+    this.thumbnailHasher = thumbnailHasher;
+  }
+
+  @Override
+  public void start() {
+    Path directory = config.getDirectoryPath();
+    if (!config.getWatch().isEnabled() || !Files.isDirectory(directory)) {
+      return;
+    }
+
+    try {
+      watchService = directory.getFileSystem().newWatchService();
+      directory.register(watchService,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY,
+          StandardWatchEventKinds.ENTRY_DELETE);
+    } catch (IOException e) {
+      logger.warn("Unable to watch photos directory {}, falling back to directory checks", directory, e);
+      return;
+    }
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("photo-watcher-scheduler"));
+    indexer = Executors.newSingleThreadExecutor(daemonThreads("photo-indexer"));
+    running = true;
+    photoCatalog.setWatched(true);
+
+    long rescanInterval = config.getWatch().getRescanIntervalSeconds();
+    if (rescanInterval > 0) {
+      scheduler.scheduleWithFixedDelay(this::rescan, rescanInterval, rescanInterval, TimeUnit.SECONDS);
+    }
+    daemonThreads("photo-watcher").newThread(() -> watch(directory)).start();
+    logger.info("Watching photos directory {}", directory);
+  }
+
+  @Override
+  public void stop() {
+    if (watchService == null) {
+      return;
+    }
+    running = false;
+    photoCatalog.setWatched(false);
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      logger.debug("Error closing watch service", e);
+    }
+    scheduler.shutdownNow();
+    indexer.shutdownNow();
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  private void watch(Path directory) {
+    try {
+      while (running) {
+        WatchKey key = watchService.take();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            overflowed();
+          } else {
+            changed(directory.resolve((Path) event.context()));
+          }
+        }
+        if (!key.reset()) {
+          logger.warn("Photos directory {} is no longer watched, falling back to directory checks", directory);
+          photoCatalog.setWatched(false);
+          running = false;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException e) {
+      // Stopped
+    }
+  }
+
+  /**
+   * Record a changed file, to be applied at the end of the debounce window.
+   *
+   * @param path The path of the created, modified or deleted file
+   */
+  void changed(Path path) {
+    pending.add(path);
+    scheduleFlush();
+  }
+
+  /**
+   * Record that change events were lost, so the directory is rescanned at the end of the debounce window.
+   */
+  void overflowed() {
+    overflow.set(true);
+    scheduleFlush();
+  }
+
+  /**
+   * Schedule a flush at the end of the current debounce window, unless one is already pending.
+   */
+  private void scheduleFlush() {
+    if (flushScheduled.compareAndSet(false, true)) {
+      scheduler.schedule(this::flush, config.getWatch().getDebounceMillis(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void flush() {
+    // Events arriving from here on start a new debounce window
+    flushScheduled.set(false);
+    if (overflow.getAndSet(false)) {
+      logger.info("Photo watch events overflowed, rescanning directory");
+      pending.clear();
+      rescan();
+      return;
+    }
+
+    List<Path> changed = new ArrayList<>();
+    for (Iterator<Path> iterator = pending.iterator(); iterator.hasNext(); ) {
+      changed.add(iterator.next());
+      iterator.remove();
+    }
+    if (changed.isEmpty()) {
+      return;
+    }
+
+    try {
+      photoCatalog.apply(changed);
+    } catch (RuntimeException e) {
+      logger.error("Error applying {} photo changes to the catalog", changed.size(), e);
+    }
+    index(changed);
+    logger.debug("Applied {} photo changes", changed.size());
+  }
+
+  /**
+   * Rescan the directory and index only the photos that changed since the last snapshot. A full warm-up is left to
+   * startup, so a rescan neither repeats work nor resets the warm-up progress.
+   */
+  private void rescan() {
+    try {
+      List<Path> changed = photoCatalog.reconcile();
+      index(changed);
+      if (!changed.isEmpty()) {
+        logger.info("Rescan found {} photo changes", changed.size());
+      }
+    } catch (RuntimeException e) {
+      logger.error("Error rescanning photos directory", e);
+    }
+  }
+
+  /**
+   * Forget what is known about changed photos and hash and thumbnail those that still exist in the background.
+   */
+  private void index(List<Path> changed) {
+    for (Path path : changed) {
+      if (FileFilter.isImageFile(path)) {
+        thumbnailHasher.invalidate(path.getFileName().toString());
+        if (Files.isRegularFile(path)) {
+          indexer.execute(() -> thumbnailHasher.process(path));
+        }
+      }
+    }
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
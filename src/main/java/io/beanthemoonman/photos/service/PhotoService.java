@@ -2,25 +2,34 @@ package io.beanthemoonman.photos.service;
 
 import io.beanthemoonman.photos.config.PhotosConfig;
 import io.beanthemoonman.photos.model.Photo;
+import io.beanthemoonman.photos.model.PhotoCursor;
+import io.beanthemoonman.photos.model.PhotoEntry;
 import io.beanthemoonman.photos.model.PhotoPage;
-import io.beanthemoonman.photos.utility.FileFilter;
+import io.beanthemoonman.photos.model.PhotoSort;
 import io.beanthemoonman.photos.utility.ThumbnailHasher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
-import static io.beanthemoonman.photos.utility.FileFilter.getNameWithoutExtension;
-import static io.beanthemoonman.photos.utility.Utility.bytesToSha256;
 import static io.beanthemoonman.photos.utility.Utility.createDirectoryIfNotExists;
 
 /**
@@ -31,22 +40,40 @@ public class PhotoService {
 
   private static final Logger logger = LoggerFactory.getLogger(PhotoService.class);
 
-  private static final String[] SUPPORTED_EXTENSIONS = { ".jpg", ".jpeg", ".png", ".gif" };
-
   private final PhotosConfig config;
 
   private final ThumbnailService thumbnailService;
 
   private final ThumbnailHasher thumbnailHasher;
 
+  private final ThumbnailCache thumbnailCache;
+
+  private final PhotoCatalog photoCatalog;
+
+  /**
+   * Receives the thumbnails of a batch as they become ready.
+   */
+  @FunctionalInterface
+  public interface ThumbnailConsumer {
+    void accept(String id, byte[] imageData) throws IOException;
+  }
+
+  private record Thumbnail(String id, byte[] imageData) {
+  }
+
   @Autowired
-  public PhotoService(PhotosConfig config, ThumbnailService thumbnailService, ThumbnailHasher thumbnailHasher) {
+  public PhotoService(PhotosConfig config,
+      ThumbnailService thumbnailService,
+      ThumbnailHasher thumbnailHasher,
+      ThumbnailCache thumbnailCache,
+      PhotoCatalog photoCatalog) {
     this.config = config;
     this.thumbnailService = thumbnailService;
     this.thumbnailHasher = thumbnailHasher;
+    this.thumbnailCache = thumbnailCache;
+    this.photoCatalog = photoCatalog;
 
     createDirectoryIfNotExists(config.getDirectoryPath());
-    createDirectoryIfNotExists(thumbnailHasher.getCacheDir());
   }
 
   /**
@@ -57,42 +84,93 @@ public class PhotoService {
    * @return A page of photos
    */
   public PhotoPage getPhotos(int page, int size) {
-    try {
-      List<Path> allPhotoPaths = listPhotoFiles();
-      int totalElements = allPhotoPaths.size();
-      int totalPages = (int) Math.ceil((double) totalElements / size);
-
-      // Adjust page if out of bounds
-      if (page < 0) {
-        page = 0;
-      } else if (page >= totalPages && totalPages > 0) {
-        page = totalPages - 1;
-      }
+    return getPhotos(page, size, PhotoSort.MODIFIED);
+  }
 
-      // Calculate start and end indices for the current page
-      int start = page * size;
-      int end = Math.min(start + size, totalElements);
+  /**
+   * Get a paginated list of photos in a sort order.
+   *
+   * @param page Page number (0-based)
+   * @param size Number of photos per page
+   * @param sort The sort order
+   * @return A page of photos
+   */
+  public PhotoPage getPhotos(int page, int size, PhotoSort sort) {
+    PhotoCatalog.Snapshot snapshot = photoCatalog.getSnapshot();
+    int totalElements = snapshot.size();
+    int totalPages = (int) Math.ceil((double) totalElements / size);
 
-      // Get photos for the current page
-      List<Photo> photos = new ArrayList<>();
-      if (start < totalElements) {
-        for (int i = start; i < end; i++) {
-          Path photoPath = allPhotoPaths.get(i);
-          String filename = photoPath.getFileName().toString();
+    // Adjust page if out of bounds
+    if (page < 0) {
+      page = 0;
+    } else if (page >= totalPages && totalPages > 0) {
+      page = totalPages - 1;
+    }
 
-          // Create URLs for thumbnail and full-size image
-          String thumbnailUrl = "/api/photos/" + filename + "/thumbnail";
-          String fullSizeUrl = "/api/photos/" + filename + "/full";
+    // Calculate start and end indices for the current page
+    int start = page * size;
+    int end = Math.min(start + size, totalElements);
 
-          photos.add(new Photo(filename, filename, thumbnailUrl, fullSizeUrl));
-        }
+    return toPage(snapshot, sort, start, end, page, size, totalPages);
+  }
+
+  /**
+   * Get the photos following a cursor. Unlike page numbers, a cursor refers to a position in the sort order rather
+   * than an offset, so photos added or removed while a client is scrolling neither duplicate nor skip photos.
+   *
+   * @param cursor The cursor of the previous page, or null or empty to start from the newest photo
+   * @param size   Number of photos per page
+   * @return A page of photos, with the cursor for the next page
+   * @throws IllegalArgumentException If the cursor is not valid
+   */
+  public PhotoPage getPhotosAfter(String cursor, int size) {
+    return getPhotosAfter(cursor, size, PhotoSort.MODIFIED);
+  }
+
+  /**
+   * Get the photos following a cursor in a sort order.
+   *
+   * @param cursor The cursor of the previous page in the same sort order, or null or empty to start from the beginning
+   * @param size   Number of photos per page
+   * @param sort   The sort order
+   * @return A page of photos, with the cursor for the next page
+   * @throws IllegalArgumentException If the cursor is not valid or was created for another sort order
+   */
+  public PhotoPage getPhotosAfter(String cursor, int size, PhotoSort sort) {
+    size = Math.max(1, size);
+    PhotoCatalog.Snapshot snapshot = photoCatalog.getSnapshot();
+    int start = 0;
+    if (cursor != null && !cursor.isEmpty()) {
+      PhotoCursor photoCursor = PhotoCursor.decode(cursor);
+      if (photoCursor.sort() != sort) {
+        throw new IllegalArgumentException("Cursor was created for sort order " + photoCursor.sort() + ", not " + sort);
       }
+      start = snapshot.indexAfter(photoCursor);
+    }
+    int end = Math.min(start + size, snapshot.size());
+    int totalPages = (int) Math.ceil((double) snapshot.size() / size);
 
-      return new PhotoPage(photos, page, size, totalPages, totalElements);
-    } catch (IOException e) {
-      logger.error("Error listing photos", e);
-      return new PhotoPage(new ArrayList<>(), page, size, 0, 0);
+    return toPage(snapshot, sort, start, end, start / size, size, totalPages);
+  }
+
+  private PhotoPage toPage(PhotoCatalog.Snapshot snapshot,
+      PhotoSort sort,
+      int start,
+      int end,
+      int page,
+      int size,
+      int totalPages) {
+    List<PhotoEntry> entries = snapshot.slice(sort, start, end);
+    List<Photo> photos = new ArrayList<>(entries.size());
+    for (PhotoEntry entry : entries) {
+      photos.add(toPhoto(entry.id(), entry.id()));
     }
+
+    PhotoPage photoPage = new PhotoPage(photos, page, size, totalPages, snapshot.size());
+    if (!entries.isEmpty() && end < snapshot.size()) {
+      photoPage.setNextCursor(snapshot.cursorAt(sort, start + entries.size() - 1).encode());
+    }
+    return photoPage;
   }
 
   /**
@@ -102,38 +180,74 @@ public class PhotoService {
    * @return The photo, or null if not found
    */
   public Photo getPhoto(String id) {
-    try {
-      Path photoPath = findPhotoById(id);
-      if (photoPath != null) {
-        String filename = photoPath.getFileName().toString();
-        String thumbnailUrl = "/api/photos/" + id + "/thumbnail";
-        String fullSizeUrl = "/api/photos/" + id + "/full";
+    Path photoPath = findPhotoById(id);
+    if (photoPath != null) {
+      return toPhoto(id, photoPath.getFileName().toString());
+    }
 
-        return new Photo(id, filename, thumbnailUrl, fullSizeUrl);
-      }
-    } catch (IOException e) {
-      logger.error("Error finding photo with id: {}", id, e);
+    return null;
+  }
+
+  /**
+   * Get the full-size image for a photo as a file-backed resource, so it can be streamed without buffering the whole
+   * file on the heap.
+   *
+   * @param id The photo ID (filename)
+   * @return The image resource, or null if not found
+   */
+  public Resource getFullSizeImage(String id) {
+    Path photoPath = findPhotoById(id);
+    if (photoPath != null) {
+      return new FileSystemResource(photoPath);
     }
 
     return null;
   }
 
   /**
-   * Get the full-size image data for a photo.
+   * Get the version of a photo's thumbnail, derived from the content hash of the photo and the thumbnail settings. The
+   * hash is computed if it is not cached yet.
    *
    * @param id The photo ID (filename)
-   * @return The image data as bytes, or null if not found
+   * @return The thumbnail version, or null if not found
    */
-  public byte[] getFullSizeImage(String id) {
+  public String getThumbnailVersion(String id) {
+    return getThumbnailVersion(id, null);
+  }
+
+  /**
+   * Get the version of a photo's thumbnail in the size that is served for the requested width.
+   *
+   * @param id    The photo ID (filename)
+   * @param width The requested width, or null for the default thumbnail
+   * @return The thumbnail version, or null if not found
+   */
+  public String getThumbnailVersion(String id, Integer width) {
     try {
       Path photoPath = findPhotoById(id);
       if (photoPath != null) {
-        return Files.readAllBytes(photoPath);
+        String photoHash = thumbnailHasher.hash(photoPath);
+        Integer size = width != null ? thumbnailService.selectSize(width) : null;
+        return size != null ? variantVersion(photoHash, size) : thumbnailVersion(photoHash);
       }
-    } catch (IOException e) {
-      logger.error("Error reading full-size image with id: {}", id, e);
+    } catch (IOException | NoSuchAlgorithmException e) {
+      logger.error("Error hashing image with id: {}", id, e);
     }
+    return null;
+  }
 
+  /**
+   * Get the version of a full-size photo, which is its content hash. Only an already cached hash is returned, so that
+   * serving a full-size image never requires an extra read of the file.
+   *
+   * @param id The photo ID (filename)
+   * @return The full-size version, or null if not found or not hashed yet
+   */
+  public String getFullSizeVersion(String id) {
+    Path photoPath = findPhotoById(id);
+    if (photoPath != null) {
+      return thumbnailHasher.getShaCache().get(photoPath.getFileName().toString());
+    }
     return null;
   }
 
@@ -145,90 +259,177 @@ public class PhotoService {
    * @return a byte array containing the thumbnail image, or null if an error occurs
    */
   public byte[] getThumbnailImage(String id) {
+    return getThumbnailImage(id, null);
+  }
+
+  /**
+   * Retrieves the thumbnail image for a requested width: the smallest configured derivative at least that wide, or the
+   * default thumbnail if no width is requested or no derivative sizes are configured.
+   *
+   * @param id    the unique identifier for the image
+   * @param width the requested width in pixels, or null for the default thumbnail
+   * @return a byte array containing the thumbnail image, or null if an error occurs
+   */
+  public byte[] getThumbnailImage(String id, Integer width) {
+    return getThumbnailImageAsync(id, width).join();
+  }
+
+  /**
+   * Retrieves the thumbnail image for a requested width without waiting for it to be generated. The photo is found,
+   * hashed and looked up in the cache on the calling thread; only a missing thumbnail is left to the resize pool.
+   *
+   * @param id    the unique identifier for the image
+   * @param width the requested width in pixels, or null for the default thumbnail
+   * @return a future of the thumbnail image, completed with null if the photo does not exist or an error occurs
+   */
+  public CompletableFuture<byte[]> getThumbnailImageAsync(String id, Integer width) {
+    CompletableFuture<byte[]> thumbnail;
     try {
-      var shaCache = thumbnailHasher.getShaCache();
       Path photoPath = findPhotoById(id);
-      if (photoPath != null) {
-        String photoHash;
-        if (shaCache.containsKey(id)) {
-          photoHash = shaCache.get(id);
-        } else {
-          photoHash = bytesToSha256(Files.readAllBytes(photoPath));
-          shaCache.put(id, photoHash);
-        }
-        Path cachePath = thumbnailHasher.getCacheDir().resolve(photoHash + ".jpg");
-        if (Files.exists(cachePath) && Files.isRegularFile(cachePath)) {
-          return Files.readAllBytes(cachePath);
-        } else {
-          byte[] imageData = thumbnailService.createThumbnail(photoPath);
-          Files.write(cachePath, imageData);
-          return imageData;
-        }
+      if (photoPath == null) {
+        return CompletableFuture.completedFuture(null);
       }
+      String photoHash = thumbnailHasher.hash(photoPath);
+      Integer size = width != null ? thumbnailService.selectSize(width) : null;
+      thumbnail = size != null
+          ? thumbnailCache.getAsync(photoHash, photoPath, size)
+          : thumbnailCache.getAsync(photoHash, photoPath);
     } catch (IOException | NoSuchAlgorithmException e) {
-      logger.error("Error creating thumbnail for image with id: {}", id, e);
+      thumbnail = CompletableFuture.failedFuture(e);
     }
-    return null;
+    return thumbnail.exceptionally(e -> {
+      Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+      if (cause instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      logger.error("Error creating thumbnail for image with id: {}", id, cause);
+      return null;
+    });
   }
 
   /**
-   * List all photo files in the configured directory.
+   * Check whether the thumbnail for a requested width can be served without generating it. Nothing is hashed or
+   * read, so a photo whose hash is not known yet counts as not cached.
    *
-   * @return A list of paths to photo files
-   * @throws IOException If an I/O error occurs
+   * @param id    the unique identifier for the image
+   * @param width the requested width in pixels, or null for the default thumbnail
+   * @return whether the thumbnail is cached; true for unknown photos, which are cheap to answer
    */
-  private List<Path> listPhotoFiles() throws IOException {
-    Path directoryPath = config.getDirectoryPath();
-    if (!Files.exists(directoryPath)) {
-      return new ArrayList<>();
+  public boolean isThumbnailCached(String id, Integer width) {
+    Path photoPath = findPhotoById(id);
+    if (photoPath == null) {
+      return true;
     }
-
-    try (Stream<Path> paths = Files.list(directoryPath)) {
-      return paths.filter(Files::isRegularFile)
-          .filter(FileFilter::isImageFile).sorted((path1, path2) -> {
-            try {
-              // Get the last modified time attribute for each file
-              // Use "lastModifiedTime" or "creationTime" based on your needs
-              long time1 = Files.getLastModifiedTime(path1).toMillis();
-              long time2 = Files.getLastModifiedTime(path2).toMillis();
-              // Sort in descending order (newest first)
-              return Long.compare(time2, time1);
-            } catch (IOException e) {
-              logger.error("Error comparing file timestamps", e);
-              return 0;
-            }
-          })
-          .collect(Collectors.toList());
+    String photoHash = thumbnailHasher.getShaCache().get(photoPath.getFileName().toString());
+    if (photoHash == null) {
+      return false;
     }
+    Integer size = width != null ? thumbnailService.selectSize(width) : null;
+    return thumbnailCache.contains(photoHash, size);
   }
 
   /**
-   * Find a photo by its ID (filename).
+   * Retrieves the thumbnails of several photos concurrently and hands each to the consumer on the calling thread as
+   * soon as it is ready, so that cached thumbnails are not held up by ones that still have to be generated. Photos
+   * without a thumbnail are skipped.
    *
-   * @param id The photo ID (filename)
-   * @return The path to the photo, or null if not found
-   * @throws IOException If an I/O error occurs
+   * @param ids      the unique identifiers of the images
+   * @param width    the requested width in pixels, or null for the default thumbnail
+   * @param consumer receives each thumbnail, in the order they become ready
+   * @throws IOException if the consumer fails, in which case the remaining thumbnails are abandoned
    */
-  private Path findPhotoById(String id) throws IOException {
-    Path directoryPath = config.getDirectoryPath();
-    Path photoPath = directoryPath.resolve(id);
+  public void getThumbnailImages(List<String> ids, Integer width, ThumbnailConsumer consumer) throws IOException {
+    // Cached thumbnails are cheap, but a batch of new photos must not start a decode on every core at once
+    Semaphore permits = new Semaphore(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    try {
+      CompletionService<Thumbnail> completionService = new ExecutorCompletionService<>(executor);
+      for (String id : ids) {
+        completionService.submit(() -> {
+          permits.acquire();
+          try {
+            return new Thumbnail(id, getThumbnailImage(id, width));
+          } catch (RuntimeException e) {
+            logger.error("Error creating thumbnail for image with id: {}", id, e);
+            return new Thumbnail(id, null);
+          } finally {
+            permits.release();
+          }
+        });
+      }
+      for (int i = 0; i < ids.size(); i++) {
+        Thumbnail thumbnail = completionService.take().get();
+        if (thumbnail.imageData() != null) {
+          consumer.accept(thumbnail.id(), thumbnail.imageData());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while loading thumbnails");
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Error loading thumbnails", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 
-    if (Files.exists(photoPath) && Files.isRegularFile(photoPath) && FileFilter.isImageFile(photoPath)) {
-      return photoPath;
+  /**
+   * Create a photo with its image URLs. If the content hash is already cached, the URLs are fingerprinted with the
+   * image versions so that clients may cache them forever.
+   */
+  private Photo toPhoto(String id, String filename) {
+    String thumbnailUrl = "/api/photos/" + id + "/thumbnail";
+    String fullSizeUrl = "/api/photos/" + id + "/full";
+
+    String photoHash = thumbnailHasher.getShaCache().get(filename);
+    if (photoHash != null) {
+      thumbnailUrl += "?v=" + thumbnailVersion(photoHash);
+      fullSizeUrl += "?v=" + photoHash;
     }
 
-    // If the exact filename wasn't found, try to find a file with the same name but different extension
-    try (Stream<Path> paths = Files.list(directoryPath)) {
-      return paths.filter(Files::isRegularFile)
-          .filter(FileFilter::isImageFile)
-          .filter(path -> {
-            String filename = path.getFileName().toString();
-            String nameWithoutExt = getNameWithoutExtension(filename);
-            return nameWithoutExt.equals(getNameWithoutExtension(id));
-          })
-          .findFirst()
-          .orElse(null);
+    Photo photo = new Photo(id, filename, thumbnailUrl, fullSizeUrl);
+    photo.setSrcset(srcset(id, photoHash));
+    return photo;
+  }
+
+  /**
+   * Build the srcset of a photo's derivatives. Each size is given as the width descriptor, which is exact for
+   * landscape photos and an upper bound for portrait ones.
+   */
+  private String srcset(String id, String photoHash) {
+    List<Integer> sizes = thumbnailService.getSizes();
+    if (sizes.isEmpty()) {
+      return null;
     }
+    StringJoiner srcset = new StringJoiner(", ");
+    for (int size : sizes) {
+      String url = "/api/photos/" + id + "/thumbnail?w=" + size;
+      if (photoHash != null) {
+        url += "&v=" + variantVersion(photoHash, size);
+      }
+      srcset.add(url + " " + size + "w");
+    }
+    return srcset.toString();
+  }
+
+  private String thumbnailVersion(String photoHash) {
+    return photoHash + "-" + thumbnailService.getFingerprint();
+  }
+
+  private String variantVersion(String photoHash, int size) {
+    return photoHash + "-" + thumbnailService.getFingerprint(size);
+  }
+
+  /**
+   * Find a photo by its ID (filename) in the catalog, falling back to a photo with the same name but a different
+   * extension. Only photos in the catalog are found, so the ID never reaches the file system.
+   *
+   * @param id The photo ID (filename)
+   * @return The path to the photo, or null if not found
+   */
+  private Path findPhotoById(String id) {
+    PhotoEntry entry = photoCatalog.getSnapshot().find(id);
+    return entry != null ? entry.path() : null;
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,491 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.utility.ByteCache;
+import io.beanthemoonman.photos.utility.CacheLedger;
+import io.beanthemoonman.photos.utility.PhotoMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Disk cache of generated thumbnails, keyed by the content hash of the photo, with a size-bounded in-memory tier in
+ * front of it for the thumbnails requested most often. Besides the default thumbnail, a photo has a derivative for
+ * each configured size, cached under the hash and the size. Missing derivatives of a photo are created together from a
+ * single decode, along with the default thumbnail when the warm-up needs both. The warm-up only creates derivatives up
+ * to {@link ThumbnailService#getWarmupSizes()}; a larger one is created when it is first requested.
+ * <p>
+ * Keys end in the fingerprint of the settings the thumbnail was made with ({@link ThumbnailService#getFingerprint()}),
+ * the same fingerprint that versions thumbnail URLs. Thumbnails are served as immutable, so after a settings change the
+ * cache must not answer a new URL with an old thumbnail; instead the new key misses and the old one is left for the
+ * garbage collection.
+ * <p>
+ * Generation is single-flight: while a thumbnail is being created, every other caller asking for the same key waits
+ * for the same result instead of decoding the photo again.
+ * <p>
+ * Thumbnails are generated on a bounded pool of platform threads, one per processor unless configured otherwise, so
+ * that the number of concurrent resizes does not follow the number of requests waiting for them. Callers on virtual
+ * threads can block on the result cheaply, and asynchronous callers can use the futures directly.
+ * <p>
+ * Thumbnails are kept on disk by a {@link ThumbnailStore}: a file per thumbnail by default, or appended to pack
+ * segments with {@code photos.cache.store=pack}.
+ */
+@Service
+public class ThumbnailCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(ThumbnailCache.class);
+
+  private static final String PACK_DIR = "pack";
+
+  private final ThumbnailService thumbnailService;
+
+  private final Path cacheDir;
+
+  private final ThumbnailStore store;
+
+  private final ByteCache memoryCache;
+
+  private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+  private final CacheLedger ledger = new CacheLedger();
+
+  private final Counter memoryHits;
+
+  private final Counter diskHits;
+
+  private final Counter generated;
+
+  private final Timer writeTimer;
+
+  private final Executor resizeExecutor;
+
+  @FunctionalInterface
+  private interface Generator<T> {
+    T generate() throws IOException;
+  }
+
+  @Autowired
+  public ThumbnailCache(ThumbnailService thumbnailService, PhotosConfig config, MeterRegistry meterRegistry) {
+    this(thumbnailService,
+        Paths.get(config.getCache().getDirectory()),
+        openStore(config.getCache(), thumbnailService.getFingerprint()),
+        new ByteCache(config.getThumbnail().getMemoryCacheMb() * 1024 * 1024,
+            config.getThumbnail().isMemoryCacheOffHeap()),
+        meterRegistry,
+        resizeExecutor(config.getThumbnail().getResizeThreads()));
+  }
+
+  /**
+   * Create a cache from its parts. Passing {@code Runnable::run} as the executor generates thumbnails on the calling
+   * thread.
+   */
+  ThumbnailCache(ThumbnailService thumbnailService,
+      Path cacheDir,
+      ThumbnailStore store,
+      ByteCache memoryCache,
+      MeterRegistry meterRegistry,
+      Executor resizeExecutor) {
+    this.thumbnailService = thumbnailService;
+    this.cacheDir = cacheDir;
+    this.store = store;
+    this.memoryCache = memoryCache;
+    this.resizeExecutor = resizeExecutor;
+    this.memoryHits = PhotoMetrics.thumbnailSource(meterRegistry, "memory");
+    this.diskHits = PhotoMetrics.thumbnailSource(meterRegistry, "disk");
+    this.generated = PhotoMetrics.thumbnailSource(meterRegistry, "generated");
+    this.writeTimer = PhotoMetrics.stage(meterRegistry, "write");
+  }
+
+  private static ThumbnailStore openStore(PhotosConfig.Cache config, String fingerprint) {
+    Path cacheDir = Paths.get(config.getDirectory());
+    if ("pack".equals(config.getStore())) {
+      try {
+        return PackThumbnailStore.open(cacheDir.resolve(PACK_DIR), config.getPackSegmentMb() * 1024 * 1024);
+      } catch (IOException e) {
+        logger.error("Failed to open the thumbnail pack segments, storing thumbnails as files instead", e);
+      }
+    }
+    return new FileThumbnailStore(cacheDir, fingerprint);
+  }
+
+  private static ExecutorService resizeExecutor(int threads) {
+    int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    return Executors.newFixedThreadPool(poolSize, Thread.ofPlatform().name("thumbnail-resize-", 0).daemon().factory());
+  }
+
+  @PreDestroy
+  public void close() {
+    if (resizeExecutor instanceof ExecutorService executorService) {
+      executorService.shutdownNow();
+    }
+    try {
+      store.close();
+    } catch (IOException e) {
+      logger.warn("Failed to close the thumbnail store", e);
+    }
+  }
+
+  /**
+   * Get the thumbnail for a photo, generating and caching it if it does not exist yet.
+   *
+   * @param photoHash The content hash of the photo
+   * @param photo     The path to the photo file
+   * @return The thumbnail image data
+   * @throws IOException If the thumbnail can neither be read nor generated
+   */
+  public byte[] get(String photoHash, Path photo) throws IOException {
+    return await(getAsync(photoHash, photo));
+  }
+
+  /**
+   * Get the thumbnail for a photo without waiting for it to be generated. Cached thumbnails are read on the calling
+   * thread and returned as a completed future.
+   *
+   * @param photoHash The content hash of the photo
+   * @param photo     The path to the photo file
+   * @return The thumbnail image data, completed exceptionally if it can neither be read nor generated
+   */
+  public CompletableFuture<byte[]> getAsync(String photoHash, Path photo) {
+    return cachedOrGenerate(key(photoHash), () -> generate(photoHash, photo, true));
+  }
+
+  /**
+   * Get a derivative of a photo in one of the configured sizes, generating and caching all missing derivatives of the
+   * photo if it does not exist yet.
+   *
+   * @param photoHash The content hash of the photo
+   * @param photo     The path to the photo file
+   * @param size      The derivative size, one of {@link ThumbnailService#getSizes()}
+   * @return The derivative image data
+   * @throws IOException If the derivative can neither be read nor generated
+   */
+  public byte[] get(String photoHash, Path photo, int size) throws IOException {
+    return await(getAsync(photoHash, photo, size));
+  }
+
+  /**
+   * Get a derivative of a photo in one of the configured sizes without waiting for it to be generated.
+   *
+   * @param photoHash The content hash of the photo
+   * @param photo     The path to the photo file
+   * @param size      The derivative size, one of the configured sizes
+   * @return The derivative image data, completed exceptionally if it can neither be read nor generated
+   * @throws IllegalArgumentException If the size is not configured
+   */
+  public CompletableFuture<byte[]> getAsync(String photoHash, Path photo, int size) {
+    if (!thumbnailService.getSizes().contains(size)) {
+      throw new IllegalArgumentException("Unsupported thumbnail size: " + size);
+    }
+    return cachedOrGenerate(variantKey(photoHash, size),
+        () -> generateVariants(photoHash, photo, sizesUpTo(size), false, true)
+            .thenApply(variants -> variants.get(size)));
+  }
+
+  /**
+   * Make sure the thumbnail and optionally the derivatives created by the warm-up are cached, without reading them if
+   * they already are. Whatever is missing is created from a single decode of the photo.
+   *
+   * @param photoHash   The content hash of the photo
+   * @param photo       The path to the photo file
+   * @param derivatives Whether to also ensure the derivatives of {@link ThumbnailService#getWarmupSizes()}
+   * @return Whether anything had to be generated
+   * @throws IOException If the thumbnails cannot be generated
+   */
+  public boolean ensure(String photoHash, Path photo, boolean derivatives) throws IOException {
+    List<Integer> sizes = derivatives ? thumbnailService.getWarmupSizes() : List.of();
+    boolean missingThumbnail = !store.contains(key(photoHash));
+    boolean missingVariants = false;
+    for (int size : sizes) {
+      if (!store.contains(variantKey(photoHash, size))) {
+        missingVariants = true;
+        break;
+      }
+    }
+    if (missingVariants) {
+      await(generateVariants(photoHash, photo, sizes, missingThumbnail, false));
+    }
+    // Also covers joining a generation of derivatives that did not include the thumbnail
+    if (missingThumbnail && !store.contains(key(photoHash))) {
+      await(generate(photoHash, photo, false));
+    }
+    return missingThumbnail || missingVariants;
+  }
+
+  /**
+   * Check whether a thumbnail is cached, without reading it.
+   *
+   * @param photoHash The content hash of the photo
+   * @param size      The derivative size, or null for the default thumbnail
+   * @return Whether the thumbnail can be served without generating it
+   */
+  public boolean contains(String photoHash, Integer size) {
+    try {
+      return store.contains(size != null ? variantKey(photoHash, size) : key(photoHash));
+    } catch (IOException e) {
+      logger.warn("Failed to look up thumbnail {}", photoHash, e);
+      return false;
+    }
+  }
+
+  /**
+   * Record the thumbnails on disk in the ledger. Thumbnails written or served meanwhile keep their newer records.
+   *
+   * @return The number of thumbnails found
+   * @throws IOException If the store cannot be listed
+   */
+  public int scan() throws IOException {
+    return store.scan(ledger);
+  }
+
+  /**
+   * Reclaim the space of deleted thumbnails in the store, if it keeps any.
+   *
+   * @return The number of bytes reclaimed on disk
+   * @throws IOException If the store cannot be compacted
+   */
+  public long compact() throws IOException {
+    return store.compact();
+  }
+
+  /**
+   * Remove a thumbnail from memory and disk. It is generated again if requested later.
+   *
+   * @param key The cache key, as recorded in the ledger
+   * @return The number of bytes reclaimed on disk
+   * @throws IOException If the file cannot be deleted
+   */
+  public long evict(String key) throws IOException {
+    memoryCache.invalidate(key);
+    store.delete(key);
+    return ledger.removed(key);
+  }
+
+  /**
+   * Check whether a cache key belongs to a thumbnail made with the current settings. Thumbnails made with earlier
+   * settings are never served again.
+   *
+   * @param key The cache key
+   * @return Whether the key is the current key of the default thumbnail or of a configured derivative
+   */
+  public boolean isCurrent(String key) {
+    String photoHash = photoHashOf(key);
+    if (key.equals(key(photoHash))) {
+      return true;
+    }
+    for (int size : thumbnailService.getSizes()) {
+      if (key.equals(variantKey(photoHash, size))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the content hash of the photo a cache key belongs to.
+   *
+   * @param key The cache key
+   * @return The content hash
+   */
+  public static String photoHashOf(String key) {
+    int separator = key.indexOf('-');
+    return separator >= 0 ? key.substring(0, separator) : key;
+  }
+
+  public CacheLedger getLedger() {
+    return ledger;
+  }
+
+  public Path getCacheDir() {
+    return cacheDir;
+  }
+
+  public ByteCache.Stats getMemoryStats() {
+    return memoryCache.stats();
+  }
+
+  private String key(String photoHash) {
+    return photoHash + "-" + thumbnailService.getFingerprint();
+  }
+
+  private String variantKey(String photoHash, int size) {
+    return photoHash + "-" + size + "-" + thumbnailService.getFingerprint(size);
+  }
+
+  private byte[] read(String key) throws IOException {
+    return store.read(key);
+  }
+
+  /**
+   * Answer from memory or disk on the calling thread, and only go to the resize pool on a miss.
+   */
+  private CompletableFuture<byte[]> cachedOrGenerate(String key, Supplier<CompletableFuture<byte[]>> generator) {
+    byte[] cached = memoryCache.get(key);
+    if (cached != null) {
+      memoryHits.increment();
+      ledger.served(key, System.currentTimeMillis());
+      return CompletableFuture.completedFuture(cached);
+    }
+    try {
+      cached = read(key);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    if (cached != null) {
+      diskHits.increment();
+      ledger.served(key, System.currentTimeMillis());
+      memoryCache.put(key, cached);
+      return CompletableFuture.completedFuture(cached);
+    }
+    return generator.get().thenApply(imageData -> {
+      memoryCache.put(key, imageData);
+      return imageData;
+    });
+  }
+
+  /**
+   * Generate the default thumbnail. Only the caller whose generator runs counts a request towards the generated
+   * thumbnails; callers that join it were not the ones to generate anything.
+   */
+  private CompletableFuture<byte[]> generate(String photoHash, Path photo, boolean request) {
+    String key = key(photoHash);
+    return singleFlight(key, () -> {
+      // Another caller may have finished generating between our cache miss and claiming the key
+      byte[] imageData = read(key);
+      if (imageData == null) {
+        imageData = thumbnailService.createThumbnail(photo);
+        write(key, imageData);
+        if (request) {
+          generated.increment();
+        }
+      }
+      return imageData;
+    });
+  }
+
+  /**
+   * Create the missing derivatives among the given sizes, and optionally the default thumbnail, from one decode.
+   * Generations are shared by the largest size, so a request joins the warm-up of the same photo rather than decoding
+   * it again. Like {@link #generate(String, Path, boolean)}, only a request that runs the generation counts it.
+   */
+  private CompletableFuture<Map<Integer, byte[]>> generateVariants(String photoHash,
+      Path photo,
+      List<Integer> sizes,
+      boolean withThumbnail,
+      boolean request) {
+    int largest = sizes.isEmpty() ? 0 : sizes.getLast();
+    return singleFlight(photoHash + "-variants-" + largest, () -> {
+      Map<Integer, byte[]> variants = new HashMap<>();
+      List<Integer> missing = new ArrayList<>();
+      for (int size : sizes) {
+        byte[] imageData = read(variantKey(photoHash, size));
+        if (imageData != null) {
+          variants.put(size, imageData);
+        } else {
+          missing.add(size);
+        }
+      }
+      boolean missingThumbnail = withThumbnail && !store.contains(key(photoHash));
+      if (missingThumbnail) {
+        ThumbnailService.Renditions created = thumbnailService.createRenditions(photo, true, missing);
+        write(key(photoHash), created.thumbnail());
+        writeVariants(photoHash, created.derivatives(), variants);
+      } else if (!missing.isEmpty()) {
+        writeVariants(photoHash, thumbnailService.createThumbnails(photo, missing), variants);
+      }
+      if (request && (missingThumbnail || !missing.isEmpty())) {
+        generated.increment();
+      }
+      return variants;
+    });
+  }
+
+  private void writeVariants(String photoHash, Map<Integer, byte[]> created, Map<Integer, byte[]> variants)
+      throws IOException {
+    for (Map.Entry<Integer, byte[]> derivative : created.entrySet()) {
+      write(variantKey(photoHash, derivative.getKey()), derivative.getValue());
+      variants.put(derivative.getKey(), derivative.getValue());
+    }
+  }
+
+  /**
+   * Get the sizes to create along with a requested one: those of the warm-up, and any larger ones up to the request.
+   * The largest sizes are only created once they are asked for.
+   */
+  private List<Integer> sizesUpTo(int size) {
+    List<Integer> warmupSizes = thumbnailService.getWarmupSizes();
+    int bound = Math.max(size, warmupSizes.isEmpty() ? 0 : warmupSizes.getLast());
+    return thumbnailService.getSizes().stream().filter(candidate -> candidate <= bound).toList();
+  }
+
+  /**
+   * Run a generator on the resize pool exactly once per key, no matter how many callers ask for it concurrently.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> CompletableFuture<T> singleFlight(String key, Generator<T> generator) {
+    CompletableFuture<Object> future = new CompletableFuture<>();
+    CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      return (CompletableFuture<T>) existing;
+    }
+
+    Runnable task = () -> {
+      try {
+        future.complete(generator.generate());
+      } catch (IOException | RuntimeException e) {
+        future.completeExceptionally(e);
+      } finally {
+        inFlight.remove(key, future);
+      }
+    };
+    try {
+      resizeExecutor.execute(task);
+    } catch (RejectedExecutionException e) {
+      inFlight.remove(key, future);
+      future.completeExceptionally(e);
+    }
+    return (CompletableFuture<T>) future;
+  }
+
+  private void write(String key, byte[] imageData) throws IOException {
+    Timer.Sample sample = Timer.start();
+    store.write(key, imageData);
+    sample.stop(writeTimer);
+    ledger.written(key, imageData.length, System.currentTimeMillis());
+  }
+
+  private static <T> T await(CompletableFuture<T> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException cause) {
+        throw cause;
+      }
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.utility.CacheLedger;
+import io.beanthemoonman.photos.utility.PhotoMetrics;
+import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Garbage collects the thumbnail disk cache in the background.
+ * <p>
+ * The cache directory is listed once at startup to fill the {@link CacheLedger}; after that, the cache keeps the ledger
+ * current as thumbnails are written and served, and each pass works from the ledger alone. A pass deletes the
+ * thumbnails of photos that are no longer in the library, and those made with earlier thumbnail settings, then, while
+ * the cache is over its byte budget, the thumbnails served least recently. Each pass deletes at most a batch of files
+ * and leaves the rest to the next one.
+ * <p>
+ * Orphans are only collected once the warm-up has hashed the whole library, since until then a missing hash may just
+ * be one that has not been computed yet. A pass ends by compacting the store, for stores that need it to reclaim the
+ * space of deleted thumbnails.
+ */
+@Component
+public class ThumbnailCacheManager implements SmartLifecycle {
+
+  private static final Logger logger = LoggerFactory.getLogger(ThumbnailCacheManager.class);
+
+  private static final long MEGABYTE = 1024 * 1024;
+
+  private final PhotosConfig config;
+
+  private final ThumbnailCache thumbnailCache;
+
+  private final ThumbnailHasher thumbnailHasher;
+
+  private final Counter orphanBytes;
+
+  private final Counter budgetBytes;
+
+  private final Counter compactedBytes;
+
+  private volatile boolean scanned;
+
+  private volatile boolean running;
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * The outcome of a garbage collection pass.
+   *
+   * @param orphans      the number of thumbnails deleted because their photo is gone
+   * @param orphanBytes  the bytes reclaimed from them
+   * @param evicted      the number of thumbnails deleted to get under the budget
+   * @param evictedBytes the bytes reclaimed from them
+   * @param compacted    the bytes the store reclaimed by compaction
+   */
+  public record Reclaimed(int orphans, long orphanBytes, int evicted, long evictedBytes, long compacted) {
+
+    /**
+     * Get the bytes of the deleted thumbnails and those freed by compaction. In a pack store, the space of a deleted
+     * thumbnail is counted once when it is deleted and once more when compaction returns it to the file system.
+     *
+     * @return the bytes reclaimed by the pass
+     */
+    public long totalBytes() {
+      return orphanBytes + evictedBytes + compacted;
+    }
+  }
+
+  public ThumbnailCacheManager(PhotosConfig config,
+      ThumbnailCache thumbnailCache,
+      ThumbnailHasher thumbnailHasher,
+      MeterRegistry meterRegistry) {
+    this.config = config;
+    this.thumbnailCache = thumbnailCache;
+    this.thumbnailHasher = thumbnailHasher;
+    this.orphanBytes = PhotoMetrics.cacheReclaimed(meterRegistry, "orphan");
+    this.budgetBytes = PhotoMetrics.cacheReclaimed(meterRegistry, "budget");
+    this.compactedBytes = PhotoMetrics.cacheReclaimed(meterRegistry, "compaction");
+    Gauge.builder("photos.cache.disk.size", thumbnailCache.getLedger(), CacheLedger::getTotalBytes)
+        .description("Bytes of thumbnails on disk")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public void start() {
+    long interval = config.getCache().getGcIntervalSeconds();
+    if (interval <= 0) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+        .name("thumbnail-cache-gc")
+        .daemon()
+        .factory());
+    scheduler.execute(this::scan);
+    scheduler.scheduleWithFixedDelay(this::collectQuietly, interval, interval, TimeUnit.SECONDS);
+    running = true;
+  }
+
+  @Override
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+    running = false;
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Fill the ledger from the cache directory. Garbage collection waits for it, so that the budget is checked against
+   * the whole cache.
+   */
+  void scan() {
+    try {
+      long start = System.nanoTime();
+      int found = thumbnailCache.scan();
+      scanned = true;
+      logger.info("Found {} thumbnails taking {} MB in the cache in {} ms",
+          found,
+          thumbnailCache.getLedger().getTotalBytes() / MEGABYTE,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    } catch (IOException e) {
+      logger.warn("Failed to list the thumbnail cache, it will not be garbage collected", e);
+    }
+  }
+
+  /**
+   * Run one garbage collection pass.
+   *
+   * @return what was deleted
+   * @throws IOException If a thumbnail cannot be deleted
+   */
+  public Reclaimed collect() throws IOException {
+    CacheLedger ledger = thumbnailCache.getLedger();
+    int batch = config.getCache().getGcBatchSize();
+
+    int orphans = 0;
+    long orphaned = 0;
+    if (!thumbnailHasher.isWarmingUp() && thumbnailHasher.getProgress().isFinished()) {
+      Set<String> live = new HashSet<>(thumbnailHasher.getShaCache().values());
+      for (CacheLedger.Candidate candidate : ledger.matching(key -> !live.contains(ThumbnailCache.photoHashOf(key))
+          || !thumbnailCache.isCurrent(key), batch)) {
+        orphaned += thumbnailCache.evict(candidate.key());
+        orphans++;
+      }
+    }
+
+    int evicted = 0;
+    long evictedBytes = 0;
+    long budget = config.getCache().getMaxSizeMb() * MEGABYTE;
+    if (budget > 0 && ledger.getTotalBytes() > budget) {
+      for (CacheLedger.Candidate candidate : ledger.leastRecentlyServed(batch - orphans)) {
+        if (ledger.getTotalBytes() <= budget) {
+          break;
+        }
+        evictedBytes += thumbnailCache.evict(candidate.key());
+        evicted++;
+      }
+    }
+
+    long compacted = thumbnailCache.compact();
+
+    orphanBytes.increment(orphaned);
+    budgetBytes.increment(evictedBytes);
+    compactedBytes.increment(compacted);
+    return new Reclaimed(orphans, orphaned, evicted, evictedBytes, compacted);
+  }
+
+  private void collectQuietly() {
+    if (!scanned) {
+      return;
+    }
+    try {
+      Reclaimed reclaimed = collect();
+      if (reclaimed.totalBytes() > 0) {
+        logger.info("Reclaimed {} KB from the thumbnail cache: {} orphaned and {} least recently served thumbnails, "
+                + "{} KB compacted, {} MB remain",
+            reclaimed.totalBytes() / 1024,
+            reclaimed.orphans(),
+            reclaimed.evicted(),
+            reclaimed.compacted() / 1024,
+            thumbnailCache.getLedger().getTotalBytes() / MEGABYTE);
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Thumbnail cache garbage collection failed", e);
+    }
+  }
+}
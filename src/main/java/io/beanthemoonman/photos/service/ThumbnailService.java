@@ -1,31 +1,425 @@
 package io.beanthemoonman.photos.service;
 
 import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.utility.Exif;
+import io.beanthemoonman.photos.utility.PhotoMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import net.coobird.thumbnailator.Thumbnails;
+import net.coobird.thumbnailator.util.exif.ExifFilterUtils;
+import net.coobird.thumbnailator.util.exif.Orientation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
 
 @Service
 public class ThumbnailService {
 
+  private static final Logger logger = LoggerFactory.getLogger(ThumbnailService.class);
+
+  private static final long MEGABYTE = 1024 * 1024;
+
+  /**
+   * Version of the thumbnail pipeline, part of every fingerprint. Bump it when a code change alters the thumbnail
+   * output, so that thumbnails cached by an older version are generated again.
+   */
+  private static final int PIPELINE_VERSION = 2;
+
+  /**
+   * How many times the target resolution a subsampled decode keeps at least, so that the final downscale can still
+   * smooth out the aliasing.
+   */
+  private static final int SUBSAMPLING_MARGIN = 2;
+
   private final PhotosConfig config;
 
-  public ThumbnailService(PhotosConfig config) {
+  /**
+   * Megabytes of decoded pixels that may be held at once. Each thumbnail acquires its estimated decode size before
+   * reading the image, so concurrent decodes of large originals wait instead of exhausting the heap.
+   */
+  private final Semaphore decodeBudget;
+
+  private final int decodeBudgetMb;
+
+  private final List<Integer> sizes;
+
+  private final List<Integer> warmupSizes;
+
+  private final String fingerprint;
+
+  private final Timer decodeTimer;
+
+  private final Timer resizeTimer;
+
+  private final Timer encodeTimer;
+
+  public ThumbnailService(PhotosConfig config, MeterRegistry meterRegistry) {
     this.config = config;
+    this.decodeTimer = PhotoMetrics.stage(meterRegistry, "decode");
+    this.resizeTimer = PhotoMetrics.stage(meterRegistry, "resize");
+    this.encodeTimer = PhotoMetrics.stage(meterRegistry, "encode");
+    this.sizes = config.getThumbnail().getSizes().stream().filter(size -> size > 0).distinct().sorted().toList();
+    int warmupMaxSize = config.getWarmup().getMaxSize();
+    this.warmupSizes = warmupMaxSize > 0 ? sizes.stream().filter(size -> size <= warmupMaxSize).toList() : sizes;
+    this.fingerprint = fingerprint(config.getThumbnail().getWidth() + "x" + config.getThumbnail().getHeight());
+    long budgetMb = config.getThumbnail().getDecodeMemoryMb();
+    if (budgetMb <= 0) {
+      budgetMb = Runtime.getRuntime().maxMemory() / 4 / MEGABYTE;
+    }
+    this.decodeBudgetMb = Math.clamp(budgetMb, 1, Integer.MAX_VALUE);
+    this.decodeBudget = new Semaphore(decodeBudgetMb, true);
+  }
+
+  /**
+   * Get a short fingerprint of the thumbnail settings. It changes whenever the settings change the thumbnail output,
+   * so it can be combined with a photo's content hash to version its thumbnail, both in URLs and in the cache.
+   *
+   * @return The fingerprint as a hexadecimal string
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * Get a short fingerprint of a derivative size, used like {@link #getFingerprint()} to version derivatives.
+   *
+   * @param size The derivative size
+   * @return The fingerprint as a hexadecimal string
+   */
+  public String getFingerprint(int size) {
+    return fingerprint(size + "w");
+  }
+
+  /**
+   * Fingerprint an output size together with every setting that affects the image: the pipeline version, the output
+   * format, whether embedded previews are used and how far decoding may subsample.
+   */
+  private String fingerprint(String size) {
+    String settings = "v" + PIPELINE_VERSION
+        + ":jpg:" + size
+        + ":preview=" + config.getThumbnail().isEmbeddedPreview()
+        + ":subsampling=" + SUBSAMPLING_MARGIN;
+    return Integer.toHexString(settings.hashCode());
+  }
+
+  /**
+   * Get the configured derivative sizes.
+   *
+   * @return The sizes in ascending order, empty if only the default thumbnail is offered
+   */
+  public List<Integer> getSizes() {
+    return sizes;
+  }
+
+  /**
+   * Get the derivative sizes created ahead of requests by the warm-up. Larger sizes, mostly wanted by the full screen
+   * view, are only created when first requested.
+   *
+   * @return The sizes in ascending order, a prefix of {@link #getSizes()}
+   */
+  public List<Integer> getWarmupSizes() {
+    return warmupSizes;
+  }
+
+  /**
+   * Pick the derivative size to serve for a requested width: the smallest size at least as large, or the largest size
+   * if none is.
+   *
+   * @param width The requested width in pixels
+   * @return The derivative size, or null if no derivative sizes are configured
+   */
+  public Integer selectSize(int width) {
+    for (int size : sizes) {
+      if (size >= width) {
+        return size;
+      }
+    }
+    return sizes.isEmpty() ? null : sizes.getLast();
   }
 
   public byte[] createThumbnail(Path imagePath) throws IOException {
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    int width = config.getThumbnail().getWidth();
+    int height = config.getThumbnail().getHeight();
+    Decoded decoded = timedDecode(imagePath, width, height);
+    try {
+      return thumbnail(decoded.image(), width, height);
+    } finally {
+      decodeBudget.release(decoded.permits());
+    }
+  }
+
+  /**
+   * The default thumbnail and derivatives of an image created together.
+   *
+   * @param thumbnail   The JPEG data of the default thumbnail, or null if it was not asked for
+   * @param derivatives The JPEG data of each derivative by size
+   */
+  public record Renditions(byte[] thumbnail, Map<Integer, byte[]> derivatives) {
+  }
+
+  /**
+   * Create derivatives of an image in several sizes from a single decode of the original. Each derivative fits within
+   * a square of its size with the aspect ratio kept, and is never scaled up beyond the original. Smaller derivatives
+   * are scaled down from the next larger one rather than from the original.
+   *
+   * @param imagePath The image
+   * @param sizes     The derivative sizes to create
+   * @return The JPEG data of each derivative by size
+   * @throws IOException If the image cannot be read
+   */
+  public Map<Integer, byte[]> createThumbnails(Path imagePath, Collection<Integer> sizes) throws IOException {
+    return createRenditions(imagePath, false, sizes).derivatives();
+  }
+
+  /**
+   * Create derivatives of an image like {@link #createThumbnails(Path, Collection)}, and optionally the default
+   * thumbnail from the same decode. The default thumbnail is scaled from the smallest derivative that still covers its
+   * box, or from the decoded original.
+   *
+   * @param imagePath     The image
+   * @param withThumbnail Whether to create the default thumbnail as well
+   * @param sizes         The derivative sizes to create
+   * @return The default thumbnail, if asked for, and the derivatives by size
+   * @throws IOException If the image cannot be read
+   */
+  public Renditions createRenditions(Path imagePath, boolean withThumbnail, Collection<Integer> sizes)
+      throws IOException {
+    int width = config.getThumbnail().getWidth();
+    int height = config.getThumbnail().getHeight();
+    int largest = sizes.stream().mapToInt(Integer::intValue).max().orElse(0);
+    Decoded decoded = withThumbnail
+        ? timedDecode(imagePath, Math.max(largest, width), Math.max(largest, height))
+        : timedDecode(imagePath, largest, largest);
+    try {
+      BufferedImage source = decoded.image();
+      int originalSize = Math.max(source.getWidth(), source.getHeight());
+
+      byte[] thumbnail = null;
+      Map<Integer, byte[]> derivatives = new TreeMap<>();
+      for (int size : sizes.stream().sorted(Collections.reverseOrder()).toList()) {
+        if (withThumbnail && thumbnail == null && size < Math.max(width, height)) {
+          // The next derivative no longer covers the box of the default thumbnail
+          thumbnail = thumbnail(source, width, height);
+        }
+        int bound = Math.min(size, originalSize);
+        Timer.Sample resize = Timer.start();
+        source = Thumbnails.of(source).size(bound, bound).keepAspectRatio(true).asBufferedImage();
+        resize.stop(resizeTimer);
+
+        derivatives.put(size, encode(source));
+      }
+      if (withThumbnail && thumbnail == null) {
+        thumbnail = thumbnail(source, width, height);
+      }
+      return new Renditions(thumbnail, derivatives);
+    } finally {
+      decodeBudget.release(decoded.permits());
+    }
+  }
 
-    Thumbnails.of(imagePath.toFile())
-        .size(config.getThumbnail().getWidth(), config.getThumbnail().getHeight())
+  private byte[] thumbnail(BufferedImage image, int width, int height) throws IOException {
+    Timer.Sample resize = Timer.start();
+    BufferedImage thumbnail = Thumbnails.of(image)
+        .size(width, height)
         .keepAspectRatio(true)
-        .outputFormat("jpg")
-        .toOutputStream(outputStream);
+        .asBufferedImage();
+    resize.stop(resizeTimer);
+
+    return encode(thumbnail);
+  }
 
+  private Decoded timedDecode(Path imagePath, int width, int height) throws IOException {
+    Timer.Sample sample = Timer.start();
+    Decoded decoded = decode(imagePath, width, height);
+    sample.stop(decodeTimer);
+    return decoded;
+  }
+
+  private byte[] encode(BufferedImage image) throws IOException {
+    Timer.Sample sample = Timer.start();
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    Thumbnails.of(image).scale(1.0).outputFormat("jpg").toOutputStream(outputStream);
+    sample.stop(encodeTimer);
     return outputStream.toByteArray();
   }
-}
\ No newline at end of file
+
+  /**
+   * A decoded image in display orientation, holding permits of the decode budget until released.
+   */
+  private record Decoded(BufferedImage image, int permits) {
+  }
+
+  /**
+   * Decode an image no larger than needed to scale it into the given box.
+   * <p>
+   * The dimensions are read from the header first. If the EXIF thumbnail or the large MPF preview is large enough,
+   * that is used and the image data is never read. Otherwise the reader skips pixels while decoding (source
+   * subsampling), keeping at least {@link #SUBSAMPLING_MARGIN} times the target resolution so that the final downscale
+   * can still smooth out the aliasing. A 60 MP original for a 400 pixel thumbnail is decoded at about 1 MP instead of
+   * in full. The EXIF orientation is applied afterwards. Images that ImageIO cannot read this way are decoded in full
+   * by Thumbnailator.
+   * <p>
+   * The caller must release the returned permits.
+   */
+  private Decoded decode(Path imagePath, int boxWidth, int boxHeight) throws IOException {
+    try (ImageInputStream input = ImageIO.createImageInputStream(imagePath.toFile())) {
+      Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : Collections.emptyIterator();
+      if (readers.hasNext()) {
+        ImageReader reader = readers.next();
+        try {
+          reader.setInput(input, true, true);
+          Exif exif = "jpeg".equalsIgnoreCase(reader.getFormatName()) ? Exif.read(imagePath) : Exif.NONE;
+          int width = reader.getWidth(0);
+          int height = reader.getHeight(0);
+          if (config.getThumbnail().isEmbeddedPreview()) {
+            BufferedImage preview = embeddedPreview(imagePath, exif, width, height, boxWidth, boxHeight);
+            if (preview != null) {
+              int permits = acquire((long) preview.getWidth() * preview.getHeight() * 4 / MEGABYTE + 1);
+              return new Decoded(orient(preview, exif), permits);
+            }
+          }
+
+          int subsampling = exif.isTransposed()
+              ? subsampling(height, width, boxWidth, boxHeight)
+              : subsampling(width, height, boxWidth, boxHeight);
+
+          long pixels = (long) Math.ceilDiv(width, subsampling) * Math.ceilDiv(height, subsampling);
+          int permits = acquire(pixels * 4 / MEGABYTE + 1);
+          try {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return new Decoded(orient(reader.read(0, param), exif), permits);
+          } catch (IOException | RuntimeException e) {
+            decodeBudget.release(permits);
+            logger.debug("Unable to decode {} with subsampling, decoding it in full", imagePath.getFileName(), e);
+          }
+        } catch (IOException e) {
+          logger.debug("Unable to read image header of {}", imagePath.getFileName(), e);
+        } finally {
+          reader.dispose();
+        }
+      }
+    }
+
+    // Without a usable header, the file size is a rough stand-in for the decoded size of a compressed image
+    int permits = acquire(Files.size(imagePath) * 10 / MEGABYTE + 1);
+    try {
+      return new Decoded(Thumbnails.of(imagePath.toFile()).scale(1.0).asBufferedImage(), permits);
+    } catch (IOException | RuntimeException e) {
+      decodeBudget.release(permits);
+      throw e;
+    }
+  }
+
+  /**
+   * Decode an image embedded by the camera if one can stand in for the original. The small EXIF thumbnail is tried
+   * first as it is already in memory, then the large preview that the MPF index locates after the image data.
+   *
+   * @return The embedded image, or null if there is none or none is suitable
+   */
+  private BufferedImage embeddedPreview(Path imagePath, Exif exif, int width, int height, int boxWidth,
+      int boxHeight) {
+    if (boxWidth <= 0 || boxHeight <= 0) {
+      return null;
+    }
+    BufferedImage thumbnail = decodePreview(exif.getThumbnail(), exif, width, height, boxWidth, boxHeight);
+    if (thumbnail != null || !exif.hasPreview()) {
+      return thumbnail;
+    }
+    try {
+      return decodePreview(exif.readPreview(imagePath), exif, width, height, boxWidth, boxHeight);
+    } catch (IOException e) {
+      logger.debug("Unable to read embedded preview of {}", imagePath.getFileName(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Decode an embedded image if it can stand in for the original: it has to be large enough to fill the box without
+   * scaling up, and have the aspect ratio of the original, as some cameras letterbox it. Its dimensions are checked
+   * before it is decoded.
+   *
+   * @return The embedded image, or null if there is none or it is not suitable
+   */
+  private BufferedImage decodePreview(byte[] data, Exif exif, int width, int height, int boxWidth, int boxHeight) {
+    if (data == null) {
+      return null;
+    }
+
+    try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        int previewWidth = reader.getWidth(0);
+        int previewHeight = reader.getHeight(0);
+
+        // The embedded image is stored like the original, so compare against the box in stored orientation
+        int storedBoxWidth = exif.isTransposed() ? boxHeight : boxWidth;
+        int storedBoxHeight = exif.isTransposed() ? boxWidth : boxHeight;
+        double scale = Math.min(1, Math.min((double) storedBoxWidth / width, (double) storedBoxHeight / height));
+        boolean largeEnough = previewWidth >= Math.floor(width * scale) && previewHeight >= Math.floor(height * scale);
+        double aspectRatio = (double) width / height;
+        boolean sameAspectRatio = Math.abs((double) previewWidth / previewHeight - aspectRatio) <= aspectRatio / 100;
+        if (!largeEnough || !sameAspectRatio) {
+          return null;
+        }
+        return reader.read(0);
+      } finally {
+        reader.dispose();
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.debug("Unable to read embedded image", e);
+      return null;
+    }
+  }
+
+  private static BufferedImage orient(BufferedImage image, Exif exif) {
+    if (exif.getOrientation() == 1) {
+      return image;
+    }
+    return ExifFilterUtils.getFilterForOrientation(Orientation.typeOf(exif.getOrientation())).apply(image);
+  }
+
+  /**
+   * Acquire permits of the decode budget. A single image larger than the whole budget still gets to run, but alone.
+   */
+  private int acquire(long megabytes) {
+    int permits = (int) Math.min(decodeBudgetMb, megabytes);
+    decodeBudget.acquireUninterruptibly(permits);
+    return permits;
+  }
+
+  /**
+   * Get the largest subsampling factor that keeps an image of the given display size at least
+   * {@link #SUBSAMPLING_MARGIN} times as large as it will be when scaled into the box.
+   */
+  static int subsampling(int width, int height, int boxWidth, int boxHeight) {
+    if (boxWidth <= 0 || boxHeight <= 0) {
+      return 1;
+    }
+    double downscale = Math.max((double) width / boxWidth, (double) height / boxHeight);
+    return Math.max(1, (int) (downscale / SUBSAMPLING_MARGIN));
+  }
+}
@@ -0,0 +1,72 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.utility.CacheLedger;
+
+import java.io.IOException;
+
+/**
+ * Storage backend of the thumbnail disk cache. Thumbnails are immutable and addressed by their cache key, the content
+ * hash of the photo optionally followed by the derivative size, so a key is never written with different contents.
+ * Implementations must be safe for concurrent use.
+ */
+public interface ThumbnailStore extends AutoCloseable {
+
+  /**
+   * Read a thumbnail.
+   *
+   * @param key The cache key
+   * @return The thumbnail image data, or null if it is not stored
+   * @throws IOException If the thumbnail cannot be read
+   */
+  byte[] read(String key) throws IOException;
+
+  /**
+   * Check whether a thumbnail is stored, without reading it.
+   *
+   * @param key The cache key
+   * @return Whether the thumbnail is stored
+   * @throws IOException If the store cannot be checked
+   */
+  boolean contains(String key) throws IOException;
+
+  /**
+   * Store a thumbnail, replacing any stored under the same key. Readers never see it partially written.
+   *
+   * @param key       The cache key
+   * @param imageData The thumbnail image data
+   * @throws IOException If the thumbnail cannot be written
+   */
+  void write(String key, byte[] imageData) throws IOException;
+
+  /**
+   * Delete a thumbnail. Deleting a thumbnail that is not stored does nothing.
+   *
+   * @param key The cache key
+   * @throws IOException If the thumbnail cannot be deleted
+   */
+  void delete(String key) throws IOException;
+
+  /**
+   * Record every stored thumbnail in a ledger, with its size and the time it was written.
+   *
+   * @param ledger The ledger to fill
+   * @return The number of thumbnails found
+   * @throws IOException If the store cannot be listed
+   */
+  int scan(CacheLedger ledger) throws IOException;
+
+  /**
+   * Reclaim the space taken by deleted and replaced thumbnails, if the store keeps any. Called periodically by the
+   * cache garbage collection.
+   *
+   * @return The number of bytes reclaimed
+   * @throws IOException If the store cannot be compacted
+   */
+  default long compact() throws IOException {
+    return 0;
+  }
+
+  @Override
+  default void close() throws IOException {
+  }
+}
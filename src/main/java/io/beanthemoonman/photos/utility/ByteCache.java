@@ -0,0 +1,233 @@
+package io.beanthemoonman.photos.utility;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory cache of byte arrays bounded by their total size rather than by the number of entries.
+ * <p>
+ * Entries are kept in least-recently-used order. When the cache is full, a new entry is only admitted if it has been
+ * requested more often than the entry it would evict, as estimated by a small count-min sketch (the TinyLFU admission
+ * policy). This keeps a one-off scroll through a large library from flushing the thumbnails every visitor loads.
+ * <p>
+ * Values may optionally be stored in direct buffers so that the cache does not count against the Java heap; they are
+ * then copied out on every hit. Values stored on the heap are returned as-is and must not be modified by callers.
+ */
+public class ByteCache {
+
+  private final long maxBytes;
+
+  private final boolean offHeap;
+
+  private final LinkedHashMap<String, Object> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+  private final FrequencySketch sketch;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder evictions = new LongAdder();
+
+  private final LongAdder rejections = new LongAdder();
+
+  private long weight;
+
+  /**
+   * Snapshot of the cache statistics.
+   *
+   * @param hits       the number of lookups that found a value
+   * @param misses     the number of lookups that found nothing
+   * @param evictions  the number of entries evicted to make room for others
+   * @param rejections the number of values not admitted because they were requested less often than the entry they
+   *                   would have replaced
+   * @param entries    the number of entries in the cache
+   * @param bytes      the total size of the cached values
+   */
+  public record Stats(long hits, long misses, long evictions, long rejections, long entries, long bytes) {
+
+    public double hitRate() {
+      long requests = hits + misses;
+      return requests > 0 ? (double) hits / requests : 0;
+    }
+  }
+
+  /**
+   * Create a cache.
+   *
+   * @param maxBytes the maximum total size of the cached values; 0 disables the cache
+   * @param offHeap  whether to store values in direct buffers outside the heap
+   */
+  public ByteCache(long maxBytes, boolean offHeap) {
+    this.maxBytes = Math.max(0, maxBytes);
+    this.offHeap = offHeap;
+    // Assume thumbnails of roughly 16 KiB to size the sketch
+    this.sketch = new FrequencySketch(Math.clamp(this.maxBytes / 16384, 256, 1 << 20));
+  }
+
+  /**
+   * Look up a value, counting the request towards the key's popularity.
+   *
+   * @param key the key
+   * @return the cached value, or null if it is not cached
+   */
+  public byte[] get(String key) {
+    if (maxBytes == 0) {
+      misses.increment();
+      return null;
+    }
+    Object value;
+    synchronized (this) {
+      sketch.increment(key);
+      value = entries.get(key);
+    }
+    if (value == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    if (value instanceof ByteBuffer buffer) {
+      byte[] copy = new byte[buffer.capacity()];
+      buffer.get(0, copy);
+      return copy;
+    }
+    return (byte[]) value;
+  }
+
+  /**
+   * Offer a value to the cache. It is stored unless it does not fit at all or the admission policy rejects it.
+   *
+   * @param key   the key
+   * @param value the value, which must not be modified afterwards
+   */
+  public void put(String key, byte[] value) {
+    if (value.length > maxBytes) {
+      return;
+    }
+    Object stored = offHeap ? ByteBuffer.allocateDirect(value.length).put(0, value) : value;
+
+    synchronized (this) {
+      Object previous = entries.remove(key);
+      if (previous != null) {
+        weight -= sizeOf(previous);
+      } else if (weight + value.length > maxBytes && !entries.isEmpty()) {
+        String victim = entries.keySet().iterator().next();
+        if (sketch.frequency(key) <= sketch.frequency(victim)) {
+          rejections.increment();
+          return;
+        }
+      }
+
+      Iterator<Map.Entry<String, Object>> eldest = entries.entrySet().iterator();
+      while (weight + value.length > maxBytes && eldest.hasNext()) {
+        weight -= sizeOf(eldest.next().getValue());
+        eldest.remove();
+        evictions.increment();
+      }
+      entries.put(key, stored);
+      weight += value.length;
+    }
+  }
+
+  /**
+   * Remove a value from the cache.
+   *
+   * @param key the key
+   */
+  public synchronized void invalidate(String key) {
+    Object previous = entries.remove(key);
+    if (previous != null) {
+      weight -= sizeOf(previous);
+    }
+  }
+
+  public synchronized Stats stats() {
+    return new Stats(hits.sum(), misses.sum(), evictions.sum(), rejections.sum(), entries.size(), weight);
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  private static long sizeOf(Object value) {
+    return value instanceof ByteBuffer buffer ? buffer.capacity() : ((byte[]) value).length;
+  }
+
+  /**
+   * Count-min sketch of 4-bit counters estimating how often each key was requested, packed sixteen to a long. Counters
+   * are halved periodically so that the estimate follows changes in popularity.
+   */
+  private static final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[][] counters;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    FrequencySketch(int width) {
+      int size = Integer.highestOneBit(width - 1) << 1;
+      this.counters = new long[DEPTH][size >>> 4];
+      this.mask = size - 1;
+      this.sampleSize = 10 * size;
+    }
+
+    void increment(String key) {
+      int hash = spread(key.hashCode());
+      boolean added = false;
+      for (int row = 0; row < DEPTH; row++) {
+        int index = indexOf(hash, row);
+        int shift = (index & 15) << 2;
+        if (((counters[row][index >>> 4] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+          counters[row][index >>> 4] += 1L << shift;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sampleSize) {
+        reset();
+      }
+    }
+
+    int frequency(String key) {
+      int hash = spread(key.hashCode());
+      int frequency = MAX_COUNT;
+      for (int row = 0; row < DEPTH; row++) {
+        int index = indexOf(hash, row);
+        frequency = Math.min(frequency, (int) (counters[row][index >>> 4] >>> ((index & 15) << 2)) & MAX_COUNT);
+      }
+      return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+      int h = hash * (0x9E3779B9 + 2 * row + 1);
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void reset() {
+      for (long[] row : counters) {
+        for (int i = 0; i < row.length; i++) {
+          row[i] = (row[i] >>> 1) & RESET_MASK;
+        }
+      }
+      additions /= 2;
+    }
+
+    private static int spread(int hash) {
+      hash ^= hash >>> 17;
+      hash *= 0xED5AD4BB;
+      hash ^= hash >>> 11;
+      return hash;
+    }
+  }
+}
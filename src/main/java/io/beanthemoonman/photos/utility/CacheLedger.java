@@ -0,0 +1,137 @@
+package io.beanthemoonman.photos.utility;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * In-memory record of the files in a cache directory: their sizes, the total, and when each was last served. It lets
+ * the cache be garbage collected without listing the directory on every pass.
+ */
+public class CacheLedger {
+
+  private record Entry(long bytes, long lastServed) {
+  }
+
+  /**
+   * A cache file picked for eviction.
+   *
+   * @param key   the cache key
+   * @param bytes the size of the file
+   */
+  public record Candidate(String key, long bytes) {
+  }
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private final AtomicLong totalBytes = new AtomicLong();
+
+  /**
+   * Record a file that was just written, replacing any earlier record of it.
+   *
+   * @param key   the cache key
+   * @param bytes the size of the file
+   * @param time  the time it was written, in epoch milliseconds
+   */
+  public void written(String key, long bytes, long time) {
+    Entry previous = entries.put(key, new Entry(bytes, time));
+    totalBytes.addAndGet(bytes - (previous != null ? previous.bytes() : 0));
+  }
+
+  /**
+   * Record a file found on disk, unless it was recorded already.
+   *
+   * @param key          the cache key
+   * @param bytes        the size of the file
+   * @param lastModified the last modified time of the file, in epoch milliseconds
+   */
+  public void found(String key, long bytes, long lastModified) {
+    if (entries.putIfAbsent(key, new Entry(bytes, lastModified)) == null) {
+      totalBytes.addAndGet(bytes);
+    }
+  }
+
+  /**
+   * Record that a file was served. Unknown keys are ignored.
+   *
+   * @param key  the cache key
+   * @param time the time it was served, in epoch milliseconds
+   */
+  public void served(String key, long time) {
+    entries.computeIfPresent(key, (k, entry) -> new Entry(entry.bytes(), time));
+  }
+
+  /**
+   * Forget a file.
+   *
+   * @param key the cache key
+   * @return the size of the file, or 0 if it was not recorded
+   */
+  public long removed(String key) {
+    Entry previous = entries.remove(key);
+    if (previous == null) {
+      return 0;
+    }
+    totalBytes.addAndGet(-previous.bytes());
+    return previous.bytes();
+  }
+
+  public long getTotalBytes() {
+    return totalBytes.get();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Find up to a number of files matching a condition.
+   *
+   * @param condition the condition on the cache key
+   * @param limit     the maximum number of files
+   * @return the matching files
+   */
+  public List<Candidate> matching(Predicate<String> condition, int limit) {
+    List<Candidate> candidates = new ArrayList<>();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (candidates.size() >= limit) {
+        break;
+      }
+      if (condition.test(entry.getKey())) {
+        candidates.add(new Candidate(entry.getKey(), entry.getValue().bytes()));
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Find the files served least recently, oldest first, without sorting the whole ledger.
+   *
+   * @param limit the maximum number of files
+   * @return the least recently served files
+   */
+  public List<Candidate> leastRecentlyServed(int limit) {
+    if (limit <= 0) {
+      return List.of();
+    }
+    Comparator<Map.Entry<String, Entry>> byLastServed =
+        Comparator.comparingLong(entry -> entry.getValue().lastServed());
+    // A max-heap of the oldest entries seen so far, so the most recent of them is dropped first
+    PriorityQueue<Map.Entry<String, Entry>> oldest = new PriorityQueue<>(limit + 1, byLastServed.reversed());
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      oldest.add(Map.entry(entry.getKey(), entry.getValue()));
+      if (oldest.size() > limit) {
+        oldest.poll();
+      }
+    }
+    List<Map.Entry<String, Entry>> sorted = new ArrayList<>(oldest);
+    sorted.sort(byLastServed);
+    return sorted.stream().map(entry -> new Candidate(entry.getKey(), entry.getValue().bytes())).toList();
+  }
+}
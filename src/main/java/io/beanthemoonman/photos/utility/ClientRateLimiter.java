@@ -0,0 +1,167 @@
+package io.beanthemoonman.photos.utility;
+
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.ConsumptionProbe;
+import io.github.bucket4j.TimeMeter;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token buckets per client and endpoint class.
+ * <p>
+ * Buckets are kept in least-recently-used order and bounded in number, so memory stays flat no matter how many clients
+ * show up. A bucket that has been idle long enough to refill completely is dropped, since a new bucket would be in the
+ * same state; a client evicted early merely gets a full bucket back.
+ */
+public class ClientRateLimiter {
+
+  /**
+   * Classes of endpoints with separate limits, from cheapest to most expensive to serve.
+   */
+  public enum EndpointClass {
+    LISTING("listing"),
+    THUMBNAIL("thumbnail"),
+    THUMBNAIL_GENERATE("thumbnail-generate"),
+    FULL_SIZE("full-size");
+
+    private final String tag;
+
+    EndpointClass(String tag) {
+      this.tag = tag;
+    }
+
+    /**
+     * Get the name of the class as used in metrics.
+     *
+     * @return the name
+     */
+    public String tag() {
+      return tag;
+    }
+  }
+
+  /**
+   * Buckets hold a minute's worth of tokens and refill completely within a minute.
+   */
+  private static final Duration REFILL_PERIOD = Duration.ofMinutes(1);
+
+  private static final ConsumptionProbe UNLIMITED = ConsumptionProbe.consumed(Long.MAX_VALUE, 0);
+
+  private record Key(String client, EndpointClass endpointClass) {
+  }
+
+  private static final class Entry {
+    private final Bucket bucket;
+
+    private long lastAccess;
+
+    private Entry(Bucket bucket, long lastAccess) {
+      this.bucket = bucket;
+      this.lastAccess = lastAccess;
+    }
+  }
+
+  private final Map<EndpointClass, Long> perMinute;
+
+  private final int maxBuckets;
+
+  private final TimeMeter timeMeter;
+
+  private final LinkedHashMap<Key, Entry> buckets = new LinkedHashMap<>(64, 0.75f, true);
+
+  /**
+   * Create a rate limiter.
+   *
+   * @param perMinute  the requests per minute allowed for each endpoint class; missing or non-positive means unlimited
+   * @param maxClients the number of clients whose buckets are tracked
+   */
+  public ClientRateLimiter(Map<EndpointClass, Long> perMinute, int maxClients) {
+    this(perMinute, maxClients, TimeMeter.SYSTEM_NANOTIME);
+  }
+
+  ClientRateLimiter(Map<EndpointClass, Long> perMinute, int maxClients, TimeMeter timeMeter) {
+    this.perMinute = new EnumMap<>(EndpointClass.class);
+    perMinute.forEach((endpointClass, limit) -> {
+      if (limit != null && limit > 0) {
+        this.perMinute.put(endpointClass, limit);
+      }
+    });
+    this.maxBuckets = Math.max(1, maxClients) * EndpointClass.values().length;
+    this.timeMeter = timeMeter;
+  }
+
+  /**
+   * Take a token from a client's bucket for an endpoint class.
+   *
+   * @param client        the client, e.g. its remote address
+   * @param endpointClass the class of the requested endpoint
+   * @return the result, which tells how long to wait for a token if none was available
+   */
+  public ConsumptionProbe tryConsume(String client, EndpointClass endpointClass) {
+    return tryConsume(client, endpointClass, 1);
+  }
+
+  /**
+   * Take several tokens at once from a client's bucket for an endpoint class. A request for more tokens than the bucket
+   * holds takes the whole bucket, so it can still succeed once the bucket is full.
+   *
+   * @param client        the client, e.g. its remote address
+   * @param endpointClass the class of the requested endpoint
+   * @param tokens        the number of tokens, at least 1
+   * @return the result, which tells how long to wait for the tokens if not enough were available
+   */
+  public ConsumptionProbe tryConsume(String client, EndpointClass endpointClass, long tokens) {
+    Long limit = perMinute.get(endpointClass);
+    if (limit == null) {
+      return UNLIMITED;
+    }
+    return bucket(new Key(client, endpointClass), limit).tryConsumeAndReturnRemaining(Math.min(tokens, limit));
+  }
+
+  /**
+   * Get the number of buckets currently tracked.
+   *
+   * @return the number of buckets
+   */
+  public synchronized int size() {
+    return buckets.size();
+  }
+
+  private synchronized Bucket bucket(Key key, long limit) {
+    long now = timeMeter.currentTimeNanos();
+    expire(now);
+    Entry entry = buckets.get(key);
+    if (entry == null) {
+      entry = new Entry(Bucket.builder()
+          .addLimit(bandwidth -> bandwidth.capacity(limit).refillGreedy(limit, REFILL_PERIOD))
+          .withCustomTimePrecision(timeMeter)
+          .build(), now);
+      buckets.put(key, entry);
+      if (buckets.size() > maxBuckets) {
+        Iterator<Entry> eldest = buckets.values().iterator();
+        eldest.next();
+        eldest.remove();
+      }
+    }
+    entry.lastAccess = now;
+    return entry.bucket;
+  }
+
+  /**
+   * Drop the buckets that have refilled completely. They are in access order, so the scan stops at the first one in
+   * use.
+   */
+  private void expire(long now) {
+    Iterator<Entry> iterator = buckets.values().iterator();
+    while (iterator.hasNext()) {
+      if (now - iterator.next().lastAccess < REFILL_PERIOD.toNanos()) {
+        break;
+      }
+      iterator.remove();
+    }
+  }
+}
@@ -0,0 +1,456 @@
+package io.beanthemoonman.photos.utility;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Minimal reader for the EXIF metadata of JPEG files: the orientation, the capture date, the camera, the embedded
+ * thumbnail and the location of a large preview.
+ * <p>
+ * Only the first 128 KiB of the file are read. The EXIF segment has to precede the image data and is itself limited to
+ * 64 KiB, but other segments such as an ICC profile or the Multi-Picture Format (MPF) index may sit next to it, so the
+ * header is read with room for those as well. The pixels are never touched. Anything that is not a well-formed JPEG
+ * with an EXIF segment yields {@link #NONE} instead of an error.
+ * <p>
+ * The EXIF thumbnail is only about 160 pixels wide. Many cameras additionally store a preview of 1920 pixels or more
+ * after the image data and index it in the MPF segment; only its location is read from the header, and the preview
+ * itself is loaded on demand by {@link #readPreview(Path)}.
+ */
+public final class Exif {
+
+  /**
+   * Metadata of a file without EXIF information.
+   */
+  public static final Exif NONE = new Exif(1, null, null, null, null);
+
+  private static final int HEADER_LIMIT = 128 * 1024;
+
+  private static final int PREVIEW_LIMIT = 16 * 1024 * 1024;
+
+  private static final int SOI = 0xFFD8;
+
+  private static final int APP1 = 0xE1;
+
+  private static final int APP2 = 0xE2;
+
+  private static final int SOS = 0xDA;
+
+  private static final int EOI = 0xD9;
+
+  private static final byte[] EXIF_ID = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] MPF_ID = "MPF\0".getBytes(StandardCharsets.US_ASCII);
+
+  private static final int TAG_ORIENTATION = 0x0112;
+
+  private static final int TAG_MAKE = 0x010F;
+
+  private static final int TAG_MODEL = 0x0110;
+
+  private static final int TAG_DATE_TIME = 0x0132;
+
+  private static final int TAG_EXIF_IFD = 0x8769;
+
+  private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+
+  private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+
+  private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+  private static final int TAG_MP_ENTRY = 0xB002;
+
+  private static final int MP_ENTRY_SIZE = 16;
+
+  private static final int MP_LARGE_THUMBNAIL_VGA = 0x010001;
+
+  private static final int MP_LARGE_THUMBNAIL_FULL_HD = 0x010002;
+
+  private static final int TYPE_ASCII = 2;
+
+  private static final int TYPE_SHORT = 3;
+
+  private static final int TYPE_LONG = 4;
+
+  private static final int TYPE_UNDEFINED = 7;
+
+  private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+  private final int orientation;
+
+  private final byte[] thumbnail;
+
+  private final LocalDateTime dateTaken;
+
+  private final String camera;
+
+  private final Preview preview;
+
+  /**
+   * Location of the large preview in the file.
+   */
+  private record Preview(long offset, int length) {
+  }
+
+  private Exif(int orientation, byte[] thumbnail, LocalDateTime dateTaken, String camera, Preview preview) {
+    this.orientation = orientation;
+    this.thumbnail = thumbnail;
+    this.dateTaken = dateTaken;
+    this.camera = camera;
+    this.preview = preview;
+  }
+
+  /**
+   * Read the EXIF metadata from the header of a file.
+   *
+   * @param file the file
+   * @return the metadata, or {@link #NONE} if the file has none
+   * @throws IOException if the file cannot be read
+   */
+  public static Exif read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate((int) Math.min(HEADER_LIMIT, channel.size()));
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // Keep reading until the header is full or the file ends
+      }
+      return parse(header.flip());
+    }
+  }
+
+  /**
+   * Parse the EXIF metadata from the start of a JPEG file.
+   *
+   * @param jpeg the start of the file
+   * @return the metadata, or {@link #NONE} if there is none
+   */
+  public static Exif parse(ByteBuffer jpeg) {
+    ByteBuffer tiff = null;
+    Preview preview = null;
+    try {
+      jpeg = jpeg.slice().order(ByteOrder.BIG_ENDIAN);
+      if (Short.toUnsignedInt(jpeg.getShort(0)) != SOI) {
+        return NONE;
+      }
+      int position = 2;
+      while (position + 4 <= jpeg.limit()) {
+        if ((jpeg.get(position) & 0xFF) != 0xFF) {
+          break;
+        }
+        int marker = jpeg.get(position + 1) & 0xFF;
+        if (marker == 0xFF) {
+          // Fill byte before a marker
+          position++;
+          continue;
+        }
+        if (marker == SOS || marker == EOI) {
+          break;
+        }
+        int length = Short.toUnsignedInt(jpeg.getShort(position + 2));
+        int end = Math.min(position + 2 + length, jpeg.limit());
+        if (marker == APP1 && tiff == null && length >= 2 + EXIF_ID.length && hasId(jpeg, position + 4, EXIF_ID)) {
+          int start = position + 4 + EXIF_ID.length;
+          tiff = jpeg.slice(start, end - start);
+        } else if (marker == APP2 && preview == null && length >= 2 + MPF_ID.length
+            && hasId(jpeg, position + 4, MPF_ID)) {
+          preview = readMpfPreview(jpeg, position + 4 + MPF_ID.length, end);
+        }
+        position += 2 + length;
+      }
+    } catch (IndexOutOfBoundsException e) {
+      // Truncated or malformed header, keep what was found before
+    }
+
+    if (tiff == null) {
+      return NONE;
+    }
+    try {
+      return parseTiff(tiff, preview);
+    } catch (IndexOutOfBoundsException e) {
+      return NONE;
+    }
+  }
+
+  /**
+   * Read the large preview that the camera stored after the image data, as located by the MPF index in the header.
+   *
+   * @param file the file this metadata was read from
+   * @return the preview data, or null if there is none or the file does not hold it
+   * @throws IOException if the file cannot be read
+   */
+  public byte[] readPreview(Path file) throws IOException {
+    if (preview == null) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (preview.offset() + preview.length() > channel.size()) {
+        return null;
+      }
+      ByteBuffer data = ByteBuffer.allocate(preview.length());
+      while (data.hasRemaining() && channel.read(data, preview.offset() + data.position()) >= 0) {
+        // Keep reading until the preview is complete
+      }
+      return data.hasRemaining() ? null : data.array();
+    }
+  }
+
+  /**
+   * Get the EXIF orientation, 1 to 8, which tells how the stored pixels have to be rotated and flipped for display.
+   *
+   * @return the orientation, 1 if none is recorded
+   */
+  public int getOrientation() {
+    return orientation;
+  }
+
+  /**
+   * Whether the orientation swaps width and height, i.e. the stored image has to be rotated by 90 degrees.
+   *
+   * @return whether the displayed image is transposed
+   */
+  public boolean isTransposed() {
+    return orientation >= 5;
+  }
+
+  /**
+   * Get the JPEG thumbnail embedded by the camera, stored in the same orientation as the main image.
+   *
+   * @return the thumbnail data, or null if there is none
+   */
+  public byte[] getThumbnail() {
+    return thumbnail;
+  }
+
+  /**
+   * Whether the MPF index locates a large preview, which {@link #readPreview(Path)} loads.
+   *
+   * @return whether there is a large preview
+   */
+  public boolean hasPreview() {
+    return preview != null;
+  }
+
+  /**
+   * Get the date and time the photo was taken, as recorded by the camera's clock without a time zone. Falls back to
+   * the date the file was last changed by software if the original date is missing.
+   *
+   * @return the capture date, or null if none is recorded
+   */
+  public LocalDateTime getDateTaken() {
+    return dateTaken;
+  }
+
+  /**
+   * Get the camera make and model.
+   *
+   * @return the camera, or null if none is recorded
+   */
+  public String getCamera() {
+    return camera;
+  }
+
+  private static boolean hasId(ByteBuffer jpeg, int position, byte[] id) {
+    for (int i = 0; i < id.length; i++) {
+      if (jpeg.get(position + i) != id[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Find the largest preview in the MP Index IFD of an MPF segment. Its entries locate each image relative to the start
+   * of the TIFF header in the segment; the first one is the primary image itself.
+   */
+  private static Preview readMpfPreview(ByteBuffer jpeg, int start, int end) {
+    ByteBuffer mpf = jpeg.slice(start, end - start);
+    int byteOrder = Short.toUnsignedInt(mpf.getShort(0));
+    if (byteOrder == 0x4949) {
+      mpf.order(ByteOrder.LITTLE_ENDIAN);
+    } else if (byteOrder != 0x4D4D) {
+      return null;
+    }
+    if (mpf.getShort(2) != 42) {
+      return null;
+    }
+
+    int ifd = mpf.getInt(4);
+    int entries = Short.toUnsignedInt(mpf.getShort(ifd));
+    Preview largest = null;
+    for (int i = 0; i < entries; i++) {
+      int entry = ifd + 2 + i * 12;
+      if (Short.toUnsignedInt(mpf.getShort(entry)) != TAG_MP_ENTRY || mpf.getShort(entry + 2) != TYPE_UNDEFINED) {
+        continue;
+      }
+      int images = mpf.getInt(entry + 4) / MP_ENTRY_SIZE;
+      int offset = mpf.getInt(entry + 8);
+      for (int image = 1; image < images; image++) {
+        int mpEntry = offset + image * MP_ENTRY_SIZE;
+        int type = mpf.getInt(mpEntry) & 0xFFFFFF;
+        long length = Integer.toUnsignedLong(mpf.getInt(mpEntry + 4));
+        long dataOffset = Integer.toUnsignedLong(mpf.getInt(mpEntry + 8));
+        if ((type == MP_LARGE_THUMBNAIL_VGA || type == MP_LARGE_THUMBNAIL_FULL_HD) && dataOffset > 0 && length > 0
+            && length <= PREVIEW_LIMIT && (largest == null || length > largest.length())) {
+          largest = new Preview(start + dataOffset, (int) length);
+        }
+      }
+    }
+    return largest;
+  }
+
+  private static Exif parseTiff(ByteBuffer tiff, Preview preview) {
+    int byteOrder = Short.toUnsignedInt(tiff.getShort(0));
+    if (byteOrder == 0x4949) {
+      tiff.order(ByteOrder.LITTLE_ENDIAN);
+    } else if (byteOrder != 0x4D4D) {
+      return NONE;
+    }
+    if (tiff.getShort(2) != 42) {
+      return NONE;
+    }
+
+    int ifd0 = tiff.getInt(4);
+    int orientation = 1;
+    String make = null;
+    String model = null;
+    LocalDateTime dateTime = null;
+    int exifIfd = 0;
+    int ifd0Entries = Short.toUnsignedInt(tiff.getShort(ifd0));
+    for (int i = 0; i < ifd0Entries; i++) {
+      int entry = ifd0 + 2 + i * 12;
+      int tag = Short.toUnsignedInt(tiff.getShort(entry));
+      if (tag == TAG_ORIENTATION && tiff.getShort(entry + 2) == TYPE_SHORT) {
+        int value = Short.toUnsignedInt(tiff.getShort(entry + 8));
+        if (value >= 1 && value <= 8) {
+          orientation = value;
+        }
+      } else if (tag == TAG_MAKE) {
+        make = readAscii(tiff, entry);
+      } else if (tag == TAG_MODEL) {
+        model = readAscii(tiff, entry);
+      } else if (tag == TAG_DATE_TIME) {
+        dateTime = parseDateTime(readAscii(tiff, entry));
+      } else if (tag == TAG_EXIF_IFD && tiff.getShort(entry + 2) == TYPE_LONG) {
+        exifIfd = tiff.getInt(entry + 8);
+      }
+    }
+
+    // The Exif IFD holds the original capture date, which survives editing unlike the IFD0 date
+    LocalDateTime dateTaken = dateTime;
+    try {
+      if (exifIfd > 0) {
+        LocalDateTime original = readDateTimeOriginal(tiff, exifIfd);
+        if (original != null) {
+          dateTaken = original;
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      // A broken Exif IFD does not invalidate the rest
+    }
+
+    // IFD1, which follows IFD0, describes the embedded thumbnail
+    byte[] thumbnail = null;
+    try {
+      int ifd1 = tiff.getInt(ifd0 + 2 + ifd0Entries * 12);
+      if (ifd1 > 0) {
+        thumbnail = readThumbnail(tiff, ifd1);
+      }
+    } catch (IndexOutOfBoundsException e) {
+      // A broken thumbnail does not invalidate the orientation
+    }
+
+    String camera = camera(make, model);
+    if (orientation == 1 && thumbnail == null && dateTaken == null && camera == null && preview == null) {
+      return NONE;
+    }
+    return new Exif(orientation, thumbnail, dateTaken, camera, preview);
+  }
+
+  private static LocalDateTime readDateTimeOriginal(ByteBuffer tiff, int ifd) {
+    int entries = Short.toUnsignedInt(tiff.getShort(ifd));
+    for (int i = 0; i < entries; i++) {
+      int entry = ifd + 2 + i * 12;
+      if (Short.toUnsignedInt(tiff.getShort(entry)) == TAG_DATE_TIME_ORIGINAL) {
+        return parseDateTime(readAscii(tiff, entry));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Read an ASCII value, which is stored in the entry itself if it fits into four bytes and at an offset otherwise.
+   */
+  private static String readAscii(ByteBuffer tiff, int entry) {
+    if (tiff.getShort(entry + 2) != TYPE_ASCII) {
+      return null;
+    }
+    int count = tiff.getInt(entry + 4);
+    if (count <= 0 || count > 256) {
+      return null;
+    }
+    int offset = count <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+    if (offset < 0 || offset > tiff.limit() - count) {
+      return null;
+    }
+    byte[] value = new byte[count];
+    tiff.get(offset, value);
+    int length = 0;
+    while (length < count && value[length] != 0) {
+      length++;
+    }
+    String text = new String(value, 0, length, StandardCharsets.US_ASCII).trim();
+    return text.isEmpty() ? null : text;
+  }
+
+  private static LocalDateTime parseDateTime(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return LocalDateTime.parse(value, DATE_TIME);
+    } catch (DateTimeParseException e) {
+      // Cameras without a set clock write blanks or zeros
+      return null;
+    }
+  }
+
+  /**
+   * Join make and model, leaving out the make if the model already starts with it, e.g. "Canon EOS R5".
+   */
+  private static String camera(String make, String model) {
+    if (model == null) {
+      return make;
+    }
+    if (make == null || model.regionMatches(true, 0, make, 0, make.length())) {
+      return model;
+    }
+    return make + " " + model;
+  }
+
+  private static byte[] readThumbnail(ByteBuffer tiff, int ifd1) {
+    long offset = -1;
+    long length = -1;
+    int entries = Short.toUnsignedInt(tiff.getShort(ifd1));
+    for (int i = 0; i < entries; i++) {
+      int entry = ifd1 + 2 + i * 12;
+      int tag = Short.toUnsignedInt(tiff.getShort(entry));
+      if (tag == TAG_THUMBNAIL_OFFSET) {
+        offset = Integer.toUnsignedLong(tiff.getInt(entry + 8));
+      } else if (tag == TAG_THUMBNAIL_LENGTH) {
+        length = Integer.toUnsignedLong(tiff.getInt(entry + 8));
+      }
+    }
+    if (offset <= 0 || length <= 0 || offset + length > tiff.limit()) {
+      return null;
+    }
+    byte[] thumbnail = new byte[(int) length];
+    tiff.get((int) offset, thumbnail);
+    return thumbnail;
+  }
+}
@@ -0,0 +1,161 @@
+package io.beanthemoonman.photos.utility;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of photo content hashes, keyed by filename and validated by file size and modification time.
+ * <p>
+ * The index is an append-only binary file of records
+ * {@code [u16 name length][name, UTF-8][i64 size][i64 last modified][32 byte SHA-256]}; the last record for a name
+ * wins. It is memory-mapped and read once at startup, and new hashes are appended as they are computed, so a restart
+ * with an unchanged library does not need to read a single photo. A torn record at the end of the file, e.g. after a
+ * crash, is discarded on load.
+ */
+public class HashIndex implements AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(HashIndex.class);
+
+  private static final int MAGIC = 0x50485831; // "PHX1"
+
+  private static final int HASH_LENGTH = 32;
+
+  private static final HexFormat HEX = HexFormat.of();
+
+  private final Path file;
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private final IndexFile indexFile;
+
+  private long sequence;
+
+  /**
+   * An indexed hash. The sequence number orders puts in this process, for {@link #compact(Set, long)}, and is not
+   * stored; loaded entries have sequence 0.
+   */
+  private record Entry(long size, long lastModified, byte[] hash, long sequence) {
+  }
+
+  private HashIndex(Path file) {
+    this.file = file;
+    this.indexFile = new IndexFile(file, MAGIC, "hash");
+  }
+
+  /**
+   * Open the index file, creating it if it does not exist, and load all records.
+   *
+   * @param file the index file
+   * @return the opened index
+   * @throws IOException if the file cannot be read or created
+   */
+  public static HashIndex open(Path file) throws IOException {
+    HashIndex index = new HashIndex(file);
+    index.load();
+    return index;
+  }
+
+  /**
+   * Look up the hash of a file.
+   *
+   * @param name         the filename
+   * @param size         the current file size
+   * @param lastModified the current modification time in epoch milliseconds
+   * @return the SHA-256 hash as a hexadecimal string, or null if the file is not indexed or has changed
+   */
+  public String lookup(String name, long size, long lastModified) {
+    Entry entry = entries.get(name);
+    if (entry == null || entry.size() != size || entry.lastModified() != lastModified) {
+      return null;
+    }
+    return HEX.formatHex(entry.hash());
+  }
+
+  /**
+   * Record the hash of a file, appending it to the index file.
+   *
+   * @param name         the filename
+   * @param size         the file size
+   * @param lastModified the modification time in epoch milliseconds
+   * @param sha256       the SHA-256 hash as a hexadecimal string
+   */
+  public synchronized void put(String name, long size, long lastModified, String sha256) {
+    Entry entry = new Entry(size, lastModified, HEX.parseHex(sha256), ++sequence);
+    Entry previous = entries.put(name, entry);
+    if (previous != null && previous.size() == size && previous.lastModified() == lastModified
+        && Arrays.equals(previous.hash(), entry.hash())) {
+      return;
+    }
+    try {
+      indexFile.append(encode(name, entry));
+    } catch (IOException e) {
+      logger.warn("Failed to append to hash index {}", file, e);
+    }
+  }
+
+  /**
+   * Mark the records put so far, before listing the library for {@link #compact(Set, long)}.
+   *
+   * @return the mark
+   */
+  public synchronized long mark() {
+    return sequence;
+  }
+
+  /**
+   * Drop the names that are no longer in the library, and rewrite the index if superseded or deleted records make up
+   * most of the file. Names put after the mark are kept whether listed or not, so photos that arrived while the
+   * library was being listed and processed are not forgotten.
+   *
+   * @param liveNames the filenames in the library when it was listed
+   * @param mark      the mark taken before the library was listed
+   */
+  public synchronized void compact(Set<String> liveNames, long mark) {
+    entries.entrySet().removeIf(entry -> entry.getValue().sequence() <= mark && !liveNames.contains(entry.getKey()));
+    indexFile.compact(entries, HashIndex::encode);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    indexFile.close();
+  }
+
+  private void load() throws IOException {
+    indexFile.load(buffer -> {
+      byte[] name = new byte[Short.toUnsignedInt(buffer.getShort())];
+      buffer.get(name);
+      long size = buffer.getLong();
+      long lastModified = buffer.getLong();
+      byte[] hash = new byte[HASH_LENGTH];
+      buffer.get(hash);
+      entries.put(new String(name, StandardCharsets.UTF_8), new Entry(size, lastModified, hash, 0));
+    });
+    logger.info("Loaded {} photo hashes from {}", entries.size(), file);
+  }
+
+  private static ByteBuffer encode(String name, Entry entry) {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(Short.BYTES + nameBytes.length + 2 * Long.BYTES + HASH_LENGTH);
+    record.putShort((short) nameBytes.length)
+        .put(nameBytes)
+        .putLong(entry.size())
+        .putLong(entry.lastModified())
+        .put(entry.hash())
+        .flip();
+    return record;
+  }
+}
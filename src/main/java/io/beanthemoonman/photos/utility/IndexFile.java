@@ -0,0 +1,179 @@
+package io.beanthemoonman.photos.utility;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * The file behind an append-only index: a magic number followed by records, the last of which wins for a key.
+ * <p>
+ * The file is memory-mapped and decoded once when the index is loaded. A file with another magic number is started
+ * over, and a torn record at the end, e.g. after a crash, is cut off. Records are appended one at a time afterwards,
+ * and the file is rewritten with the live records once superseded or deleted ones make up most of it.
+ */
+final class IndexFile implements AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(IndexFile.class);
+
+  private static final int COMPACTION_THRESHOLD = 1024;
+
+  /**
+   * Decodes the records of an index as it is loaded.
+   */
+  @FunctionalInterface
+  interface RecordDecoder {
+
+    /**
+     * Decode the record at the position of the buffer, advancing the position past it.
+     *
+     * @param buffer the mapped file
+     * @throws BufferUnderflowException if the record is torn
+     */
+    void decode(ByteBuffer buffer);
+  }
+
+  private final Path file;
+
+  private final int magic;
+
+  private final String description;
+
+  private FileChannel channel;
+
+  private long records;
+
+  /**
+   * @param file        the index file
+   * @param magic       the magic number at the start of the file, which identifies the record format
+   * @param description what the index holds, for log messages
+   */
+  IndexFile(Path file, int magic, String description) {
+    this.file = file;
+    this.magic = magic;
+    this.description = description;
+  }
+
+  /**
+   * Decode all valid records, cut off a torn record at the end, create the file if it does not exist, and open it for
+   * appending.
+   *
+   * @param decoder the decoder of the records
+   * @throws IOException if the file cannot be read or created
+   */
+  void load(RecordDecoder decoder) throws IOException {
+    if (Files.exists(file) && Files.size(file) >= Integer.BYTES) {
+      long validLength = Integer.BYTES;
+      try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+        MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        if (buffer.getInt() != magic) {
+          logger.warn("Ignoring {} index {} with unknown format", description, file);
+          validLength = 0;
+        } else {
+          while (buffer.hasRemaining()) {
+            try {
+              decoder.decode(buffer);
+              records++;
+              validLength = buffer.position();
+            } catch (BufferUnderflowException e) {
+              logger.warn("Discarding torn record at the end of {} index {}", description, file);
+              break;
+            }
+          }
+        }
+      }
+      if (validLength < Files.size(file)) {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+          out.truncate(validLength);
+        }
+      }
+    }
+
+    if (!Files.exists(file) || Files.size(file) < Integer.BYTES) {
+      try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        out.truncate(0);
+        out.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, magic));
+      }
+    }
+    channel = openForAppend();
+  }
+
+  /**
+   * Append a record to the file.
+   *
+   * @param record the encoded record
+   * @throws IOException if the record cannot be written
+   */
+  void append(ByteBuffer record) throws IOException {
+    while (record.hasRemaining()) {
+      channel.write(record);
+    }
+    records++;
+  }
+
+  /**
+   * Rewrite the file with the live entries if superseded or deleted records make up most of it. Failures are logged,
+   * and the index carries on appending to the old file.
+   *
+   * @param entries the live entries
+   * @param encoder the encoder of an entry into a record
+   */
+  <K, V> void compact(Map<K, V> entries, BiFunction<K, V, ByteBuffer> encoder) {
+    if (records <= 2L * entries.size() || records < COMPACTION_THRESHOLD) {
+      return;
+    }
+
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try {
+      try (FileChannel out = FileChannel.open(temp,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING)) {
+        out.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, magic));
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+          ByteBuffer record = encoder.apply(entry.getKey(), entry.getValue());
+          while (record.hasRemaining()) {
+            out.write(record);
+          }
+        }
+        out.force(true);
+      }
+      channel.close();
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      logger.info("Compacted {} index from {} to {} records", description, records, entries.size());
+      records = entries.size();
+    } catch (IOException e) {
+      logger.warn("Failed to compact {} index {}", description, file, e);
+    }
+
+    try {
+      if (!channel.isOpen()) {
+        channel = openForAppend();
+      }
+    } catch (IOException e) {
+      logger.error("Failed to reopen {} index {}", description, file, e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null && channel.isOpen()) {
+      channel.force(false);
+      channel.close();
+    }
+  }
+
+  private FileChannel openForAppend() throws IOException {
+    return FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+}
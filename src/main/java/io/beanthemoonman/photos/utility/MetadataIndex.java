@@ -0,0 +1,160 @@
+package io.beanthemoonman.photos.utility;
+
+import io.beanthemoonman.photos.model.PhotoMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of photo metadata, keyed by the content hash of the photo.
+ * <p>
+ * The index is an append-only binary file of records
+ * {@code [32 byte SHA-256][i64 capture time][i32 width][i32 height][u8 orientation][u16 camera length][camera, UTF-8]}.
+ * Metadata depends only on the content, so a record never goes stale and the same photo under another name or after a
+ * copy is not read again. Like the {@link HashIndex}, the file is read once at startup, a torn record at the end is
+ * discarded on load, and the records of photos that left the library are dropped by {@link #compact(Set, long)}.
+ */
+public class MetadataIndex implements AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(MetadataIndex.class);
+
+  private static final int MAGIC = 0x504D5831; // "PMX1"
+
+  private static final int HASH_LENGTH = 32;
+
+  private static final HexFormat HEX = HexFormat.of();
+
+  private final Path file;
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private final IndexFile indexFile;
+
+  private long sequence;
+
+  /**
+   * Indexed metadata. The sequence number orders puts in this process, for {@link #compact(Set, long)}, and is not
+   * stored; loaded entries have sequence 0.
+   */
+  private record Entry(PhotoMetadata metadata, long sequence) {
+  }
+
+  private MetadataIndex(Path file) {
+    this.file = file;
+    this.indexFile = new IndexFile(file, MAGIC, "metadata");
+  }
+
+  /**
+   * Open the index file, creating it if it does not exist, and load all records.
+   *
+   * @param file the index file
+   * @return the opened index
+   * @throws IOException if the file cannot be read or created
+   */
+  public static MetadataIndex open(Path file) throws IOException {
+    MetadataIndex index = new MetadataIndex(file);
+    index.load();
+    return index;
+  }
+
+  /**
+   * Look up the metadata of a photo.
+   *
+   * @param sha256 the SHA-256 hash of the photo as a hexadecimal string
+   * @return the metadata, or null if the photo is not indexed
+   */
+  public PhotoMetadata lookup(String sha256) {
+    Entry entry = entries.get(sha256);
+    return entry != null ? entry.metadata() : null;
+  }
+
+  /**
+   * Record the metadata of a photo, appending it to the index file.
+   *
+   * @param sha256   the SHA-256 hash of the photo as a hexadecimal string
+   * @param metadata the metadata
+   */
+  public synchronized void put(String sha256, PhotoMetadata metadata) {
+    Entry previous = entries.put(sha256, new Entry(metadata, ++sequence));
+    if (previous != null && previous.metadata().equals(metadata)) {
+      return;
+    }
+    try {
+      indexFile.append(encode(sha256, metadata));
+    } catch (IOException e) {
+      logger.warn("Failed to append to metadata index {}", file, e);
+    }
+  }
+
+  /**
+   * Mark the records put so far, before listing the library for {@link #compact(Set, long)}.
+   *
+   * @return the mark
+   */
+  public synchronized long mark() {
+    return sequence;
+  }
+
+  /**
+   * Drop the photos that are no longer in the library, and rewrite the index if superseded or deleted records make up
+   * most of the file. Photos put after the mark are kept whether listed or not.
+   *
+   * @param liveHashes the hashes of the photos in the library when it was listed
+   * @param mark       the mark taken before the library was listed
+   */
+  public synchronized void compact(Set<String> liveHashes, long mark) {
+    entries.entrySet().removeIf(entry -> entry.getValue().sequence() <= mark && !liveHashes.contains(entry.getKey()));
+    indexFile.compact(entries, (sha256, entry) -> encode(sha256, entry.metadata()));
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    indexFile.close();
+  }
+
+  private void load() throws IOException {
+    indexFile.load(buffer -> {
+      byte[] hash = new byte[HASH_LENGTH];
+      buffer.get(hash);
+      long captureTime = buffer.getLong();
+      int width = buffer.getInt();
+      int height = buffer.getInt();
+      int orientation = Byte.toUnsignedInt(buffer.get());
+      byte[] camera = new byte[Short.toUnsignedInt(buffer.getShort())];
+      buffer.get(camera);
+      entries.put(HEX.formatHex(hash), new Entry(new PhotoMetadata(captureTime,
+          width,
+          height,
+          orientation,
+          camera.length > 0 ? new String(camera, StandardCharsets.UTF_8) : null), 0));
+    });
+    logger.info("Loaded metadata of {} photos from {}", entries.size(), file);
+  }
+
+  private static ByteBuffer encode(String sha256, PhotoMetadata metadata) {
+    byte[] camera = metadata.camera() != null ? metadata.camera().getBytes(StandardCharsets.UTF_8) : new byte[0];
+    ByteBuffer record = ByteBuffer.allocate(HASH_LENGTH + Long.BYTES + 2 * Integer.BYTES + 1 + Short.BYTES
+        + camera.length);
+    record.put(HEX.parseHex(sha256))
+        .putLong(metadata.captureTime())
+        .putInt(metadata.width())
+        .putInt(metadata.height())
+        .put((byte) metadata.orientation())
+        .putShort((short) camera.length)
+        .put(camera)
+        .flip();
+    return record;
+  }
+}
@@ -0,0 +1,135 @@
+package io.beanthemoonman.photos.utility;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Names and builders of the application's meters, so that every component registers them the same way.
+ */
+public final class PhotoMetrics {
+
+  /**
+   * Time spent in each stage of turning a photo into thumbnails, tagged with the {@code stage}: hash, decode, resize,
+   * encode or write.
+   */
+  public static final String PIPELINE = "photos.pipeline";
+
+  /**
+   * Thumbnails served, tagged with the {@code source} they came from: memory, disk or generated. A request that waits
+   * for a thumbnail another caller is already generating is not counted as generated.
+   */
+  public static final String THUMBNAIL_REQUESTS = "photos.thumbnail.requests";
+
+  /**
+   * Content hash lookups, tagged with the {@code source} they were answered from: memory, index or computed.
+   */
+  public static final String HASH_LOOKUPS = "photos.hash.lookups";
+
+  /**
+   * Response bytes written, tagged with the {@code endpoint}: list, photo, thumbnail, thumbnails or full.
+   */
+  public static final String BYTES_SERVED = "photos.bytes.served";
+
+  /**
+   * Requests rejected by the rate limit, tagged with the {@code endpoint} class: listing, thumbnail,
+   * thumbnail-generate or full-size.
+   */
+  public static final String RATE_LIMITED = "photos.rate.limited";
+
+  /**
+   * Bytes deleted from the thumbnail disk cache, tagged with the {@code reason}: orphan, budget, or compaction of the
+   * pack store, which is when the pack store returns the space of deleted thumbnails to the file system.
+   */
+  public static final String CACHE_RECLAIMED = "photos.cache.reclaimed";
+
+  private PhotoMetrics() {
+  }
+
+  /**
+   * Get the timer of a pipeline stage, with a histogram so that percentiles can be aggregated across instances.
+   *
+   * @param registry the registry
+   * @param stage    the stage
+   * @return the timer
+   */
+  public static Timer stage(MeterRegistry registry, String stage) {
+    return Timer.builder(PIPELINE)
+        .description("Time spent in a stage of the thumbnail pipeline")
+        .tag("stage", stage)
+        .publishPercentileHistogram()
+        .register(registry);
+  }
+
+  /**
+   * Get the counter of thumbnails served from a source.
+   *
+   * @param registry the registry
+   * @param source   the source
+   * @return the counter
+   */
+  public static Counter thumbnailSource(MeterRegistry registry, String source) {
+    return Counter.builder(THUMBNAIL_REQUESTS)
+        .description("Thumbnails served by the source they came from")
+        .tag("source", source)
+        .register(registry);
+  }
+
+  /**
+   * Get the counter of hash lookups answered from a source.
+   *
+   * @param registry the registry
+   * @param source   the source
+   * @return the counter
+   */
+  public static Counter hashSource(MeterRegistry registry, String source) {
+    return Counter.builder(HASH_LOOKUPS)
+        .description("Content hash lookups by the source they were answered from")
+        .tag("source", source)
+        .register(registry);
+  }
+
+  /**
+   * Get the counter of bytes served by an endpoint.
+   *
+   * @param registry the registry
+   * @param endpoint the endpoint
+   * @return the counter
+   */
+  public static Counter bytesServed(MeterRegistry registry, String endpoint) {
+    return Counter.builder(BYTES_SERVED)
+        .description("Response bytes written by endpoint")
+        .baseUnit("bytes")
+        .tag("endpoint", endpoint)
+        .register(registry);
+  }
+
+  /**
+   * Get the counter of requests rejected by the rate limit for an endpoint class.
+   *
+   * @param registry      the registry
+   * @param endpointClass the endpoint class
+   * @return the counter
+   */
+  public static Counter rateLimited(MeterRegistry registry, String endpointClass) {
+    return Counter.builder(RATE_LIMITED)
+        .description("Requests rejected by the per-client rate limit")
+        .tag("endpoint", endpointClass)
+        .register(registry);
+  }
+
+  /**
+   * Get the counter of bytes deleted from the thumbnail disk cache for a reason.
+   *
+   * @param registry the registry
+   * @param reason   the reason
+   * @return the counter
+   */
+  public static Counter cacheReclaimed(MeterRegistry registry, String reason) {
+    return Counter.builder(CACHE_RECLAIMED)
+        .description("Bytes deleted from the thumbnail disk cache")
+        .baseUnit("bytes")
+        .tag("reason", reason)
+        .register(registry);
+  }
+}
@@ -1,7 +1,12 @@
 package io.beanthemoonman.photos.utility;
 
 import io.beanthemoonman.photos.config.PhotosConfig;
-import io.beanthemoonman.photos.service.ThumbnailService;
+import io.beanthemoonman.photos.service.MetadataStore;
+import io.beanthemoonman.photos.service.ThumbnailCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
@@ -9,63 +14,313 @@ import org.springframework.stereotype.Component;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
 
-import static io.beanthemoonman.photos.utility.Utility.bytesToSha256;
-import static io.beanthemoonman.photos.utility.Utility.createDirectoryIfNotExists;
+import static io.beanthemoonman.photos.utility.Utility.fileToSha256;
 
 @Component
 public class ThumbnailHasher {
 
   private static final Logger logger = LoggerFactory.getLogger(ThumbnailHasher.class);
 
+  private static final String HASH_INDEX_FILE = "hashes.idx";
+
   private final ConcurrentMap<String, String> shaCache = new ConcurrentHashMap<>();
 
   private final PhotosConfig config;
 
-  private final ThumbnailService thumbnailService;
+  private final ThumbnailCache thumbnailCache;
+
+  private final MetadataStore metadataStore;
 
   private final Path cacheDir;
 
-  public ThumbnailHasher(PhotosConfig config, ThumbnailService thumbnailService) {
+  /**
+   * Hashing is I/O-bound and resizing is CPU-bound, so each stage has its own concurrency limit.
+   */
+  private final Semaphore hashPermits;
+
+  private final Semaphore resizePermits;
+
+  private final HashIndex hashIndex;
+
+  private final Timer hashTimer;
+
+  private final Counter memoryLookups;
+
+  private final Counter indexLookups;
+
+  private final Counter computedHashes;
+
+  private volatile WarmupProgress progress = new WarmupProgress(0);
+
+  private volatile boolean warmingUp;
+
+  public ThumbnailHasher(PhotosConfig config,
+      ThumbnailCache thumbnailCache,
+      MetadataStore metadataStore,
+      MeterRegistry meterRegistry) {
     this.config = config;
-    this.thumbnailService = thumbnailService;
-    this.cacheDir = Paths.get("cache");
-    createDirectoryIfNotExists(cacheDir);
+    this.thumbnailCache = thumbnailCache;
+    this.metadataStore = metadataStore;
+    this.cacheDir = thumbnailCache.getCacheDir();
+    this.hashPermits = new Semaphore(hashConcurrency());
+    this.resizePermits = new Semaphore(resizeConcurrency());
+    this.hashIndex = openHashIndex(cacheDir.resolve(HASH_INDEX_FILE));
+    this.hashTimer = PhotoMetrics.stage(meterRegistry, "hash");
+    this.memoryLookups = PhotoMetrics.hashSource(meterRegistry, "memory");
+    this.indexLookups = PhotoMetrics.hashSource(meterRegistry, "index");
+    this.computedHashes = PhotoMetrics.hashSource(meterRegistry, "computed");
+  }
+
+  private static HashIndex openHashIndex(Path file) {
+    try {
+      return HashIndex.open(file);
+    } catch (IOException e) {
+      logger.error("Failed to open hash index {}, photos will be rehashed on every start", file, e);
+      return null;
+    }
+  }
+
+  @PreDestroy
+  public void close() throws IOException {
+    if (hashIndex != null) {
+      hashIndex.close();
+    }
   }
 
   public ConcurrentMap<String, String> getShaCache() {
     return shaCache;
   }
 
-  public void boot() throws IOException {
+  /**
+   * Hash every photo, extract its metadata and create the missing thumbnails. Photos are processed concurrently on the
+   * configured pool, with separate limits for hashing and resizing, and progress is logged periodically.
+   *
+   * @throws IOException if the photos directory cannot be listed
+   */
+  public synchronized void boot() throws IOException {
+    long mark = hashIndex != null ? hashIndex.mark() : 0;
+    long metadataMark = metadataStore.mark();
+    List<Path> photos;
     try (var listing = Files.list(config.getDirectoryPath())) {
-      listing.forEach(photo -> {
-        try {
-          String id = photo.getFileName().toString();
-          String photoHash;
-          if (shaCache.containsKey(id)) {
-            photoHash = shaCache.get(id);
-          } else {
-            photoHash = bytesToSha256(Files.readAllBytes(photo));
-            shaCache.put(id, photoHash);
-          }
-          Path cachePath = cacheDir.resolve(photoHash + ".jpg");
-          if (!Files.exists(cachePath)) {
-            byte[] imageData = thumbnailService.createThumbnail(photo);
-            Files.write(cachePath, imageData);
+      photos = listing.filter(FileFilter::isImageFile).toList();
+    }
+
+    WarmupProgress run = new WarmupProgress(photos.size());
+    progress = run;
+    warmingUp = true;
+    logger.info("Warming up thumbnails for {} photos ({} hashing, {} resizing{})",
+        photos.size(),
+        hashConcurrency(),
+        resizeConcurrency(),
+        config.getWarmup().isVirtualThreads() ? ", virtual threads" : "");
+
+    // Bound the number of queued tasks so that the submission loop does not run far ahead of the workers
+    Semaphore inFlight = new Semaphore(2 * (hashConcurrency() + resizeConcurrency()));
+    try (ExecutorService executor = newWarmupExecutor()) {
+      for (Path photo : photos) {
+        inFlight.acquireUninterruptibly();
+        executor.execute(() -> {
+          try {
+            process(photo, run);
+          } finally {
+            inFlight.release();
           }
-        } catch (IOException | NoSuchAlgorithmException e) {
-          logger.warn("Failed to process photo: {}", photo.getFileName(), e);
+        });
+      }
+    } finally {
+      run.finish();
+      warmingUp = false;
+    }
+
+    Set<String> names = photos.stream().map(photo -> photo.getFileName().toString()).collect(Collectors.toSet());
+    if (hashIndex != null) {
+      hashIndex.compact(names, mark);
+    }
+    metadataStore.compact(names.stream()
+        .map(shaCache::get)
+        .filter(Objects::nonNull)
+        .collect(Collectors.toSet()), metadataMark);
+
+    logger.info("Thumbnail warm-up finished: {}", run);
+  }
+
+  /**
+   * Hash a photo, extract its metadata and create its cached thumbnail if it does not exist yet.
+   *
+   * @param photo the path to the photo file
+   */
+  public void process(Path photo) {
+    process(photo, null);
+  }
+
+  private void process(Path photo, WarmupProgress run) {
+    if (run != null) {
+      run.photoSeen();
+    }
+    try {
+      String id = photo.getFileName().toString();
+      String photoHash = hash(photo, run);
+      extractMetadata(id, photoHash, photo);
+      boolean generated;
+      resizePermits.acquireUninterruptibly();
+      try {
+        generated = thumbnailCache.ensure(photoHash, photo, warmDerivatives());
+      } finally {
+        resizePermits.release();
+      }
+      if (generated && run != null) {
+        run.photoThumbnailed();
+      }
+    } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+      logger.warn("Failed to process photo: {}", photo.getFileName(), e);
+      if (run != null) {
+        run.photoFailed();
+      }
+    } finally {
+      if (run != null) {
+        run.photoCompleted();
+        if (run.claimReport(Duration.ofSeconds(config.getWarmup().getProgressIntervalSeconds()))) {
+          logger.info("Thumbnail warm-up progress: {}", run);
         }
-      });
+      }
+    }
+  }
+
+  /**
+   * Extract the metadata of a photo. A photo whose metadata cannot be read still gets its thumbnail.
+   */
+  private void extractMetadata(String id, String photoHash, Path photo) {
+    try {
+      metadataStore.extract(id, photoHash, photo);
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Failed to read metadata of photo: {}", photo.getFileName(), e);
+    }
+  }
+
+  /**
+   * Get the content hash of a photo. The hash is taken from the in-memory cache, then from the persistent index if the
+   * file's size and modification time are unchanged, and only computed from the file content as a last resort.
+   *
+   * @param photo the path to the photo file
+   * @return the SHA-256 hash of the photo as a hexadecimal string
+   * @throws IOException              if the photo cannot be read
+   * @throws NoSuchAlgorithmException if the SHA-256 algorithm is not available in the environment
+   */
+  public String hash(Path photo) throws IOException, NoSuchAlgorithmException {
+    return hash(photo, null);
+  }
+
+  /**
+   * Get the content hash of a photo like {@link #hash(Path)}, counting towards the progress of a warm-up run whether
+   * it came from the index or had to be computed.
+   */
+  private String hash(Path photo, WarmupProgress run) throws IOException, NoSuchAlgorithmException {
+    String id = photo.getFileName().toString();
+    String photoHash = shaCache.get(id);
+    if (photoHash != null) {
+      memoryLookups.increment();
+      return photoHash;
     }
+
+    BasicFileAttributes attributes = Files.readAttributes(photo, BasicFileAttributes.class);
+    long size = attributes.size();
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    if (hashIndex != null) {
+      photoHash = hashIndex.lookup(id, size, lastModified);
+    }
+    if (photoHash != null) {
+      indexLookups.increment();
+      if (run != null) {
+        run.photoIndexed();
+      }
+    } else {
+      hashPermits.acquireUninterruptibly();
+      try {
+        Timer.Sample sample = Timer.start();
+        photoHash = fileToSha256(photo);
+        sample.stop(hashTimer);
+      } finally {
+        hashPermits.release();
+      }
+      computedHashes.increment();
+      if (run != null) {
+        run.photoHashed();
+      }
+      if (hashIndex != null) {
+        hashIndex.put(id, size, lastModified, photoHash);
+      }
+    }
+    shaCache.put(id, photoHash);
+    return photoHash;
+  }
+
+  /**
+   * Get the progress of the current or last warm-up run.
+   *
+   * @return the warm-up progress
+   */
+  public WarmupProgress getProgress() {
+    return progress;
+  }
+
+  /**
+   * Check whether a warm-up run is in progress.
+   *
+   * @return whether the thumbnail cache is being warmed up
+   */
+  public boolean isWarmingUp() {
+    return warmingUp;
+  }
+
+  /**
+   * Forget the cached hash and metadata of a photo, e.g. after it was modified or deleted.
+   *
+   * @param id the photo ID (filename)
+   */
+  public void invalidate(String id) {
+    shaCache.remove(id);
+    metadataStore.invalidate(id);
   }
 
   public Path getCacheDir() {
     return cacheDir;
   }
+
+  /**
+   * Whether the warm-up creates derivatives. Not when the disk cache has a byte budget: the warm-up would otherwise
+   * recreate on every start the derivatives the cache manager evicted to stay within it.
+   */
+  private boolean warmDerivatives() {
+    return config.getCache().getMaxSizeMb() <= 0;
+  }
+
+  private ExecutorService newWarmupExecutor() {
+    if (config.getWarmup().isVirtualThreads()) {
+      return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("thumbnail-warmup-", 0).factory());
+    }
+    return Executors.newFixedThreadPool(hashConcurrency() + resizeConcurrency(),
+        Thread.ofPlatform().name("thumbnail-warmup-", 0).daemon().factory());
+  }
+
+  private int hashConcurrency() {
+    return Math.max(1, config.getWarmup().getHashConcurrency());
+  }
+
+  private int resizeConcurrency() {
+    int resizeConcurrency = config.getWarmup().getResizeConcurrency();
+    return resizeConcurrency > 0 ? resizeConcurrency : Runtime.getRuntime().availableProcessors();
+  }
 }
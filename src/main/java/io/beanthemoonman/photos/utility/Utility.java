@@ -4,15 +4,31 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class Utility {
 
   private static final Logger logger = LoggerFactory.getLogger(Utility.class);
 
+  private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Digests and read buffers reused between hashes, so hashing a file allocates nothing proportional to its size. They
+   * are pooled rather than kept per thread because the warm-up may hash on thousands of short-lived virtual threads.
+   * Hashers returned to a full pool are left to the garbage collector.
+   */
+  private static final BlockingQueue<Sha256> SHA_256 =
+      new ArrayBlockingQueue<>(Math.max(4, Runtime.getRuntime().availableProcessors()));
+
+  private record Sha256(MessageDigest digest, byte[] buffer) {
+  }
+
   /**
    * Creates the specified directory if it does not already exist.
    *
@@ -37,10 +53,51 @@ public class Utility {
    * @throws NoSuchAlgorithmException if the SHA-256 algorithm is not available in the environment
    */
   public static String bytesToSha256(byte[] bytes) throws NoSuchAlgorithmException {
-    MessageDigest digest = MessageDigest.getInstance("SHA-256");
-    byte[] hashBytes = digest.digest(bytes);
+    Sha256 sha256 = sha256();
+    try {
+      return bytesToHex(sha256.digest().digest(bytes));
+    } finally {
+      release(sha256);
+    }
+  }
 
-    return bytesToHex(hashBytes);
+  /**
+   * Computes the SHA-256 hash of a file's content and returns it as a hexadecimal string. The file is streamed through
+   * a pooled buffer, so memory use does not depend on the size of the file.
+   *
+   * @param path the file to be hashed
+   * @return a hexadecimal string representing the SHA-256 hash of the file's content
+   * @throws IOException              if the file cannot be read
+   * @throws NoSuchAlgorithmException if the SHA-256 algorithm is not available in the environment
+   */
+  public static String fileToSha256(Path path) throws IOException, NoSuchAlgorithmException {
+    Sha256 sha256 = sha256();
+    try (InputStream input = Files.newInputStream(path)) {
+      byte[] buffer = sha256.buffer();
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        sha256.digest().update(buffer, 0, read);
+      }
+      return bytesToHex(sha256.digest().digest());
+    } finally {
+      release(sha256);
+    }
+  }
+
+  /**
+   * Takes a digest and read buffer from the pool, creating them if the pool is empty.
+   */
+  private static Sha256 sha256() throws NoSuchAlgorithmException {
+    Sha256 sha256 = SHA_256.poll();
+    return sha256 != null ? sha256 : new Sha256(MessageDigest.getInstance("SHA-256"), new byte[HASH_BUFFER_SIZE]);
+  }
+
+  /**
+   * Returns a digest to the pool. It is reset first, so a hash that failed halfway cannot leak into the next one.
+   */
+  private static void release(Sha256 sha256) {
+    sha256.digest().reset();
+    SHA_256.offer(sha256);
   }
 
   /**
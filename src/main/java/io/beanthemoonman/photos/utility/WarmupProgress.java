@@ -0,0 +1,158 @@
+package io.beanthemoonman.photos.utility;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress counters of a thumbnail warm-up run. All counters are safe to update and read concurrently.
+ */
+public class WarmupProgress {
+
+  private final long total;
+
+  private final long startNanos = System.nanoTime();
+
+  private final LongAdder seen = new LongAdder();
+
+  private final LongAdder indexed = new LongAdder();
+
+  private final LongAdder hashed = new LongAdder();
+
+  private final LongAdder thumbnailed = new LongAdder();
+
+  private final LongAdder failed = new LongAdder();
+
+  private final LongAdder completed = new LongAdder();
+
+  private final AtomicLong lastReportNanos = new AtomicLong(startNanos);
+
+  private volatile long finishNanos = -1;
+
+  public WarmupProgress(long total) {
+    this.total = total;
+  }
+
+  public void photoSeen() {
+    seen.increment();
+  }
+
+  /**
+   * Count a photo whose hash was found in the persistent index, so its content did not have to be read.
+   */
+  public void photoIndexed() {
+    indexed.increment();
+  }
+
+  /**
+   * Count a photo whose hash was computed from its content.
+   */
+  public void photoHashed() {
+    hashed.increment();
+  }
+
+  public void photoThumbnailed() {
+    thumbnailed.increment();
+  }
+
+  public void photoFailed() {
+    failed.increment();
+  }
+
+  public void photoCompleted() {
+    completed.increment();
+  }
+
+  public void finish() {
+    finishNanos = System.nanoTime();
+  }
+
+  /**
+   * Claim the next progress report. At most one caller per interval gets {@code true}.
+   *
+   * @param interval the minimum time between reports
+   * @return whether the caller should report progress now
+   */
+  public boolean claimReport(Duration interval) {
+    long last = lastReportNanos.get();
+    long now = System.nanoTime();
+    return now - last >= interval.toNanos() && lastReportNanos.compareAndSet(last, now);
+  }
+
+  public long getTotal() {
+    return total;
+  }
+
+  public long getSeen() {
+    return seen.sum();
+  }
+
+  public long getIndexed() {
+    return indexed.sum();
+  }
+
+  public long getHashed() {
+    return hashed.sum();
+  }
+
+  public long getThumbnailed() {
+    return thumbnailed.sum();
+  }
+
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  public long getCompleted() {
+    return completed.sum();
+  }
+
+  public boolean isFinished() {
+    return finishNanos >= 0;
+  }
+
+  public Duration getElapsed() {
+    long end = isFinished() ? finishNanos : System.nanoTime();
+    return Duration.ofNanos(end - startNanos);
+  }
+
+  /**
+   * Get the throughput of the run so far.
+   *
+   * @return the number of completed photos per second
+   */
+  public double getThroughput() {
+    double seconds = getElapsed().toNanos() / 1e9;
+    return seconds > 0 ? getCompleted() / seconds : 0;
+  }
+
+  /**
+   * Estimate the remaining time from the throughput so far.
+   *
+   * @return the estimated remaining time, or null if it cannot be estimated yet
+   */
+  public Duration getEta() {
+    if (isFinished()) {
+      return Duration.ZERO;
+    }
+    double throughput = getThroughput();
+    if (throughput <= 0) {
+      return null;
+    }
+    long remaining = Math.max(0, total - getCompleted());
+    return Duration.ofMillis((long) (remaining / throughput * 1000));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d/%d photos (%d indexed, %d hashed, %d thumbnailed, %d failed) in %ds, %.1f photos/s",
+        getCompleted(),
+        total,
+        getIndexed(),
+        getHashed(),
+        getThumbnailed(),
+        getFailed(),
+        getElapsed().toSeconds(),
+        getThroughput());
+  }
+}
@@ -11,13 +11,18 @@ document.addEventListener('DOMContentLoaded', function () {
     const themeToggle = document.getElementById('theme-toggle');
 
     // State
-    let currentPage = 0;
+    let nextCursor = '';
     let pageSize = 24;
-    let totalPages = 0;
     let isLoading = false;
     let allPhotosLoaded = false;
     let modalOpen = false;
 
+    // Sort order of the gallery, passed through from the page URL, e.g. /?sort=taken
+    const sort = new URLSearchParams(window.location.search).get('sort') || 'modified';
+
+    // Rendered width of a grid thumbnail, matching the grid columns in styles.css
+    const thumbnailSizes = '(max-width: 768px) 50vw, 400px';
+
     // Theme functionality
     function initTheme() {
         // Check for saved theme preference or use the system preference
@@ -74,15 +79,16 @@ document.addEventListener('DOMContentLoaded', function () {
             loadingMoreElement.style.display = 'flex';
         }
 
-        // Fetch photos from the API
-        fetch(`/api/photos?page=${currentPage}&size=${pageSize}`)
+        // Fetch photos from the API, continuing after the last photo shown so that new photos don't shift the pages
+        const pageQuery = `cursor=${encodeURIComponent(nextCursor)}&size=${pageSize}&sort=${encodeURIComponent(sort)}`;
+        fetch(`/api/photos?${pageQuery}`)
             .then(response => response.json())
             .then(data => {
                 // Update state
-                totalPages = data.totalPages;
-                
+                nextCursor = data.nextCursor;
+
                 // Check if we've reached the end
-                if (currentPage >= totalPages - 1 || data.photos.length === 0) {
+                if (!nextCursor || data.photos.length === 0) {
                     allPhotosLoaded = true;
                 }
 
@@ -98,24 +104,27 @@ document.addEventListener('DOMContentLoaded', function () {
                     }
                 }
 
-                // Add photos to the carousel
+                // Add photos to the carousel, their thumbnails follow
+                const images = new Map();
                 data.photos.forEach(photo => {
                     const photoElement = document.createElement('div');
                     photoElement.className = 'photo';
 
                     const img = document.createElement('img');
-                    img.src = photo.thumbnailUrl;
+                    images.set(photo.id, { img, photo });
                     img.alt = photo.filename;
                     img.dataset.fullSizeUrl = photo.fullSizeUrl;
+                    img.dataset.srcset = photo.srcset || '';
 
                     // Add click event to show the full-size image
                     img.addEventListener('click', function () {
-                        showFullSizeImage(this.dataset.fullSizeUrl);
+                        showFullSizeImage(this.dataset.fullSizeUrl, this.dataset.srcset);
                     });
 
                     photoElement.appendChild(img);
                     photoCarousel.appendChild(photoElement);
                 });
+                loadThumbnails(images);
                 
                 // Hide loading indicator
                 loadingMoreElement.style.display = 'none';
@@ -132,10 +141,117 @@ document.addEventListener('DOMContentLoaded', function () {
             });
     }
 
+    // Load the thumbnails of a page. Fingerprinted thumbnail URLs are immutable, so the browser may serve them from
+    // its cache; they load individually with their srcset. Photos that are not hashed yet have no fingerprint and load
+    // in one streamed multipart response instead, each shown as soon as its part arrives. Photos missing from the
+    // batch, or all of them if the batch fails, load their thumbnails individually.
+    function loadThumbnails(images) {
+        images.forEach((entry, id) => {
+            if (isFingerprinted(entry.photo.thumbnailUrl)) {
+                showThumbnail(entry.img, entry.photo);
+                images.delete(id);
+            }
+        });
+        if (images.size === 0) return;
+
+        const cellWidth = window.innerWidth <= 768 ? window.innerWidth / 2 : 400;
+        const width = Math.round(cellWidth * (window.devicePixelRatio || 1));
+        const idQuery = Array.from(images.keys(), id => `id=${encodeURIComponent(id)}`).join('&');
+
+        fetch(`/api/photos/thumbnails?${idQuery}&w=${width}`)
+            .then(response => {
+                if (!response.ok || !response.body) {
+                    throw new Error(`Thumbnail batch failed with status ${response.status}`);
+                }
+                return readParts(response, (id, blob) => {
+                    const entry = images.get(id);
+                    if (entry) {
+                        showBlob(entry.img, blob);
+                        images.delete(id);
+                    }
+                });
+            })
+            .catch(error => console.error('Error loading thumbnails:', error))
+            .finally(() => images.forEach(({ img, photo }) => showThumbnail(img, photo)));
+    }
+
+    function isFingerprinted(url) {
+        return new URL(url, window.location.origin).searchParams.has('v');
+    }
+
+    // Show an image from a blob, releasing the object URL once the image has decoded it
+    function showBlob(img, blob) {
+        const url = URL.createObjectURL(blob);
+        const revoke = () => URL.revokeObjectURL(url);
+        img.addEventListener('load', revoke, { once: true });
+        img.addEventListener('error', revoke, { once: true });
+        img.src = url;
+    }
+
+    function showThumbnail(img, photo) {
+        img.src = photo.thumbnailUrl;
+        if (photo.srcset) {
+            // Let the browser pick the smallest derivative that fills the grid cell
+            img.srcset = photo.srcset;
+            img.sizes = thumbnailSizes;
+        }
+    }
+
+    // Read a multipart/mixed stream whose parts carry a Content-Length, calling onPart with the decoded Content-ID and
+    // the body of each part as soon as it is complete
+    async function readParts(response, onPart) {
+        const reader = response.body.getReader();
+        const decoder = new TextDecoder();
+        let buffer = new Uint8Array(0);
+        let part = null;
+
+        for (;;) {
+            // Cut as many complete parts from the buffer as it holds
+            for (;;) {
+                if (!part) {
+                    const headerEnd = indexOfBlankLine(buffer);
+                    if (headerEnd < 0) break;
+                    const headers = {};
+                    // The first line is the boundary delimiter
+                    decoder.decode(buffer.subarray(0, headerEnd)).split('\r\n').slice(1).forEach(line => {
+                        const colon = line.indexOf(':');
+                        headers[line.slice(0, colon).trim().toLowerCase()] = line.slice(colon + 1).trim();
+                    });
+                    part = {
+                        id: decodeURIComponent((headers['content-id'] || '').replace(/^<|>$/g, '').replace(/\+/g, ' ')),
+                        type: headers['content-type'],
+                        length: parseInt(headers['content-length'], 10)
+                    };
+                    buffer = buffer.subarray(headerEnd + 4);
+                }
+                // The body is followed by a line break
+                if (buffer.length < part.length + 2) break;
+                onPart(part.id, new Blob([buffer.slice(0, part.length)], { type: part.type }));
+                buffer = buffer.subarray(part.length + 2);
+                part = null;
+            }
+
+            const { done, value } = await reader.read();
+            if (done) return;
+            const joined = new Uint8Array(buffer.length + value.length);
+            joined.set(buffer);
+            joined.set(value, buffer.length);
+            buffer = joined;
+        }
+    }
+
+    function indexOfBlankLine(bytes) {
+        for (let i = 0; i + 3 < bytes.length; i++) {
+            if (bytes[i] === 13 && bytes[i + 1] === 10 && bytes[i + 2] === 13 && bytes[i + 3] === 10) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     // Load more photos when scrolling near bottom
     function loadMorePhotos() {
         if (!isLoading && !allPhotosLoaded) {
-            currentPage++;
             loadPhotos(true);
         }
     }
@@ -151,14 +267,21 @@ document.addEventListener('DOMContentLoaded', function () {
         }
     }
 
-    // Show full-size image in modal
-    function showFullSizeImage(url) {
+    // Show a screen-sized derivative in the modal, falling back to the original image
+    function setModalImage(url, srcset) {
+        fullSizeImage.srcset = srcset || '';
+        fullSizeImage.sizes = srcset ? '100vw' : '';
         fullSizeImage.src = url;
+    }
+
+    // Show full-size image in modal
+    function showFullSizeImage(url, srcset) {
+        setModalImage(url, srcset);
         modal.style.display = 'block';
         modalOpen = true;
         
         // Add a history entry for the modal
-        history.pushState({ modalOpen: true, imageUrl: url }, '', '');
+        history.pushState({ modalOpen: true, imageUrl: url, srcset: srcset }, '', '');
     }
     
     // Close the modal
@@ -186,7 +309,7 @@ document.addEventListener('DOMContentLoaded', function () {
             modalOpen = false;
         } else if (!modalOpen && event.state && event.state.modalOpen) {
             // Forward button pressed to reopen modal
-            fullSizeImage.src = event.state.imageUrl;
+            setModalImage(event.state.imageUrl, event.state.srcset);
             modal.style.display = 'block';
             modalOpen = true;
         }
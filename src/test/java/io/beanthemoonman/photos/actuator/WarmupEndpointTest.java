@@ -0,0 +1,81 @@
+package io.beanthemoonman.photos.actuator;
+
+import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import io.beanthemoonman.photos.utility.WarmupProgress;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.when;
+
+class WarmupEndpointTest {
+
+  @Mock
+  private ThumbnailHasher thumbnailHasher;
+
+  private WarmupEndpoint warmupEndpoint;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.openMocks(this);
+    warmupEndpoint = new WarmupEndpoint(thumbnailHasher);
+  }
+
+  @Test
+  void testPendingBeforeFirstRun() {
+    when(thumbnailHasher.getProgress()).thenReturn(new WarmupProgress(0));
+
+    Map<String, Object> warmup = warmupEndpoint.warmup();
+
+    assertEquals("pending", warmup.get("state"));
+    assertEquals(0L, warmup.get("total"));
+    assertNull(warmup.get("etaSeconds"));
+  }
+
+  @Test
+  void testRunningReportsCounters() {
+    WarmupProgress progress = new WarmupProgress(10);
+    for (int i = 0; i < 4; i++) {
+      progress.photoSeen();
+      if (i == 0) {
+        progress.photoIndexed();
+      } else {
+        progress.photoHashed();
+      }
+      progress.photoCompleted();
+    }
+    progress.photoThumbnailed();
+    progress.photoFailed();
+    when(thumbnailHasher.getProgress()).thenReturn(progress);
+    when(thumbnailHasher.isWarmingUp()).thenReturn(true);
+
+    Map<String, Object> warmup = warmupEndpoint.warmup();
+
+    assertEquals("running", warmup.get("state"));
+    assertEquals(10L, warmup.get("total"));
+    assertEquals(4L, warmup.get("seen"));
+    assertEquals(1L, warmup.get("indexed"));
+    assertEquals(3L, warmup.get("hashed"));
+    assertEquals(1L, warmup.get("thumbnailed"));
+    assertEquals(1L, warmup.get("failed"));
+    assertEquals(4L, warmup.get("completed"));
+  }
+
+  @Test
+  void testFinishedHasNoTimeLeft() {
+    WarmupProgress progress = new WarmupProgress(1);
+    progress.photoCompleted();
+    progress.finish();
+    when(thumbnailHasher.getProgress()).thenReturn(progress);
+
+    Map<String, Object> warmup = warmupEndpoint.warmup();
+
+    assertEquals("finished", warmup.get("state"));
+    assertEquals(0L, warmup.get("etaSeconds"));
+  }
+}
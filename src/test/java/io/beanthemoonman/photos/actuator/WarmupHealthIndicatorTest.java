@@ -0,0 +1,53 @@
+package io.beanthemoonman.photos.actuator;
+
+import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import io.beanthemoonman.photos.utility.WarmupProgress;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.when;
+
+class WarmupHealthIndicatorTest {
+
+  @Mock
+  private ThumbnailHasher thumbnailHasher;
+
+  private WarmupHealthIndicator healthIndicator;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.openMocks(this);
+    healthIndicator = new WarmupHealthIndicator(thumbnailHasher);
+  }
+
+  @Test
+  void testUpButColdWhileWarmingUp() {
+    when(thumbnailHasher.getProgress()).thenReturn(new WarmupProgress(10));
+    when(thumbnailHasher.isWarmingUp()).thenReturn(true);
+
+    Health health = healthIndicator.health();
+
+    // A cold cache still serves requests, so readiness is not held back
+    assertEquals(Status.UP, health.getStatus());
+    assertEquals(false, health.getDetails().get("warm"));
+    assertEquals("running", health.getDetails().get("state"));
+  }
+
+  @Test
+  void testWarmOnceFinished() {
+    WarmupProgress progress = new WarmupProgress(0);
+    progress.finish();
+    when(thumbnailHasher.getProgress()).thenReturn(progress);
+
+    Health health = healthIndicator.health();
+
+    assertEquals(Status.UP, health.getStatus());
+    assertEquals(true, health.getDetails().get("warm"));
+    assertEquals("finished", health.getDetails().get("state"));
+  }
+}
@@ -6,6 +6,7 @@ import org.springframework.boot.test.context.SpringBootTest;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -27,6 +28,7 @@ class PhotosConfigTest {
     // Test thumbnail properties
     assertEquals(400, photosConfig.getThumbnail().getWidth());
     assertEquals(400, photosConfig.getThumbnail().getHeight());
+    assertEquals(List.of(200, 400, 800, 1600, 2560), photosConfig.getThumbnail().getSizes());
   }
 
   @Test
@@ -0,0 +1,71 @@
+package io.beanthemoonman.photos.controller;
+
+import io.beanthemoonman.photos.utility.PhotoMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class BytesServedFilterTest {
+
+  private SimpleMeterRegistry registry;
+
+  private BytesServedFilter filter;
+
+  @BeforeEach
+  void setUp() {
+    registry = new SimpleMeterRegistry();
+    filter = new BytesServedFilter(registry);
+  }
+
+  @Test
+  void testCountsBytesByEndpoint() throws Exception {
+    serve("/api/photos/test.jpg/thumbnail", 1000);
+    serve("/api/photos/test.jpg/thumbnail", 500);
+    serve("/api/photos", 42);
+    serve("/", 7);
+
+    assertEquals(1500.0, bytesServed("thumbnail"));
+    assertEquals(42.0, bytesServed("list"));
+    assertEquals(0.0, bytesServed("full"));
+  }
+
+  @Test
+  void testEndpointIsFoundByPath() {
+    assertSame(counter("list"), filter.counterFor("/api/photos"));
+    assertSame(counter("thumbnails"), filter.counterFor("/api/photos/thumbnails"));
+    assertSame(counter("thumbnail"), filter.counterFor("/api/photos/a.jpg/thumbnail"));
+    assertSame(counter("full"), filter.counterFor("/api/photos/a.jpg/full"));
+    assertSame(counter("photo"), filter.counterFor("/api/photos/a.jpg"));
+  }
+
+  private void serve(String path, int length) throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+    MockFilterChain chain = new MockFilterChain(new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.getOutputStream().write(new byte[length]);
+      }
+    });
+    filter.doFilter(request, new MockHttpServletResponse(), chain);
+  }
+
+  private double bytesServed(String endpoint) {
+    return counter(endpoint).count();
+  }
+
+  private Counter counter(String endpoint) {
+    return registry.get(PhotoMetrics.BYTES_SERVED).tag("endpoint", endpoint).counter();
+  }
+}
@@ -0,0 +1,37 @@
+package io.beanthemoonman.photos.controller;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class MultipartWriterTest {
+
+  @Test
+  void testPartsAreFramedWithLengthAndId() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    MultipartWriter writer = new MultipartWriter(outputStream, "b");
+
+    writer.writePart("a.jpg", MediaType.IMAGE_JPEG, "one".getBytes(StandardCharsets.US_ASCII));
+    writer.writePart("Ferien ü.jpg", MediaType.IMAGE_JPEG, "two!".getBytes(StandardCharsets.US_ASCII));
+    writer.close();
+
+    assertEquals("--b\r\nContent-Type: image/jpeg\r\nContent-ID: <a.jpg>\r\nContent-Length: 3\r\n\r\none\r\n"
+            + "--b\r\nContent-Type: image/jpeg\r\nContent-ID: <Ferien+%C3%BC.jpg>\r\nContent-Length: 4\r\n\r\ntwo!\r\n"
+            + "--b--\r\n",
+        outputStream.toString(StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  void testBoundaryIsUniqueAndInContentType() {
+    String boundary = MultipartWriter.newBoundary();
+
+    assertNotEquals(boundary, MultipartWriter.newBoundary());
+    assertEquals("multipart/mixed;boundary=" + boundary, MultipartWriter.contentType(boundary).toString());
+  }
+}
@@ -2,22 +2,39 @@ package io.beanthemoonman.photos.controller;
 
 import io.beanthemoonman.photos.model.Photo;
 import io.beanthemoonman.photos.model.PhotoPage;
+import io.beanthemoonman.photos.model.PhotoSort;
 import io.beanthemoonman.photos.service.PhotoService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 class PhotoControllerTest {
@@ -50,7 +67,7 @@ class PhotoControllerTest {
     PhotoPage photoPage = new PhotoPage(Arrays.asList(photo1, photo2), 0, 12, 1, 2);
 
     // Mock service response
-    when(photoService.getPhotos(0, 12)).thenReturn(photoPage);
+    when(photoService.getPhotos(0, 12, PhotoSort.MODIFIED)).thenReturn(photoPage);
 
     // Test endpoint
     mockMvc.perform(get("/api/photos"))
@@ -64,6 +81,85 @@ class PhotoControllerTest {
         .andExpect(jsonPath("$.totalElements").value(2));
   }
 
+  @Test
+  void testGetPhotosAfterCursor() throws Exception {
+    // Create test data
+    Photo photo = new Photo("photo3.jpg",
+        "photo3.jpg",
+        "/api/photos/photo3.jpg/thumbnail",
+        "/api/photos/photo3.jpg/full");
+    PhotoPage photoPage = new PhotoPage(Arrays.asList(photo), 1, 2, 3, 5);
+    photoPage.setNextCursor("next");
+
+    // Mock service response
+    when(photoService.getPhotosAfter("abc", 2, PhotoSort.MODIFIED)).thenReturn(photoPage);
+    when(photoService.getPhotosAfter("bad", 2, PhotoSort.MODIFIED))
+        .thenThrow(new IllegalArgumentException("Invalid cursor"));
+    when(photoService.getPhotosAfter("abc", 2, PhotoSort.NAME))
+        .thenThrow(new IllegalArgumentException("Cursor was created for sort order MODIFIED, not NAME"));
+
+    // Test endpoint
+    mockMvc.perform(get("/api/photos").param("cursor", "abc").param("size", "2"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.photos[0].id").value("photo3.jpg"))
+        .andExpect(jsonPath("$.nextCursor").value("next"));
+    mockMvc.perform(get("/api/photos").param("cursor", "bad").param("size", "2"))
+        .andExpect(status().isBadRequest());
+    // A cursor only continues the sort order it was created for
+    mockMvc.perform(get("/api/photos").param("cursor", "abc").param("size", "2").param("sort", "name"))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void testGetPhotosSorted() throws Exception {
+    Photo photo = new Photo("photo1.jpg",
+        "photo1.jpg",
+        "/api/photos/photo1.jpg/thumbnail",
+        "/api/photos/photo1.jpg/full");
+    PhotoPage photoPage = new PhotoPage(Arrays.asList(photo), 0, 12, 1, 1);
+
+    // Mock service response
+    when(photoService.getPhotos(0, 12, PhotoSort.TAKEN)).thenReturn(photoPage);
+
+    // Test endpoint, the sort order is not case-sensitive
+    mockMvc.perform(get("/api/photos").param("sort", "Taken"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.photos[0].id").value("photo1.jpg"));
+    mockMvc.perform(get("/api/photos").param("sort", "random"))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void testGetThumbnailsOfSeveralPhotos() throws Exception {
+    // Mock service response
+    doAnswer(invocation -> {
+      invocation.<PhotoService.ThumbnailConsumer>getArgument(2).accept("photo 1.jpg", "thumb".getBytes());
+      return null;
+    }).when(photoService).getThumbnailImages(eq(List.of("photo 1.jpg", "missing.jpg")), eq(400), any());
+
+    // Test endpoint, the body is streamed asynchronously
+    MvcResult result = mockMvc.perform(get("/api/photos/thumbnails")
+            .param("id", "photo 1.jpg", "missing.jpg")
+            .param("w", "400"))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(header().string(HttpHeaders.CONTENT_TYPE, containsString("multipart/mixed;boundary=")))
+        .andExpect(content().string(containsString("Content-ID: <photo+1.jpg>\r\nContent-Length: 5\r\n\r\nthumb\r\n")));
+  }
+
+  @Test
+  void testGetThumbnailsRejectsOversizedBatch() throws Exception {
+    String[] ids = new String[101];
+    Arrays.setAll(ids, i -> "photo" + i + ".jpg");
+
+    mockMvc.perform(get("/api/photos/thumbnails").param("id", ids))
+        .andExpect(status().isBadRequest());
+    mockMvc.perform(get("/api/photos/thumbnails"))
+        .andExpect(status().isBadRequest());
+  }
+
   @Test
   void testGetPhoto() throws Exception {
     // Create test data
@@ -99,22 +195,73 @@ class PhotoControllerTest {
     byte[] imageData = "test image data".getBytes();
 
     // Mock service response
-    when(photoService.getThumbnailImage("photo1.jpg")).thenReturn(imageData);
+    when(photoService.getThumbnailImageAsync("photo1.jpg", null))
+        .thenReturn(CompletableFuture.completedFuture(imageData));
 
     // Test endpoint
-    mockMvc.perform(get("/api/photos/photo1.jpg/thumbnail"))
+    performAsync(get("/api/photos/photo1.jpg/thumbnail"))
         .andExpect(status().isOk())
         .andExpect(content().contentType(MediaType.IMAGE_JPEG))
         .andExpect(content().bytes(imageData));
   }
 
+  @Test
+  void testGetThumbnailNotModified() throws Exception {
+    // Mock service response
+    when(photoService.getThumbnailVersion("photo1.jpg", null)).thenReturn("abc123-1f");
+
+    // Test that a matching ETag is answered without loading the thumbnail
+    performAsync(get("/api/photos/photo1.jpg/thumbnail").header(HttpHeaders.IF_NONE_MATCH, "\"abc123-1f\""))
+        .andExpect(status().isNotModified())
+        .andExpect(header().string(HttpHeaders.ETAG, "\"abc123-1f\""));
+    verify(photoService, never()).getThumbnailImageAsync("photo1.jpg", null);
+  }
+
+  @Test
+  void testGetThumbnailFingerprintedUrlIsImmutable() throws Exception {
+    // Create test image data
+    byte[] imageData = "test image data".getBytes();
+
+    // Mock service response
+    when(photoService.getThumbnailVersion("photo1.jpg", null)).thenReturn("abc123-1f");
+    when(photoService.getThumbnailImageAsync("photo1.jpg", null))
+        .thenReturn(CompletableFuture.completedFuture(imageData));
+
+    // Test that the current fingerprint gets immutable caching and a stale one does not
+    performAsync(get("/api/photos/photo1.jpg/thumbnail").param("v", "abc123-1f"))
+        .andExpect(status().isOk())
+        .andExpect(header().string(HttpHeaders.ETAG, "\"abc123-1f\""))
+        .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=31536000, public, immutable"));
+    performAsync(get("/api/photos/photo1.jpg/thumbnail").param("v", "old-1f"))
+        .andExpect(status().isOk())
+        .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=86400, public"));
+  }
+
+  @Test
+  void testGetThumbnailWithWidth() throws Exception {
+    // Create test image data
+    byte[] imageData = "test derivative data".getBytes();
+
+    // Mock service response
+    when(photoService.getThumbnailVersion("photo1.jpg", 800)).thenReturn("abc123-2e");
+    when(photoService.getThumbnailImageAsync("photo1.jpg", 800))
+        .thenReturn(CompletableFuture.completedFuture(imageData));
+
+    // Test that the requested width is passed on and versioned separately
+    performAsync(get("/api/photos/photo1.jpg/thumbnail").param("w", "800"))
+        .andExpect(status().isOk())
+        .andExpect(header().string(HttpHeaders.ETAG, "\"abc123-2e\""))
+        .andExpect(content().bytes(imageData));
+  }
+
   @Test
   void testGetThumbnailNotFound() throws Exception {
     // Mock service response for non-existent thumbnail
-    when(photoService.getThumbnailImage("nonexistent.jpg")).thenReturn(null);
+    when(photoService.getThumbnailImageAsync("nonexistent.jpg", null))
+        .thenReturn(CompletableFuture.completedFuture(null));
 
     // Test endpoint
-    mockMvc.perform(get("/api/photos/nonexistent.jpg/thumbnail")).andExpect(status().isNotFound());
+    performAsync(get("/api/photos/nonexistent.jpg/thumbnail")).andExpect(status().isNotFound());
   }
 
   @Test
@@ -123,7 +270,7 @@ class PhotoControllerTest {
     byte[] imageData = "test full size image data".getBytes();
 
     // Mock service response
-    when(photoService.getFullSizeImage("photo1.jpg")).thenReturn(imageData);
+    when(photoService.getFullSizeImage("photo1.jpg")).thenReturn(new ByteArrayResource(imageData));
 
     // Test endpoint
     mockMvc.perform(get("/api/photos/photo1.jpg/full"))
@@ -132,6 +279,49 @@ class PhotoControllerTest {
         .andExpect(content().bytes(imageData));
   }
 
+  @Test
+  void testGetFullSizeImageRange() throws Exception {
+    // Create test image data
+    byte[] imageData = "test full size image data".getBytes();
+
+    // Mock service response
+    when(photoService.getFullSizeImage("photo1.jpg")).thenReturn(new ByteArrayResource(imageData));
+
+    // Test that a single range is served as partial content
+    mockMvc.perform(get("/api/photos/photo1.jpg/full").header(HttpHeaders.RANGE, "bytes=5-8"))
+        .andExpect(status().isPartialContent())
+        .andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))
+        .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 5-8/" + imageData.length))
+        .andExpect(content().bytes("full".getBytes()));
+  }
+
+  @Test
+  void testGetFullSizeImageStaleIfRange() throws Exception {
+    // Create test image data
+    byte[] imageData = "test full size image data".getBytes();
+
+    // Mock service response
+    when(photoService.getFullSizeImage("photo1.jpg")).thenReturn(new ByteArrayResource(imageData));
+
+    // Test that a range with a stale validator is ignored and the full image is sent
+    mockMvc.perform(get("/api/photos/photo1.jpg/full")
+            .header(HttpHeaders.RANGE, "bytes=5-8")
+            .header(HttpHeaders.IF_RANGE, "\"stale\""))
+        .andExpect(status().isOk())
+        .andExpect(content().bytes(imageData));
+  }
+
+  @Test
+  void testGetFullSizeImageNotModified() throws Exception {
+    // Mock service response
+    when(photoService.getFullSizeVersion("photo1.jpg")).thenReturn("abc123");
+
+    // Test that a matching ETag is answered without opening the image
+    mockMvc.perform(get("/api/photos/photo1.jpg/full").header(HttpHeaders.IF_NONE_MATCH, "\"abc123\""))
+        .andExpect(status().isNotModified());
+    verify(photoService, never()).getFullSizeImage("photo1.jpg");
+  }
+
   @Test
   void testGetFullSizeImageNotFound() throws Exception {
     // Mock service response for non-existent image
@@ -140,4 +330,12 @@ class PhotoControllerTest {
     // Test endpoint
     mockMvc.perform(get("/api/photos/nonexistent.jpg/full")).andExpect(status().isNotFound());
   }
+
+  /**
+   * Perform a request to an endpoint that completes asynchronously and dispatch its result.
+   */
+  private ResultActions performAsync(MockHttpServletRequestBuilder requestBuilder) throws Exception {
+    MvcResult result = mockMvc.perform(requestBuilder).andExpect(request().asyncStarted()).andReturn();
+    return mockMvc.perform(asyncDispatch(result));
+  }
 }
@@ -0,0 +1,115 @@
+package io.beanthemoonman.photos.controller;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.service.PhotoService;
+import io.beanthemoonman.photos.utility.ClientRateLimiter.EndpointClass;
+import io.beanthemoonman.photos.utility.PhotoMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RateLimitFilterTest {
+
+  private PhotosConfig config;
+
+  private PhotoService photoService;
+
+  private SimpleMeterRegistry registry;
+
+  @BeforeEach
+  void setUp() {
+    config = new PhotosConfig();
+    config.getRateLimit().setFullSizePerMinute(2);
+    photoService = mock(PhotoService.class);
+    registry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  void testThrottledRequestsGet429WithRetryAfter() throws Exception {
+    RateLimitFilter filter = new RateLimitFilter(config, photoService, registry);
+
+    assertEquals(200, perform(filter, "/api/photos/a.jpg/full", "10.0.0.1").getStatus());
+    assertEquals(200, perform(filter, "/api/photos/b.jpg/full", "10.0.0.1").getStatus());
+    MockHttpServletResponse throttled = perform(filter, "/api/photos/c.jpg/full", "10.0.0.1");
+
+    assertEquals(429, throttled.getStatus());
+    assertEquals("30", throttled.getHeader(HttpHeaders.RETRY_AFTER));
+    assertEquals(200, perform(filter, "/api/photos/c.jpg/full", "10.0.0.2").getStatus());
+    assertEquals(200, perform(filter, "/api/photos", "10.0.0.1").getStatus());
+    assertEquals(1.0, registry.get(PhotoMetrics.RATE_LIMITED).tag("endpoint", "full-size").counter().count());
+  }
+
+  @Test
+  void testDisabledFilterPassesEverything() throws Exception {
+    config.getRateLimit().setEnabled(false);
+    RateLimitFilter filter = new RateLimitFilter(config, photoService, registry);
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals(200, perform(filter, "/api/photos/a.jpg/full", "10.0.0.1").getStatus());
+    }
+  }
+
+  @Test
+  void testThumbnailsAreClassedByWhetherTheyAreCached() {
+    RateLimitFilter filter = new RateLimitFilter(config, photoService, registry);
+    when(photoService.isThumbnailCached("photo 1.jpg", 800)).thenReturn(true);
+
+    assertEquals(charge(EndpointClass.THUMBNAIL, 1),
+        filter.classify("/api/photos/photo%201.jpg/thumbnail", "800", null));
+    assertEquals(charge(EndpointClass.THUMBNAIL_GENERATE, 1),
+        filter.classify("/api/photos/other.jpg/thumbnail", null, null));
+    assertEquals(charge(EndpointClass.FULL_SIZE, 1), filter.classify("/api/photos/photo.jpg/full", null, null));
+    assertEquals(charge(EndpointClass.LISTING, 1), filter.classify("/api/photos/photo.jpg", null, null));
+    assertEquals(charge(EndpointClass.LISTING, 1), filter.classify("/api/photos", null, null));
+  }
+
+  @Test
+  void testBatchesAreChargedPerUncachedThumbnail() throws Exception {
+    config.getRateLimit().setThumbnailGeneratePerMinute(4);
+    RateLimitFilter filter = new RateLimitFilter(config, photoService, registry);
+    when(photoService.isThumbnailCached("cached.jpg", null)).thenReturn(true);
+    String[] batch = { "a.jpg", "b.jpg", "cached.jpg", "c.jpg" };
+
+    assertEquals(charge(EndpointClass.THUMBNAIL_GENERATE, 3), filter.classify("/api/photos/thumbnails", null, batch));
+    assertEquals(charge(EndpointClass.THUMBNAIL, 1),
+        filter.classify("/api/photos/thumbnails", null, new String[] { "cached.jpg" }));
+
+    // A batch of three new photos takes three of the four tokens, so the same batch no longer fits
+    assertEquals(200, perform(filter, "/api/photos/thumbnails", "10.0.0.1", batch).getStatus());
+    assertEquals(429, perform(filter, "/api/photos/thumbnails", "10.0.0.1", batch).getStatus());
+    assertEquals(200, perform(filter, "/api/photos/d.jpg/thumbnail", "10.0.0.1").getStatus());
+    assertEquals(429, perform(filter, "/api/photos/d.jpg/thumbnail", "10.0.0.1").getStatus());
+  }
+
+  private static RateLimitFilter.Charge charge(EndpointClass endpointClass, long tokens) {
+    return new RateLimitFilter.Charge(endpointClass, tokens);
+  }
+
+  private static MockHttpServletResponse perform(RateLimitFilter filter, String path, String remoteAddress,
+      String... ids) throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+    request.setRemoteAddr(remoteAddress);
+    if (ids.length > 0) {
+      request.setParameter("id", ids);
+    }
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    MockFilterChain chain = new MockFilterChain();
+    filter.doFilter(request, response, chain);
+    if (response.getStatus() == 200) {
+      assertNotNull(chain.getRequest());
+    } else {
+      assertNull(chain.getRequest());
+    }
+    return response;
+  }
+}
@@ -0,0 +1,30 @@
+package io.beanthemoonman.photos.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PhotoCursorTest {
+
+  @Test
+  void testEncodeAndDecode() {
+    PhotoCursor cursor = new PhotoCursor(PhotoSort.TAKEN, 1_700_000_000_000L, "Ferien am Meer ü.jpg");
+
+    String encoded = cursor.encode();
+
+    // Verify the cursor is safe to use in a URL and survives the round trip
+    assertTrue(encoded.matches("[A-Za-z0-9_-]+"));
+    assertEquals(cursor, PhotoCursor.decode(encoded));
+  }
+
+  @Test
+  void testDecodeInvalidCursor() {
+    assertThrows(IllegalArgumentException.class, () -> PhotoCursor.decode("not a cursor!"));
+    assertThrows(IllegalArgumentException.class, () -> PhotoCursor.decode("AAAA"));
+    // A sort order that does not exist
+    String cursor = new PhotoCursor(PhotoSort.MODIFIED, 0, "a.jpg").encode();
+    assertThrows(IllegalArgumentException.class, () -> PhotoCursor.decode("_" + cursor.substring(1)));
+  }
+}
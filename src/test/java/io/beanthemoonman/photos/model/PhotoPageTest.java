@@ -43,11 +43,13 @@ class PhotoPageTest {
     photoPage.setSize(20);
     photoPage.setTotalPages(10);
     photoPage.setTotalElements(100);
+    photoPage.setNextCursor("cursor");
 
     // Verify properties were set correctly
     assertEquals(photos, photoPage.getPhotos());
     assertEquals(2, photoPage.getPage());
     assertEquals(20, photoPage.getSize());
+    assertEquals("cursor", photoPage.getNextCursor());
     assertEquals(10, photoPage.getTotalPages());
     assertEquals(100, photoPage.getTotalElements());
   }
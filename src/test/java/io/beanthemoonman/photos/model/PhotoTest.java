@@ -28,11 +28,13 @@ class PhotoTest {
     photo.setFilename("new.jpg");
     photo.setThumbnailUrl("/new/thumbnail");
     photo.setFullSizeUrl("/new/fullsize");
+    photo.setSrcset("/new/thumbnail?w=200 200w");
 
     // Verify properties were set correctly
     assertEquals("new-id", photo.getId());
     assertEquals("new.jpg", photo.getFilename());
     assertEquals("/new/thumbnail", photo.getThumbnailUrl());
     assertEquals("/new/fullsize", photo.getFullSizeUrl());
+    assertEquals("/new/thumbnail?w=200 200w", photo.getSrcset());
   }
 }
\ No newline at end of file
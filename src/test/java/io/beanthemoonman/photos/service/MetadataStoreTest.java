@@ -0,0 +1,77 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.model.PhotoMetadata;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MetadataStoreTest {
+
+  private static final String HASH = "a".repeat(64);
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testExtractReadsDimensions() throws IOException {
+    Path photo = tempDir.resolve("photo.jpg");
+    ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "jpg", photo.toFile());
+    MetadataStore metadataStore = new MetadataStore(tempDir);
+
+    PhotoMetadata metadata = metadataStore.extract("photo.jpg", HASH, photo);
+
+    assertEquals(300, metadata.width());
+    assertEquals(200, metadata.height());
+    assertEquals(1, metadata.orientation());
+    assertFalse(metadata.hasCaptureTime());
+    assertEquals(metadata, metadataStore.get("photo.jpg"));
+    metadataStore.close();
+  }
+
+  @Test
+  void testMetadataIsReadOncePerContent() throws IOException {
+    Path photo = tempDir.resolve("photo.jpg");
+    ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "jpg", photo.toFile());
+    MetadataStore metadataStore = new MetadataStore(tempDir);
+    PhotoMetadata metadata = metadataStore.extract("photo.jpg", HASH, photo);
+    metadataStore.close();
+
+    // After a restart, a copy of the photo is not read again, even once the file is gone
+    Files.delete(photo);
+    MetadataStore reopened = new MetadataStore(tempDir);
+    assertNull(reopened.get("photo.jpg"));
+    assertEquals(metadata, reopened.extract("copy.jpg", HASH, tempDir.resolve("copy.jpg")));
+    reopened.close();
+  }
+
+  @Test
+  void testVersionChangesWithBindings() throws IOException {
+    Path photo = tempDir.resolve("photo.jpg");
+    ImageIO.write(new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB), "jpg", photo.toFile());
+    MetadataStore metadataStore = new MetadataStore(tempDir);
+
+    long initial = metadataStore.getVersion();
+    metadataStore.extract("photo.jpg", HASH, photo);
+    long bound = metadataStore.getVersion();
+    assertNotEquals(initial, bound);
+
+    // Binding the same metadata again is not a change
+    metadataStore.extract("photo.jpg", HASH, photo);
+    assertEquals(bound, metadataStore.getVersion());
+
+    metadataStore.invalidate("photo.jpg");
+    assertNull(metadataStore.get("photo.jpg"));
+    assertNotEquals(bound, metadataStore.getVersion());
+    metadataStore.close();
+  }
+}
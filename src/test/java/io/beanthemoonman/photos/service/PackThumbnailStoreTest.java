@@ -0,0 +1,154 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.utility.CacheLedger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackThumbnailStoreTest {
+
+  // Fits two records of 100 bytes of data under a one character key
+  private static final long SEGMENT_SIZE = 300;
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testThumbnailsSurviveReopen() throws IOException {
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      store.write("a", data('a'));
+      store.write("b", data('b'));
+      store.write("c", data('c'));
+      store.write("b", data('B'));
+      store.delete("c");
+
+      assertArrayEquals(data('B'), store.read("b"));
+      assertNull(store.read("c"));
+    }
+
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      // Verify the last record for a key wins and tombstones hide deleted thumbnails
+      assertArrayEquals(data('a'), store.read("a"));
+      assertArrayEquals(data('B'), store.read("b"));
+      assertFalse(store.contains("c"));
+      assertEquals(2, store.getSegmentCount());
+
+      CacheLedger ledger = new CacheLedger();
+      assertEquals(2, store.scan(ledger));
+      assertEquals(200, ledger.getTotalBytes());
+    }
+  }
+
+  @Test
+  void testTornRecordIsDiscarded() throws IOException {
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      store.write("a", data('a'));
+    }
+    Path segment = tempDir.resolve("00000000.pack");
+    long validLength = Files.size(segment);
+    // Simulate a crash in the middle of appending a record
+    Files.write(segment, new byte[] { 0x54, 0x48, 0x4D, 0x42, 0, 1, 'b' }, StandardOpenOption.APPEND);
+
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      assertEquals(validLength, Files.size(segment));
+      assertArrayEquals(data('a'), store.read("a"));
+      store.write("b", data('b'));
+    }
+
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      assertArrayEquals(data('b'), store.read("b"));
+    }
+  }
+
+  @Test
+  void testCompactionKeepsLiveThumbnailsAndDeletions() throws IOException {
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      store.write("a", data('a'));
+      store.write("b", data('b'));
+      store.write("c", data('c'));
+      store.delete("a");
+      store.write("d", data('d'));
+      store.write("e", data('e'));
+      store.delete("c");
+      store.delete("d");
+
+      // Nothing but the tombstone of a is left in the second segment, while the first is still half live
+      assertTrue(store.compact() > 0);
+      assertFalse(Files.exists(tempDir.resolve("00000001.pack")));
+      assertEquals(0, store.compact());
+      assertArrayEquals(data('b'), store.read("b"));
+    }
+
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      // The tombstone of a was carried over, so the record in the first segment stays deleted
+      assertNull(store.read("a"));
+      assertArrayEquals(data('b'), store.read("b"));
+      assertNull(store.read("c"));
+      assertNull(store.read("d"));
+      assertArrayEquals(data('e'), store.read("e"));
+      assertEquals(2, store.getSegmentCount());
+    }
+  }
+
+  @Test
+  void testCompactionDropsTombstonesWithNothingLeftToHide() throws IOException {
+    Path newest = tempDir.resolve("00000002.pack");
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      store.write("a", data('a'));
+      store.write("b", data('b'));
+      store.write("c", data('c'));
+      store.delete("c");
+      store.write("d", data('d'));
+      store.write("e", data('e'));
+      store.delete("d");
+      long size = Files.size(newest);
+
+      // The second segment is all garbage, and its tombstone of c only hides a record in the second segment itself
+      assertTrue(store.compact() > 0);
+      assertFalse(Files.exists(tempDir.resolve("00000001.pack")));
+      assertEquals(size, Files.size(newest));
+    }
+
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      assertArrayEquals(data('a'), store.read("a"));
+      assertArrayEquals(data('b'), store.read("b"));
+      assertNull(store.read("c"));
+      assertNull(store.read("d"));
+      assertArrayEquals(data('e'), store.read("e"));
+    }
+  }
+
+  @Test
+  void testThumbnailsWrittenAfterOpeningAreRead() throws IOException {
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      store.write("a", data('a'));
+    }
+
+    try (PackThumbnailStore store = PackThumbnailStore.open(tempDir, SEGMENT_SIZE)) {
+      // b lies beyond the mapping of the newest segment, until c starts a new segment and the old one is mapped in full
+      store.write("b", data('b'));
+      assertArrayEquals(data('b'), store.read("b"));
+      store.write("c", data('c'));
+      assertArrayEquals(data('a'), store.read("a"));
+      assertArrayEquals(data('b'), store.read("b"));
+      assertArrayEquals(data('c'), store.read("c"));
+    }
+  }
+
+  private static byte[] data(char fill) {
+    byte[] data = new byte[100];
+    Arrays.fill(data, (byte) fill);
+    return data;
+  }
+}
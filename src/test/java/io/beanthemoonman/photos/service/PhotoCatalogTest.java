@@ -0,0 +1,301 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.model.PhotoCursor;
+import io.beanthemoonman.photos.model.PhotoEntry;
+import io.beanthemoonman.photos.model.PhotoSort;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PhotoCatalogTest {
+
+  @TempDir
+  Path tempDir;
+
+  private PhotosConfig config;
+
+  private PhotoCatalog photoCatalog;
+
+  @BeforeEach
+  void setUp() {
+    config = new PhotosConfig();
+    config.setDirectory(tempDir.toString());
+    photoCatalog = new PhotoCatalog(config, null);
+  }
+
+  @Test
+  void testSnapshotIsSortedNewestFirst() throws IOException {
+    // Create photos with distinct modification times
+    createPhoto("old.jpg", 1_000);
+    createPhoto("new.jpg", 3_000);
+    createPhoto("middle.png", 2_000);
+    Files.writeString(tempDir.resolve("notes.txt"), "not a photo");
+
+    PhotoCatalog.Snapshot snapshot = photoCatalog.refresh();
+
+    // Verify only images are listed, newest first
+    assertEquals(3, snapshot.size());
+    assertEquals(List.of("new.jpg", "middle.png", "old.jpg"),
+        snapshot.getEntries().stream().map(PhotoEntry::id).toList());
+    assertEquals(3_000, snapshot.getEntries().getFirst().lastModified());
+    assertEquals("image data".length(), snapshot.getEntries().getFirst().size());
+  }
+
+  @Test
+  void testSliceIsClamped() throws IOException {
+    createPhoto("a.jpg", 1_000);
+    createPhoto("b.jpg", 2_000);
+
+    PhotoCatalog.Snapshot snapshot = photoCatalog.refresh();
+
+    assertEquals(1, snapshot.slice(1, 10).size());
+    assertTrue(snapshot.slice(5, 10).isEmpty());
+    assertTrue(snapshot.slice(-1, 0).isEmpty());
+  }
+
+  @Test
+  void testIndexAfterFindsPositionOfAnyKey() throws IOException {
+    createPhoto("a.jpg", 3_000);
+    createPhoto("b.jpg", 2_000);
+    createPhoto("c.jpg", 2_000);
+    createPhoto("d.jpg", 1_000);
+
+    PhotoCatalog.Snapshot snapshot = photoCatalog.refresh();
+
+    // Keys in the snapshot, including a tie on the modification time
+    assertEquals(1, snapshot.indexAfter(3_000, "a.jpg"));
+    assertEquals(2, snapshot.indexAfter(2_000, "b.jpg"));
+    assertEquals(3, snapshot.indexAfter(2_000, "c.jpg"));
+    // Keys of photos that are gone
+    assertEquals(0, snapshot.indexAfter(4_000, "new.jpg"));
+    assertEquals(2, snapshot.indexAfter(2_000, "bb.jpg"));
+    assertEquals(4, snapshot.indexAfter(500, "old.jpg"));
+  }
+
+  @Test
+  void testSortByNameAndSize() throws IOException {
+    createPhoto("b.jpg", 1_000);
+    createPhoto("c.jpg", 2_000);
+    createPhoto("a.jpg", 3_000);
+    Files.writeString(tempDir.resolve("c.jpg"), "larger image data");
+    Files.setLastModifiedTime(tempDir.resolve("c.jpg"), FileTime.fromMillis(2_000));
+
+    PhotoCatalog.Snapshot snapshot = photoCatalog.refresh();
+
+    assertEquals(List.of("a.jpg", "b.jpg", "c.jpg"), ids(snapshot.getEntries(PhotoSort.NAME)));
+    // Largest first, ties by name
+    assertEquals(List.of("c.jpg", "a.jpg", "b.jpg"), ids(snapshot.getEntries(PhotoSort.SIZE)));
+
+    // Cursors continue in the order they were created for
+    PhotoCursor cursor = snapshot.cursorAt(PhotoSort.NAME, 0);
+    assertEquals(PhotoSort.NAME, cursor.sort());
+    assertEquals(List.of("b.jpg"), ids(snapshot.slice(PhotoSort.NAME, snapshot.indexAfter(cursor), 2)));
+  }
+
+  @Test
+  void testSortByDateTakenFollowsMetadata() throws IOException {
+    MetadataStore metadataStore = new MetadataStore(tempDir.resolve("cache"));
+    config.getWarmup().setReindexIntervalMillis(0);
+    photoCatalog = new PhotoCatalog(config, metadataStore);
+    createPhotoTaken("a.jpg", 3_000, "2001:01:01 12:00:00");
+    createPhotoTaken("b.jpg", 1_000, "2020:01:01 12:00:00");
+    createPhoto("c.jpg", 2_000);
+
+    PhotoCatalog.Snapshot snapshot = photoCatalog.refresh();
+
+    // Without metadata, photos are placed by their modification time
+    assertEquals(List.of("a.jpg", "c.jpg", "b.jpg"), ids(snapshot.getEntries(PhotoSort.TAKEN)));
+
+    // Once the metadata is extracted, the same snapshot is reindexed by capture date
+    metadataStore.extract("a.jpg", "a".repeat(64), tempDir.resolve("a.jpg"));
+    metadataStore.extract("b.jpg", "b".repeat(64), tempDir.resolve("b.jpg"));
+    metadataStore.extract("c.jpg", "c".repeat(64), tempDir.resolve("c.jpg"));
+    assertEquals(List.of("b.jpg", "a.jpg", "c.jpg"), ids(snapshot.getEntries(PhotoSort.TAKEN)));
+    // The default order is unaffected
+    assertEquals(List.of("a.jpg", "c.jpg", "b.jpg"), ids(snapshot.getEntries()));
+    metadataStore.close();
+  }
+
+  @Test
+  void testSortByDateTakenIsRebuiltAtMostOncePerInterval() throws IOException {
+    MetadataStore metadataStore = new MetadataStore(tempDir.resolve("cache"));
+    config.getWarmup().setReindexIntervalMillis(60_000);
+    photoCatalog = new PhotoCatalog(config, metadataStore);
+    createPhotoTaken("a.jpg", 3_000, "2001:01:01 12:00:00");
+    createPhotoTaken("b.jpg", 1_000, "2020:01:01 12:00:00");
+
+    PhotoCatalog.Snapshot snapshot = photoCatalog.refresh();
+    assertEquals(List.of("a.jpg", "b.jpg"), ids(snapshot.getEntries(PhotoSort.TAKEN)));
+
+    // Metadata extracted within the interval leaves the previous order in place
+    metadataStore.extract("a.jpg", "a".repeat(64), tempDir.resolve("a.jpg"));
+    metadataStore.extract("b.jpg", "b".repeat(64), tempDir.resolve("b.jpg"));
+    assertEquals(List.of("a.jpg", "b.jpg"), ids(snapshot.getEntries(PhotoSort.TAKEN)));
+
+    // A new snapshot starts without an index and sees all of it
+    assertEquals(List.of("b.jpg", "a.jpg"), ids(photoCatalog.refresh().getEntries(PhotoSort.TAKEN)));
+    metadataStore.close();
+  }
+
+  @Test
+  void testSnapshotIsReusedUntilDirectoryChanges() throws IOException {
+    config.getWatch().setCheckIntervalMillis(0);
+    createPhoto("a.jpg", 1_000);
+    Files.setLastModifiedTime(tempDir, FileTime.fromMillis(10_000));
+
+    PhotoCatalog.Snapshot first = photoCatalog.getSnapshot();
+    assertSame(first, photoCatalog.getSnapshot());
+
+    // Adding a photo changes the directory and triggers a rebuild
+    createPhoto("b.jpg", 2_000);
+    Files.setLastModifiedTime(tempDir, FileTime.fromMillis(20_000));
+
+    PhotoCatalog.Snapshot second = photoCatalog.getSnapshot();
+    assertEquals(2, second.size());
+    assertEquals("b.jpg", second.getEntries().getFirst().id());
+  }
+
+  @Test
+  void testDirectoryIsCheckedAtMostOncePerInterval() throws IOException {
+    config.getWatch().setCheckIntervalMillis(60_000);
+    createPhoto("a.jpg", 1_000);
+    Files.setLastModifiedTime(tempDir, FileTime.fromMillis(10_000));
+    PhotoCatalog.Snapshot first = photoCatalog.getSnapshot();
+
+    createPhoto("b.jpg", 2_000);
+    Files.setLastModifiedTime(tempDir, FileTime.fromMillis(20_000));
+
+    // The change only shows once the interval has passed or the directory is rescanned
+    assertSame(first, photoCatalog.getSnapshot());
+    assertEquals(2, photoCatalog.refresh().size());
+  }
+
+  @Test
+  void testApplyChanges() throws IOException {
+    createPhoto("a.jpg", 1_000);
+    createPhoto("b.jpg", 2_000);
+    photoCatalog.refresh();
+
+    // Add one photo, touch another and delete a third
+    createPhoto("c.jpg", 3_000);
+    createPhoto("a.jpg", 4_000);
+    Files.delete(tempDir.resolve("b.jpg"));
+
+    PhotoCatalog.Snapshot snapshot = photoCatalog.apply(
+        List.of(tempDir.resolve("c.jpg"), tempDir.resolve("a.jpg"), tempDir.resolve("b.jpg")));
+
+    assertEquals(List.of("a.jpg", "c.jpg"), snapshot.getEntries().stream().map(PhotoEntry::id).toList());
+  }
+
+  @Test
+  void testReconcileReportsChangedPhotos() throws IOException {
+    createPhoto("a.jpg", 1_000);
+    createPhoto("b.jpg", 2_000);
+    createPhoto("c.jpg", 3_000);
+
+    // Every photo is new to the first scan
+    assertEquals(3, photoCatalog.reconcile().size());
+
+    createPhoto("d.jpg", 4_000);
+    createPhoto("a.jpg", 5_000);
+    Files.delete(tempDir.resolve("b.jpg"));
+
+    List<Path> changed = photoCatalog.reconcile();
+
+    assertEquals(3, changed.size());
+    assertTrue(changed.containsAll(List.of(tempDir.resolve("a.jpg"), tempDir.resolve("b.jpg"),
+        tempDir.resolve("d.jpg"))));
+    assertEquals(List.of("a.jpg", "d.jpg", "c.jpg"), ids(photoCatalog.getSnapshot().getEntries()));
+    assertTrue(photoCatalog.reconcile().isEmpty());
+  }
+
+  @Test
+  void testWatchedCatalogSkipsDirectoryCheck() throws IOException {
+    createPhoto("a.jpg", 1_000);
+    Files.setLastModifiedTime(tempDir, FileTime.fromMillis(10_000));
+    PhotoCatalog.Snapshot first = photoCatalog.getSnapshot();
+
+    photoCatalog.setWatched(true);
+    createPhoto("b.jpg", 2_000);
+    Files.setLastModifiedTime(tempDir, FileTime.fromMillis(20_000));
+
+    // Without a change event the watched catalog keeps serving the same snapshot
+    assertSame(first, photoCatalog.getSnapshot());
+  }
+
+  @Test
+  void testFindByFilenameOrNameWithoutExtension() throws IOException {
+    createPhoto("a.jpg", 1_000);
+    createPhoto("b.png", 1_000);
+    createPhoto("b.jpg", 2_000);
+    photoCatalog.refresh();
+
+    // Deleting a file without telling the catalog shows the lookup does not go to disk
+    photoCatalog.setWatched(true);
+    Files.delete(tempDir.resolve("a.jpg"));
+    PhotoCatalog.Snapshot snapshot = photoCatalog.getSnapshot();
+
+    assertEquals("a.jpg", snapshot.find("a.jpg").id());
+    assertEquals("a.jpg", snapshot.find("a").id());
+    assertEquals("b.png", snapshot.find("b.png").id());
+    // The newest photo wins a name shared by several extensions
+    assertEquals("b.jpg", snapshot.find("b").id());
+    assertEquals("b.jpg", snapshot.find("b.gif").id());
+    assertNull(snapshot.find("c"));
+    assertNull(snapshot.find("../a.jpg"));
+
+    snapshot = photoCatalog.apply(List.of(tempDir.resolve("a.jpg")));
+    assertNull(snapshot.find("a"));
+  }
+
+  private static List<String> ids(List<PhotoEntry> entries) {
+    return entries.stream().map(PhotoEntry::id).toList();
+  }
+
+  /**
+   * Create the start of a JPEG file whose EXIF data records the date the photo was taken.
+   */
+  private void createPhotoTaken(String filename, long lastModified, String dateTaken) throws IOException {
+    ByteBuffer tiff = ByteBuffer.allocate(8 + 18 + 20)
+        .putShort((short) 0x4D4D)
+        .putShort((short) 42)
+        .putInt(8)
+        .putShort((short) 1)
+        .putShort((short) 0x0132).putShort((short) 2).putInt(20).putInt(8 + 18)
+        .putInt(0)
+        .put((dateTaken + "\0").getBytes(StandardCharsets.US_ASCII));
+
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    int length = 2 + 6 + tiff.capacity();
+    jpeg.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1, (byte) (length >> 8),
+        (byte) length });
+    jpeg.writeBytes("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+    jpeg.writeBytes(tiff.array());
+    jpeg.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xD9 });
+
+    Path path = tempDir.resolve(filename);
+    Files.write(path, jpeg.toByteArray());
+    Files.setLastModifiedTime(path, FileTime.fromMillis(lastModified));
+  }
+
+  private void createPhoto(String filename, long lastModified) throws IOException {
+    Path path = tempDir.resolve(filename);
+    Files.writeString(path, "image data");
+    Files.setLastModifiedTime(path, FileTime.fromMillis(lastModified));
+  }
+}
@@ -0,0 +1,105 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PhotoDirectoryWatcherTest {
+
+  private static final long TIMEOUT_MILLIS = 5_000;
+
+  @TempDir
+  Path tempDir;
+
+  @Mock
+  private PhotoCatalog photoCatalog;
+
+  @Mock
+  private ThumbnailHasher thumbnailHasher;
+
+  private PhotoDirectoryWatcher watcher;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    MockitoAnnotations.openMocks(this);
+
+    PhotosConfig config = new PhotosConfig();
+    config.setDirectory(tempDir.toString());
+    config.getWatch().setDebounceMillis(200);
+    config.getWatch().setRescanIntervalSeconds(0);
+    watcher = new PhotoDirectoryWatcher(config, photoCatalog, thumbnailHasher);
+  }
+
+  @AfterEach
+  void tearDown() {
+    watcher.stop();
+  }
+
+  @Test
+  void testChangesAreDebouncedIntoOneUpdate() {
+    watcher.start();
+    Path first = tempDir.resolve("a.jpg");
+    Path second = tempDir.resolve("b.jpg");
+
+    watcher.changed(first);
+    watcher.changed(second);
+    watcher.changed(first);
+
+    // Nothing is applied until the debounce window ends, then all changes are applied at once
+    verify(photoCatalog, never()).apply(anyCollection());
+    verify(photoCatalog, timeout(TIMEOUT_MILLIS)).apply(argThat(changed -> changed.size() == 2
+        && changed.containsAll(List.of(first, second))));
+    verify(photoCatalog, times(1)).apply(anyCollection());
+  }
+
+  @Test
+  void testDeletedPhotoIsInvalidated() throws IOException {
+    Path photo = Files.writeString(tempDir.resolve("a.jpg"), "image data");
+    watcher.start();
+
+    Files.delete(photo);
+    watcher.changed(photo);
+
+    verify(thumbnailHasher, timeout(TIMEOUT_MILLIS)).invalidate("a.jpg");
+    verify(photoCatalog).apply(argThat(changed -> changed.contains(photo)));
+    verify(thumbnailHasher, never()).process(any(Path.class));
+  }
+
+  @Test
+  void testOverflowRescansOnlyChangedPhotos() throws IOException {
+    Path modified = Files.writeString(tempDir.resolve("a.jpg"), "image data");
+    Path deleted = tempDir.resolve("b.jpg");
+    when(photoCatalog.reconcile()).thenReturn(List.of(modified, deleted));
+    watcher.start();
+
+    watcher.changed(tempDir.resolve("c.jpg"));
+    watcher.overflowed();
+
+    // The pending events are dropped in favour of the rescan, which indexes what changed instead of every photo
+    verify(thumbnailHasher, timeout(TIMEOUT_MILLIS)).process(modified);
+    verify(thumbnailHasher).invalidate("a.jpg");
+    verify(thumbnailHasher).invalidate("b.jpg");
+    verify(thumbnailHasher, never()).process(deleted);
+    verify(thumbnailHasher, never()).boot();
+    verify(photoCatalog, never()).apply(anyCollection());
+  }
+}
@@ -3,24 +3,35 @@ package io.beanthemoonman.photos.service;
 import io.beanthemoonman.photos.config.PhotosConfig;
 import io.beanthemoonman.photos.model.Photo;
 import io.beanthemoonman.photos.model.PhotoPage;
+import io.beanthemoonman.photos.model.PhotoSort;
+import io.beanthemoonman.photos.utility.ByteCache;
 import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.core.io.Resource;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.Mockito.when;
 
 class PhotoServiceTest {
@@ -40,10 +51,12 @@ class PhotoServiceTest {
   @Mock
   private ThumbnailHasher thumbnailHasher;
 
+  private PhotoCatalog photoCatalog;
+
   private PhotoService photoService;
 
   @BeforeEach
-  void setUp() throws IOException {
+  void setUp() throws Exception {
     MockitoAnnotations.openMocks(this);
 
     // Configure mocks
@@ -52,11 +65,12 @@ class PhotoServiceTest {
     when(photosConfig.getThumbnail()).thenReturn(thumbnail);
     when(thumbnail.getWidth()).thenReturn(400);
     when(thumbnail.getHeight()).thenReturn(400);
-    when(thumbnailHasher.getCacheDir()).thenReturn(tempDir.resolve("cache"));
     
     // Mock the SHA cache
     ConcurrentMap<String, String> mockShaCache = new ConcurrentHashMap<>();
     when(thumbnailHasher.getShaCache()).thenReturn(mockShaCache);
+    when(thumbnailHasher.hash(any(Path.class))).thenAnswer(invocation -> mockShaCache.computeIfAbsent(
+        invocation.<Path>getArgument(0).getFileName().toString(), id -> "testhash"));
     
     // Mock thumbnail creation to return dummy data for any path
     when(thumbnailService.createThumbnail(any(Path.class)))
@@ -67,7 +81,17 @@ class PhotoServiceTest {
     Files.write(testImagePath, "test image data".getBytes());
 
     // Initialize service with mocked dependencies
-    photoService = new PhotoService(photosConfig, thumbnailService, thumbnailHasher);
+    photoCatalog = new PhotoCatalog(photosConfig, null);
+    photoService = new PhotoService(photosConfig,
+        thumbnailService,
+        thumbnailHasher,
+        new ThumbnailCache(thumbnailService,
+            tempDir.resolve("cache"),
+            new FileThumbnailStore(tempDir.resolve("cache"), thumbnailService.getFingerprint()),
+            new ByteCache(1024 * 1024, false),
+            new SimpleMeterRegistry(),
+            Runnable::run),
+        photoCatalog);
   }
 
   @Test
@@ -85,6 +109,45 @@ class PhotoServiceTest {
     assertEquals("test.jpg", page.getPhotos().getFirst().getId());
   }
 
+  @Test
+  void testGetPhotosAfterCursorIsStableWhenPhotosArrive() throws IOException {
+    // Three photos besides test.jpg, all older than it
+    createPhoto("a.jpg", 3_000);
+    createPhoto("b.jpg", 2_000);
+    createPhoto("c.jpg", 1_000);
+
+    PhotoPage first = photoService.getPhotosAfter("", 2);
+    assertEquals(List.of("test.jpg", "a.jpg"), first.getPhotos().stream().map(Photo::getId).toList());
+    assertNotNull(first.getNextCursor());
+
+    // A new photo arrives at the top while the client is scrolling
+    createPhoto("new.jpg", System.currentTimeMillis() + 60_000);
+    photoCatalog.refresh();
+
+    PhotoPage second = photoService.getPhotosAfter(first.getNextCursor(), 2);
+    assertEquals(List.of("b.jpg", "c.jpg"), second.getPhotos().stream().map(Photo::getId).toList());
+    assertNull(second.getNextCursor());
+    assertEquals(5, second.getTotalElements());
+  }
+
+  @Test
+  void testGetPhotosAfterInvalidCursor() {
+    assertThrows(IllegalArgumentException.class, () -> photoService.getPhotosAfter("not a cursor!", 2));
+  }
+
+  @Test
+  void testGetPhotosAfterCursorOfAnotherSort() throws IOException {
+    createPhoto("a.jpg", 3_000);
+    createPhoto("b.jpg", 2_000);
+
+    String cursor = photoService.getPhotosAfter("", 1, PhotoSort.NAME).getNextCursor();
+
+    assertEquals(List.of("b.jpg"), photoService.getPhotosAfter(cursor, 1, PhotoSort.NAME).getPhotos().stream()
+        .map(Photo::getId)
+        .toList());
+    assertThrows(IllegalArgumentException.class, () -> photoService.getPhotosAfter(cursor, 1, PhotoSort.MODIFIED));
+  }
+
   @Test
   void testGetPhoto() {
     // Test getting a specific photo
@@ -98,6 +161,22 @@ class PhotoServiceTest {
     assertEquals("/api/photos/test.jpg/full", photo.getFullSizeUrl());
   }
 
+  @Test
+  void testGetPhotoWithKnownHashHasFingerprintedUrls() {
+    // Cache a hash for the photo
+    thumbnailHasher.getShaCache().put("test.jpg", "abc123");
+    when(thumbnailService.getFingerprint()).thenReturn("1f");
+
+    Photo photo = photoService.getPhoto("test.jpg");
+
+    // Verify the URLs carry the image versions
+    assertNotNull(photo);
+    assertEquals("/api/photos/test.jpg/thumbnail?v=abc123-1f", photo.getThumbnailUrl());
+    assertEquals("/api/photos/test.jpg/full?v=abc123", photo.getFullSizeUrl());
+    assertEquals("abc123-1f", photoService.getThumbnailVersion("test.jpg"));
+    assertEquals("abc123", photoService.getFullSizeVersion("test.jpg"));
+  }
+
   @Test
   void testGetPhotoNotFound() {
     // Test getting a non-existent photo
@@ -108,22 +187,49 @@ class PhotoServiceTest {
   }
 
   @Test
-  void testGetFullSizeImage() {
+  void testGetPhotoWithoutExtension() {
+    Photo photo = photoService.getPhoto("test");
+
+    // Verify the photo is found by its name, and is still addressed by the requested ID
+    assertNotNull(photo);
+    assertEquals("test", photo.getId());
+    assertEquals("test.jpg", photo.getFilename());
+    assertNull(photoService.getPhoto("../test.jpg"));
+  }
+
+  @Test
+  void testGetFullSizeImage() throws IOException {
     // Test getting the full-size image
-    byte[] imageData = photoService.getFullSizeImage("test.jpg");
+    Resource image = photoService.getFullSizeImage("test.jpg");
 
     // Verify results
-    assertNotNull(imageData);
-    assertArrayEquals("test image data".getBytes(), imageData);
+    assertNotNull(image);
+    assertEquals("test image data".length(), image.contentLength());
+    assertArrayEquals("test image data".getBytes(), image.getContentAsByteArray());
   }
 
   @Test
   void testGetFullSizeImageNotFound() {
     // Test getting a non-existent full-size image
-    byte[] imageData = photoService.getFullSizeImage("nonexistent.jpg");
+    Resource image = photoService.getFullSizeImage("nonexistent.jpg");
 
     // Verify results
-    assertNull(imageData);
+    assertNull(image);
+  }
+
+  @Test
+  void testGetPhotoHasSrcset() {
+    // Configure derivative sizes and cache a hash for the photo
+    when(thumbnailService.getSizes()).thenReturn(List.of(200, 800));
+    when(thumbnailService.getFingerprint(200)).thenReturn("a");
+    when(thumbnailService.getFingerprint(800)).thenReturn("b");
+    thumbnailHasher.getShaCache().put("test.jpg", "abc123");
+
+    Photo photo = photoService.getPhoto("test.jpg");
+
+    // Verify every size is listed with its fingerprinted URL
+    assertEquals("/api/photos/test.jpg/thumbnail?w=200&v=abc123-a 200w, "
+        + "/api/photos/test.jpg/thumbnail?w=800&v=abc123-b 800w", photo.getSrcset());
   }
 
   @Test
@@ -137,4 +243,45 @@ class PhotoServiceTest {
     assertNotNull(thumbnailData);
     assertArrayEquals("mock thumbnail data".getBytes(), thumbnailData);
   }
-}
\ No newline at end of file
+
+  @Test
+  void testGetThumbnailImageWithWidth() throws IOException {
+    // Configure derivative sizes and mock their creation
+    when(thumbnailService.getSizes()).thenReturn(List.of(200, 800));
+    when(thumbnailService.selectSize(300)).thenReturn(800);
+    when(thumbnailService.createThumbnails(any(Path.class), anyCollection()))
+        .thenReturn(Map.of(200, "small".getBytes(), 800, "large".getBytes()));
+
+    // Verify the derivative that fits the requested width is returned
+    assertArrayEquals("large".getBytes(), photoService.getThumbnailImage("test.jpg", 300));
+  }
+
+  @Test
+  void testIsThumbnailCached() {
+    // The hash is not known before the photo is first requested
+    assertFalse(photoService.isThumbnailCached("test.jpg", null));
+    photoService.getThumbnailImage("test.jpg");
+
+    assertTrue(photoService.isThumbnailCached("test.jpg", null));
+    assertTrue(photoService.isThumbnailCached("missing.jpg", null));
+  }
+
+  @Test
+  void testGetThumbnailImagesSkipsMissingPhotos() throws IOException {
+    createPhoto("other.jpg", 1_000);
+    Map<String, byte[]> thumbnails = new ConcurrentHashMap<>();
+
+    photoService.getThumbnailImages(List.of("test.jpg", "missing.jpg", "other.jpg"), null, thumbnails::put);
+
+    // Verify every existing photo was delivered once
+    assertEquals(2, thumbnails.size());
+    assertArrayEquals("mock thumbnail data".getBytes(), thumbnails.get("test.jpg"));
+    assertArrayEquals("mock thumbnail data".getBytes(), thumbnails.get("other.jpg"));
+  }
+
+  private void createPhoto(String filename, long lastModified) throws IOException {
+    Path path = tempDir.resolve(filename);
+    Files.write(path, "image data".getBytes());
+    Files.setLastModifiedTime(path, FileTime.fromMillis(lastModified));
+  }
+}
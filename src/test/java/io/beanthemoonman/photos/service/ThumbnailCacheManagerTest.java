@@ -0,0 +1,166 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.utility.ByteCache;
+import io.beanthemoonman.photos.utility.PhotoMetrics;
+import io.beanthemoonman.photos.utility.ThumbnailHasher;
+import io.beanthemoonman.photos.utility.WarmupProgress;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ThumbnailCacheManagerTest {
+
+  private static final String LIVE = "a".repeat(64);
+
+  private static final String ORPHAN = "b".repeat(64);
+
+  @TempDir
+  Path tempDir;
+
+  private PhotosConfig config;
+
+  private ThumbnailHasher thumbnailHasher;
+
+  private ThumbnailCache thumbnailCache;
+
+  private SimpleMeterRegistry registry;
+
+  private final ConcurrentMap<String, String> shaCache = new ConcurrentHashMap<>();
+
+  private final WarmupProgress progress = new WarmupProgress(1);
+
+  @BeforeEach
+  void setUp() throws IOException {
+    config = new PhotosConfig();
+    ThumbnailService thumbnailService = mock(ThumbnailService.class);
+    when(thumbnailService.getSizes()).thenReturn(List.of(200));
+    when(thumbnailService.getFingerprint()).thenReturn("f1");
+    when(thumbnailService.getFingerprint(200)).thenReturn("w200");
+    when(thumbnailService.createThumbnail(any(Path.class))).thenReturn(new byte[100]);
+    Path cacheDir = tempDir.resolve("cache");
+    thumbnailCache = new ThumbnailCache(thumbnailService,
+        cacheDir,
+        new FileThumbnailStore(cacheDir, "f1"),
+        new ByteCache(0, false),
+        new SimpleMeterRegistry(),
+        Runnable::run);
+
+    thumbnailHasher = mock(ThumbnailHasher.class);
+    when(thumbnailHasher.getShaCache()).thenReturn(shaCache);
+    when(thumbnailHasher.getProgress()).thenReturn(progress);
+    shaCache.put("live.jpg", LIVE);
+    registry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  void testOrphansAreCollectedOnceTheLibraryIsHashed() throws IOException {
+    cached(LIVE + "-f1", 100, 1_000);
+    cached(LIVE + "-200-w200", 100, 1_000);
+    cached(ORPHAN + "-f1", 100, 1_000);
+    cached(ORPHAN + "-200-w200", 100, 1_000);
+    ThumbnailCacheManager manager = manager();
+    manager.scan();
+
+    // Until the warm-up has finished, a missing hash may not have been computed yet
+    assertEquals(0, manager.collect().totalBytes());
+
+    progress.finish();
+    ThumbnailCacheManager.Reclaimed reclaimed = manager.collect();
+
+    assertEquals(2, reclaimed.orphans());
+    assertEquals(200, reclaimed.orphanBytes());
+    assertTrue(Files.exists(cachePath(LIVE + "-f1")));
+    assertFalse(Files.exists(cachePath(ORPHAN + "-f1")));
+    assertFalse(Files.exists(cachePath(ORPHAN + "-200-w200")));
+    assertEquals(200, thumbnailCache.getLedger().getTotalBytes());
+    assertEquals(200.0, registry.get(PhotoMetrics.CACHE_RECLAIMED).tag("reason", "orphan").counter().count());
+  }
+
+  @Test
+  void testThumbnailsOfEarlierSettingsAreCollected() throws IOException {
+    cached(LIVE + "-f1", 100, 1_000);
+    cached(LIVE + "-f0", 100, 1_000);
+    cached(LIVE + "-200-w100", 100, 1_000);
+    ThumbnailCacheManager manager = manager();
+    manager.scan();
+    progress.finish();
+
+    ThumbnailCacheManager.Reclaimed reclaimed = manager.collect();
+
+    assertEquals(2, reclaimed.orphans());
+    assertTrue(Files.exists(cachePath(LIVE + "-f1")));
+    assertFalse(Files.exists(cachePath(LIVE + "-f0")));
+    assertFalse(Files.exists(cachePath(LIVE + "-200-w100")));
+  }
+
+  @Test
+  void testTotalIncludesCompaction() {
+    assertEquals(350, new ThumbnailCacheManager.Reclaimed(1, 100, 1, 200, 50).totalBytes());
+  }
+
+  @Test
+  void testLeastRecentlyServedAreEvictedOverBudget() throws IOException {
+    config.getCache().setMaxSizeMb(1);
+    String[] hashes = { "1", "2", "3" };
+    for (int i = 0; i < hashes.length; i++) {
+      String hash = hashes[i].repeat(64);
+      shaCache.put(hashes[i] + ".jpg", hash);
+      cached(hash + "-f1", 512 * 1024, 1_000 * (i + 1));
+    }
+    ThumbnailCacheManager manager = manager();
+    manager.scan();
+
+    // The oldest thumbnail is served again, so the next oldest goes
+    thumbnailCache.get("1".repeat(64), tempDir.resolve("1.jpg"));
+    ThumbnailCacheManager.Reclaimed reclaimed = manager.collect();
+
+    assertEquals(1, reclaimed.evicted());
+    assertFalse(Files.exists(cachePath("2".repeat(64) + "-f1")));
+    assertTrue(Files.exists(cachePath("1".repeat(64) + "-f1")));
+    assertEquals(1024 * 1024, thumbnailCache.getLedger().getTotalBytes());
+  }
+
+  @Test
+  void testWrittenThumbnailsAreTrackedWithoutRescanning() throws IOException {
+    ThumbnailCacheManager manager = manager();
+    manager.scan();
+
+    thumbnailCache.get(ORPHAN, Files.write(tempDir.resolve("photo.jpg"), "image data".getBytes()));
+    progress.finish();
+
+    assertEquals(100, manager.collect().orphanBytes());
+    assertEquals(0, thumbnailCache.getLedger().size());
+  }
+
+  private ThumbnailCacheManager manager() {
+    return new ThumbnailCacheManager(config, thumbnailCache, thumbnailHasher, registry);
+  }
+
+  private void cached(String key, int bytes, long lastModified) throws IOException {
+    Path file = cachePath(key);
+    Files.createDirectories(file.getParent());
+    Files.write(file, new byte[bytes]);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+  }
+
+  private Path cachePath(String key) {
+    return tempDir.resolve("cache").resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(key + ".jpg");
+  }
+}
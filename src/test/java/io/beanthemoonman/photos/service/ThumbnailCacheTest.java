@@ -0,0 +1,276 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.utility.ByteCache;
+import io.beanthemoonman.photos.utility.PhotoMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ThumbnailCacheTest {
+
+  @TempDir
+  Path tempDir;
+
+  private ThumbnailService thumbnailService;
+
+  private ThumbnailCache thumbnailCache;
+
+  private Path photo;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    thumbnailService = mock(ThumbnailService.class);
+    when(thumbnailService.getFingerprint()).thenReturn("f1");
+    when(thumbnailService.getFingerprint(anyInt())).thenAnswer(invocation -> "w" + invocation.getArgument(0));
+    thumbnailCache = newCache(tempDir.resolve("cache"), new SimpleMeterRegistry(), Runnable::run);
+    photo = Files.write(tempDir.resolve("test.jpg"), "image data".getBytes());
+  }
+
+  @Test
+  void testGeneratesOnceAndReadsFromDisk() throws IOException {
+    when(thumbnailService.createThumbnail(any(Path.class))).thenReturn("thumbnail".getBytes());
+
+    assertArrayEquals("thumbnail".getBytes(), thumbnailCache.get("abc", photo));
+    assertArrayEquals("thumbnail".getBytes(), thumbnailCache.get("abc", photo));
+    assertFalse(thumbnailCache.ensure("abc", photo, true));
+
+    // Verify the thumbnail was generated once and written without leaving temporary files behind
+    verify(thumbnailService, times(1)).createThumbnail(photo);
+    assertTrue(Files.exists(tempDir.resolve("cache/ab/c/abc-f1.jpg")));
+    try (var leftovers = Files.list(tempDir.resolve("cache/tmp"))) {
+      assertEquals(0, leftovers.count());
+    }
+  }
+
+  @Test
+  void testConcurrentRequestsShareOneGeneration() throws Exception {
+    CountDownLatch generating = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    when(thumbnailService.createThumbnail(any(Path.class))).thenAnswer(invocation -> {
+      generating.countDown();
+      release.await(5, TimeUnit.SECONDS);
+      return "thumbnail".getBytes();
+    });
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    ThumbnailCache cache = newCache(tempDir.resolve("shared"), registry, Runnable::run);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<byte[]>> results = new ArrayList<>();
+      results.add(executor.submit(() -> cache.get("abc", photo)));
+      assertTrue(generating.await(5, TimeUnit.SECONDS));
+      for (int i = 0; i < 7; i++) {
+        results.add(executor.submit(() -> cache.get("abc", photo)));
+      }
+      release.countDown();
+
+      for (Future<byte[]> result : results) {
+        assertArrayEquals("thumbnail".getBytes(), result.get(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // Verify the photo was decoded only once, and only that request counts as having generated it
+    verify(thumbnailService, times(1)).createThumbnail(photo);
+    assertEquals(1.0, registry.get(PhotoMetrics.THUMBNAIL_REQUESTS).tag("source", "generated").counter().count());
+  }
+
+  @Test
+  void testGenerationRunsOnResizeExecutor() throws Exception {
+    when(thumbnailService.createThumbnail(any(Path.class))).thenReturn("thumbnail".getBytes());
+    List<Runnable> tasks = new ArrayList<>();
+    ThumbnailCache cache = newCache(tempDir.resolve("pooled"), new SimpleMeterRegistry(), tasks::add);
+
+    CompletableFuture<byte[]> first = cache.getAsync("abc", photo);
+    CompletableFuture<byte[]> second = cache.getAsync("abc", photo);
+
+    // Verify the callers were not held up and share one pending generation
+    assertFalse(first.isDone());
+    assertEquals(1, tasks.size());
+    verify(thumbnailService, never()).createThumbnail(photo);
+
+    tasks.getFirst().run();
+    assertArrayEquals("thumbnail".getBytes(), first.get(5, TimeUnit.SECONDS));
+    assertArrayEquals("thumbnail".getBytes(), second.get(5, TimeUnit.SECONDS));
+    assertTrue(cache.getAsync("abc", photo).isDone());
+  }
+
+  @Test
+  void testFailedGenerationIsRetried() throws IOException {
+    when(thumbnailService.createThumbnail(any(Path.class)))
+        .thenThrow(new IOException("decode failed"))
+        .thenReturn("thumbnail".getBytes());
+
+    assertThrows(IOException.class, () -> thumbnailCache.get("abc", photo));
+    assertFalse(Files.exists(tempDir.resolve("cache/ab/c/abc-f1.jpg")));
+
+    // Verify a failure is not cached
+    assertTrue(thumbnailCache.ensure("abc", photo, true));
+    assertTrue(Files.exists(tempDir.resolve("cache/ab/c/abc-f1.jpg")));
+  }
+
+  @Test
+  void testDerivativesAreCreatedTogether() throws IOException {
+    when(thumbnailService.getSizes()).thenReturn(List.of(200, 800));
+    when(thumbnailService.getWarmupSizes()).thenReturn(List.of(200, 800));
+    when(thumbnailService.createThumbnails(any(Path.class), anyCollection()))
+        .thenReturn(Map.of(200, "small".getBytes(), 800, "large".getBytes()));
+
+    assertArrayEquals("small".getBytes(), thumbnailCache.get("abc", photo, 200));
+    assertArrayEquals("large".getBytes(), thumbnailCache.get("abc", photo, 800));
+
+    // Verify both sizes came from one decode and are cached under their own keys
+    verify(thumbnailService, times(1)).createThumbnails(photo, List.of(200, 800));
+    assertTrue(Files.exists(tempDir.resolve("cache/ab/c/abc-200-w200.jpg")));
+    assertTrue(Files.exists(tempDir.resolve("cache/ab/c/abc-800-w800.jpg")));
+    assertThrows(IllegalArgumentException.class, () -> thumbnailCache.get("abc", photo, 300));
+  }
+
+  @Test
+  void testWarmupDecodesOnceAndLeavesLargeSizesForRequests() throws IOException {
+    when(thumbnailService.getSizes()).thenReturn(List.of(200, 800, 1600));
+    when(thumbnailService.getWarmupSizes()).thenReturn(List.of(200, 800));
+    when(thumbnailService.createRenditions(photo, true, List.of(200, 800))).thenReturn(new ThumbnailService.Renditions(
+        "thumbnail".getBytes(), Map.of(200, "small".getBytes(), 800, "large".getBytes())));
+    when(thumbnailService.createThumbnails(photo, List.of(1600))).thenReturn(Map.of(1600, "huge".getBytes()));
+
+    assertTrue(thumbnailCache.ensure("abc", photo, true));
+    assertFalse(thumbnailCache.ensure("abc", photo, true));
+
+    // The thumbnail came from the decode of the derivatives, and the largest size waits for a request
+    verify(thumbnailService, never()).createThumbnail(any(Path.class));
+    assertArrayEquals("thumbnail".getBytes(), thumbnailCache.get("abc", photo));
+    assertFalse(thumbnailCache.contains("abc", 1600));
+    assertArrayEquals("huge".getBytes(), thumbnailCache.get("abc", photo, 1600));
+    verify(thumbnailService, times(1)).createRenditions(any(Path.class), anyBoolean(), anyCollection());
+    verify(thumbnailService, times(1)).createThumbnails(any(Path.class), anyCollection());
+  }
+
+  @Test
+  void testCountsWhereThumbnailsCameFrom() throws IOException {
+    when(thumbnailService.createThumbnail(any(Path.class))).thenReturn("thumbnail".getBytes());
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    ThumbnailCache cache = newCache(tempDir.resolve("metered"), registry, Runnable::run);
+
+    cache.get("abc", photo);
+    cache.get("abc", photo);
+    // A fresh memory cache over the same directory reads the thumbnail from disk
+    newCache(tempDir.resolve("metered"), registry, Runnable::run)
+        .get("abc", photo);
+
+    assertEquals(1.0, registry.get(PhotoMetrics.THUMBNAIL_REQUESTS).tag("source", "generated").counter().count());
+    assertEquals(1.0, registry.get(PhotoMetrics.THUMBNAIL_REQUESTS).tag("source", "memory").counter().count());
+    assertEquals(1.0, registry.get(PhotoMetrics.THUMBNAIL_REQUESTS).tag("source", "disk").counter().count());
+    assertEquals(1, registry.get(PhotoMetrics.PIPELINE).tag("stage", "write").timer().count());
+  }
+
+  @Test
+  void testSettingsChangeVersionsTheKey() throws IOException {
+    when(thumbnailService.getSizes()).thenReturn(List.of(200));
+    when(thumbnailService.createThumbnail(any(Path.class))).thenReturn("old".getBytes(), "new".getBytes());
+    thumbnailCache.get("abc", photo);
+    assertTrue(thumbnailCache.isCurrent("abc-f1"));
+
+    // The same photo under new settings misses, rather than serving the thumbnail made with the old ones
+    when(thumbnailService.getFingerprint()).thenReturn("f2");
+    ThumbnailCache cache = newCache(tempDir.resolve("cache"), new SimpleMeterRegistry(), Runnable::run);
+
+    assertFalse(cache.contains("abc", null));
+    assertArrayEquals("new".getBytes(), cache.get("abc", photo));
+    assertFalse(cache.isCurrent("abc-f1"));
+    assertTrue(cache.isCurrent("abc-f2"));
+    assertTrue(cache.isCurrent("abc-200-w200"));
+    assertFalse(cache.isCurrent("abc-400-w400"));
+  }
+
+  @Test
+  void testFlatCachesAreMovedIntoShards() throws IOException {
+    Path flatDir = Files.createDirectories(tempDir.resolve("flat"));
+    Files.write(flatDir.resolve("abcdef-f1.jpg"), "thumbnail".getBytes());
+    Files.write(flatDir.resolve("123456-200-w200.jpg"), "small".getBytes());
+    ThumbnailCache cache = newCache(flatDir, new SimpleMeterRegistry(), Runnable::run);
+
+    // A thumbnail is moved when it is first read, and the scan moves the rest
+    assertArrayEquals("thumbnail".getBytes(), cache.get("abcdef", photo));
+    assertTrue(Files.exists(flatDir.resolve("ab/cd/abcdef-f1.jpg")));
+    assertFalse(Files.exists(flatDir.resolve("abcdef-f1.jpg")));
+    assertEquals(2, cache.scan());
+    assertTrue(Files.exists(flatDir.resolve("12/34/123456-200-w200.jpg")));
+    assertFalse(Files.exists(flatDir.resolve("123456-200-w200.jpg")));
+    assertEquals(14, cache.getLedger().getTotalBytes());
+    verify(thumbnailService, never()).createThumbnail(any(Path.class));
+  }
+
+  @Test
+  void testBaselineCacheSurvivesUpgrade() throws IOException {
+    // Before cache keys carried the settings fingerprint, thumbnails were named by the photo hash alone
+    Path baselineDir = Files.createDirectories(tempDir.resolve("baseline"));
+    Files.write(baselineDir.resolve("abcdef.jpg"), "thumbnail".getBytes());
+    Files.write(baselineDir.resolve("123456.jpg"), "other".getBytes());
+    ThumbnailCache cache = newCache(baselineDir, new SimpleMeterRegistry(), Runnable::run);
+
+    assertArrayEquals("thumbnail".getBytes(), cache.get("abcdef", photo));
+    assertTrue(Files.exists(baselineDir.resolve("ab/cd/abcdef-f1.jpg")));
+    assertEquals(2, cache.scan());
+    assertTrue(Files.exists(baselineDir.resolve("12/34/123456-f1.jpg")));
+    assertFalse(Files.exists(baselineDir.resolve("123456.jpg")));
+    // Both are current, so the garbage collection keeps them
+    assertTrue(cache.getLedger().matching(key -> !cache.isCurrent(key), 10).isEmpty());
+
+    // The warm-up finds both thumbnails and regenerates nothing
+    assertFalse(cache.ensure("abcdef", photo, true));
+    assertFalse(cache.ensure("123456", photo, true));
+    verify(thumbnailService, never()).createThumbnail(any(Path.class));
+    verify(thumbnailService, never()).createRenditions(any(Path.class), anyBoolean(), anyCollection());
+  }
+
+  @Test
+  void testLeftoverTemporaryFilesAreRemoved() throws IOException {
+    Path leftover = Files.write(tempDir.resolve("cache/tmp/abc123.tmp"), "partial".getBytes());
+
+    newCache(tempDir.resolve("cache"), new SimpleMeterRegistry(), Runnable::run);
+
+    assertFalse(Files.exists(leftover));
+  }
+
+  private ThumbnailCache newCache(Path cacheDir, MeterRegistry registry, Executor resizeExecutor) {
+    return new ThumbnailCache(thumbnailService,
+        cacheDir,
+        new FileThumbnailStore(cacheDir, thumbnailService.getFingerprint()),
+        new ByteCache(1024 * 1024, false),
+        registry,
+        resizeExecutor);
+  }
+}
@@ -0,0 +1,299 @@
+package io.beanthemoonman.photos.service;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.utility.PhotoMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThumbnailServiceTest {
+
+  @TempDir
+  Path tempDir;
+
+  private PhotosConfig config;
+
+  @BeforeEach
+  void setUp() {
+    config = new PhotosConfig();
+    config.getThumbnail().setSizes(List.of(800, 200, 400, 200));
+  }
+
+  @Test
+  void testSizesAreSortedAndSelectedByWidth() {
+    ThumbnailService thumbnailService = new ThumbnailService(config, new SimpleMeterRegistry());
+
+    assertEquals(List.of(200, 400, 800), thumbnailService.getSizes());
+    assertEquals(200, thumbnailService.selectSize(100));
+    assertEquals(400, thumbnailService.selectSize(400));
+    assertEquals(800, thumbnailService.selectSize(401));
+    assertEquals(800, thumbnailService.selectSize(5000));
+  }
+
+  @Test
+  void testFingerprintFollowsOutputSettings() {
+    ThumbnailService thumbnailService = new ThumbnailService(config, new SimpleMeterRegistry());
+    String fingerprint = thumbnailService.getFingerprint();
+    String derivative = thumbnailService.getFingerprint(400);
+
+    assertEquals(fingerprint, new ThumbnailService(config, new SimpleMeterRegistry()).getFingerprint());
+    assertNotEquals(derivative, thumbnailService.getFingerprint(800));
+
+    config.getThumbnail().setEmbeddedPreview(false);
+    ThumbnailService withoutPreviews = new ThumbnailService(config, new SimpleMeterRegistry());
+    assertNotEquals(fingerprint, withoutPreviews.getFingerprint());
+    assertNotEquals(derivative, withoutPreviews.getFingerprint(400));
+
+    config.getThumbnail().setWidth(config.getThumbnail().getWidth() + 1);
+    assertNotEquals(withoutPreviews.getFingerprint(),
+        new ThumbnailService(config, new SimpleMeterRegistry()).getFingerprint());
+  }
+
+  @Test
+  void testNoSizeIsSelectedWithoutDerivatives() {
+    config.getThumbnail().setSizes(List.of());
+
+    assertNull(new ThumbnailService(config, new SimpleMeterRegistry()).selectSize(400));
+  }
+
+  @Test
+  void testCreateThumbnailsFitsEachSizeWithoutUpscaling() throws IOException {
+    ThumbnailService thumbnailService = new ThumbnailService(config, new SimpleMeterRegistry());
+    Path image = tempDir.resolve("landscape.jpg");
+    Files.write(image, jpeg(600, 300, Color.BLACK));
+
+    Map<Integer, byte[]> thumbnails = thumbnailService.createThumbnails(image, thumbnailService.getSizes());
+
+    // Verify each derivative fits its size and the largest keeps the original dimensions
+    assertEquals(3, thumbnails.size());
+    assertDimensions(200, 100, thumbnails.get(200));
+    assertDimensions(400, 200, thumbnails.get(400));
+    assertDimensions(600, 300, thumbnails.get(800));
+  }
+
+  @Test
+  void testRenditionsShareOneDecode() throws IOException {
+    config.getThumbnail().setWidth(300);
+    config.getThumbnail().setHeight(100);
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    ThumbnailService thumbnailService = new ThumbnailService(config, registry);
+    Path image = tempDir.resolve("portrait.jpg");
+    Files.write(image, jpeg(300, 600, Color.BLACK));
+
+    ThumbnailService.Renditions renditions = thumbnailService.createRenditions(image, true, List.of(200, 400));
+
+    // The thumbnail box is wider than the 200 derivative, so the thumbnail is scaled from the 400 one
+    assertDimensions(50, 100, renditions.thumbnail());
+    assertDimensions(100, 200, renditions.derivatives().get(200));
+    assertDimensions(200, 400, renditions.derivatives().get(400));
+    assertEquals(1, registry.get(PhotoMetrics.PIPELINE).tag("stage", "decode").timer().count());
+    assertNull(thumbnailService.createRenditions(image, false, List.of(200)).thumbnail());
+  }
+
+  @Test
+  void testWarmupSizesStopAtMaxSize() {
+    config.getWarmup().setMaxSize(400);
+    assertEquals(List.of(200, 400), new ThumbnailService(config, new SimpleMeterRegistry()).getWarmupSizes());
+
+    config.getWarmup().setMaxSize(0);
+    assertEquals(List.of(200, 400, 800), new ThumbnailService(config, new SimpleMeterRegistry()).getWarmupSizes());
+  }
+
+  @Test
+  void testPipelineStagesAreTimed() throws IOException {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    ThumbnailService thumbnailService = new ThumbnailService(config, registry);
+    Path image = tempDir.resolve("landscape.jpg");
+    Files.write(image, jpeg(600, 300, Color.BLACK));
+
+    thumbnailService.createThumbnails(image, thumbnailService.getSizes());
+
+    // One decode for all derivatives, then a resize and an encode for each
+    assertEquals(1, registry.get(PhotoMetrics.PIPELINE).tag("stage", "decode").timer().count());
+    assertEquals(3, registry.get(PhotoMetrics.PIPELINE).tag("stage", "resize").timer().count());
+    assertEquals(3, registry.get(PhotoMetrics.PIPELINE).tag("stage", "encode").timer().count());
+  }
+
+  @Test
+  void testCreateThumbnailAppliesExifOrientation() throws IOException {
+    config.getThumbnail().setWidth(400);
+    config.getThumbnail().setHeight(400);
+    ThumbnailService thumbnailService = new ThumbnailService(config, new SimpleMeterRegistry());
+
+    // A landscape image that is displayed rotated by 90 degrees
+    Path image = tempDir.resolve("rotated.jpg");
+    Files.write(image, withExif(jpeg(4000, 2000, Color.BLACK), 6, null));
+
+    assertDimensions(200, 400, thumbnailService.createThumbnail(image));
+  }
+
+  @Test
+  void testSubsamplingKeepsTwiceTheTargetSize() {
+    // A 60 MP original into a 400 pixel box
+    assertEquals(11, ThumbnailService.subsampling(9000, 6700, 400, 400));
+    // Images close to the target size are decoded in full
+    assertEquals(1, ThumbnailService.subsampling(700, 500, 400, 400));
+    assertEquals(1, ThumbnailService.subsampling(9000, 6700, 0, 0));
+  }
+
+  @Test
+  void testCreateThumbnailUsesLargeEnoughEmbeddedThumbnail() throws IOException {
+    config.getThumbnail().setWidth(400);
+    config.getThumbnail().setHeight(400);
+    ThumbnailService thumbnailService = new ThumbnailService(config, new SimpleMeterRegistry());
+
+    // A black photo whose embedded thumbnail is white, so the source of the result can be told apart
+    Path image = tempDir.resolve("preview.jpg");
+    Files.write(image, withExif(jpeg(4000, 2000, Color.BLACK), 1, jpeg(800, 400, Color.WHITE)));
+
+    byte[] thumbnail = thumbnailService.createThumbnail(image);
+    assertDimensions(400, 200, thumbnail);
+    assertTrue(brightness(thumbnail) > 200);
+  }
+
+  @Test
+  void testCreateThumbnailIgnoresUnsuitableEmbeddedThumbnail() throws IOException {
+    config.getThumbnail().setWidth(400);
+    config.getThumbnail().setHeight(400);
+    ThumbnailService thumbnailService = new ThumbnailService(config, new SimpleMeterRegistry());
+
+    // Too small, and letterboxed to a different aspect ratio
+    Path small = tempDir.resolve("small.jpg");
+    Files.write(small, withExif(jpeg(4000, 2000, Color.BLACK), 1, jpeg(160, 80, Color.WHITE)));
+    Path letterboxed = tempDir.resolve("letterboxed.jpg");
+    Files.write(letterboxed, withExif(jpeg(4000, 2000, Color.BLACK), 1, jpeg(800, 600, Color.WHITE)));
+
+    assertTrue(brightness(thumbnailService.createThumbnail(small)) < 50);
+    assertTrue(brightness(thumbnailService.createThumbnail(letterboxed)) < 50);
+  }
+
+  @Test
+  void testCreateThumbnailUsesLargePreviewFromMpfIndex() throws IOException {
+    config.getThumbnail().setWidth(400);
+    config.getThumbnail().setHeight(400);
+    ThumbnailService thumbnailService = new ThumbnailService(config, new SimpleMeterRegistry());
+
+    // The EXIF thumbnail is too small, but the preview after the image data is large enough
+    Path image = tempDir.resolve("mpf.jpg");
+    byte[] photo = withPreview(jpeg(4000, 2000, Color.BLACK), jpeg(1920, 960, Color.WHITE));
+    Files.write(image, withExif(photo, 1, jpeg(160, 80, Color.BLACK)));
+
+    byte[] thumbnail = thumbnailService.createThumbnail(image);
+    assertDimensions(400, 200, thumbnail);
+    assertTrue(brightness(thumbnail) > 200);
+  }
+
+  @Test
+  void testEmbeddedThumbnailCanBeDisabled() throws IOException {
+    config.getThumbnail().setEmbeddedPreview(false);
+    ThumbnailService thumbnailService = new ThumbnailService(config, new SimpleMeterRegistry());
+
+    Path image = tempDir.resolve("preview.jpg");
+    Files.write(image, withExif(jpeg(4000, 2000, Color.BLACK), 1, jpeg(800, 400, Color.WHITE)));
+
+    assertTrue(brightness(thumbnailService.createThumbnail(image)) < 50);
+  }
+
+  private static byte[] jpeg(int width, int height, Color color) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+    graphics.setColor(color);
+    graphics.fillRect(0, 0, width, height);
+    graphics.dispose();
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpg", outputStream);
+    return outputStream.toByteArray();
+  }
+
+  private static int brightness(byte[] imageData) throws IOException {
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData));
+    return image.getRGB(image.getWidth() / 2, image.getHeight() / 2) & 0xFF;
+  }
+
+  /**
+   * Insert an EXIF segment with the given orientation and embedded thumbnail after the start of image marker.
+   */
+  private static byte[] withExif(byte[] jpeg, int orientation, byte[] thumbnail) {
+    int thumbnailOffset = 8 + 18 + 30;
+    ByteBuffer tiff = ByteBuffer.allocate(thumbnail != null ? thumbnailOffset + thumbnail.length : 8 + 18)
+        .putShort((short) 0x4D4D)
+        .putShort((short) 42)
+        .putInt(8)
+        // IFD0 with the orientation
+        .putShort((short) 1)
+        .putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0)
+        .putInt(thumbnail != null ? 8 + 18 : 0);
+    if (thumbnail != null) {
+      // IFD1 with the location of the thumbnail
+      tiff.putShort((short) 2)
+          .putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset)
+          .putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length)
+          .putInt(0)
+          .put(thumbnail);
+    }
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    outputStream.write(jpeg, 0, 2);
+    int length = 2 + 6 + tiff.capacity();
+    outputStream.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xE1, (byte) (length >> 8), (byte) length });
+    outputStream.writeBytes("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+    outputStream.writeBytes(tiff.array());
+    outputStream.write(jpeg, 2, jpeg.length - 2);
+    return outputStream.toByteArray();
+  }
+
+  /**
+   * Insert an MPF segment after the start of image marker, and append a large preview that its index points to.
+   */
+  private static byte[] withPreview(byte[] jpeg, byte[] preview) {
+    int entries = 8 + 18;
+    int length = 2 + 4 + entries + 2 * 16;
+    // MPF offsets count from the TIFF header in the segment, which is followed by the rest of the segment and the photo
+    ByteBuffer mpf = ByteBuffer.allocate(entries + 2 * 16)
+        .putShort((short) 0x4D4D)
+        .putShort((short) 42)
+        .putInt(8)
+        // MP Index IFD with the entries of the photo and the preview
+        .putShort((short) 1)
+        .putShort((short) 0xB002).putShort((short) 7).putInt(2 * 16).putInt(entries)
+        .putInt(0)
+        .putInt(0x20030000).putInt(jpeg.length).putInt(0).putInt(0)
+        .putInt(0x00010002).putInt(preview.length).putInt(entries + 2 * 16 + jpeg.length - 2).putInt(0);
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    outputStream.write(jpeg, 0, 2);
+    outputStream.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xE2, (byte) (length >> 8), (byte) length });
+    outputStream.writeBytes("MPF\0".getBytes(StandardCharsets.US_ASCII));
+    outputStream.writeBytes(mpf.array());
+    outputStream.write(jpeg, 2, jpeg.length - 2);
+    outputStream.writeBytes(preview);
+    return outputStream.toByteArray();
+  }
+
+  private static void assertDimensions(int width, int height, byte[] imageData) throws IOException {
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData));
+    assertEquals(width, image.getWidth());
+    assertEquals(height, image.getHeight());
+  }
+}
@@ -0,0 +1,116 @@
+package io.beanthemoonman.photos.utility;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ByteCacheTest {
+
+  @Test
+  void testHitsAndMissesAreCounted() {
+    ByteCache cache = new ByteCache(1024, false);
+
+    assertNull(cache.get("a"));
+    cache.put("a", new byte[100]);
+    assertNotNull(cache.get("a"));
+
+    ByteCache.Stats stats = cache.stats();
+    assertEquals(1, stats.hits());
+    assertEquals(1, stats.misses());
+    assertEquals(1, stats.entries());
+    assertEquals(100, stats.bytes());
+    assertEquals(0.5, stats.hitRate());
+  }
+
+  @Test
+  void testSizeIsBoundedByBytes() {
+    ByteCache cache = new ByteCache(1000, false);
+
+    // Request each key more often than the one before, so that every key is admitted
+    for (int i = 0; i < 10; i++) {
+      for (int j = 0; j <= i; j++) {
+        cache.get("key" + i);
+      }
+      cache.put("key" + i, new byte[300]);
+    }
+
+    // Verify only the three most recent entries fit, the rest were evicted
+    ByteCache.Stats stats = cache.stats();
+    assertEquals(3, stats.entries());
+    assertEquals(900, stats.bytes());
+    assertEquals(7, stats.evictions());
+    assertNotNull(cache.get("key9"));
+    assertNull(cache.get("key0"));
+  }
+
+  @Test
+  void testLeastRecentlyUsedIsEvicted() {
+    ByteCache cache = new ByteCache(300, false);
+    cache.put("a", new byte[100]);
+    cache.put("b", new byte[100]);
+    cache.put("c", new byte[100]);
+
+    // Touch "a" so that "b" becomes the eldest
+    cache.get("a");
+    cache.get("d");
+    cache.get("d");
+    cache.put("d", new byte[100]);
+
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("d"));
+  }
+
+  @Test
+  void testRarelyRequestedValueIsNotAdmitted() {
+    ByteCache cache = new ByteCache(200, false);
+    for (int i = 0; i < 5; i++) {
+      cache.get("hot1");
+      cache.get("hot2");
+    }
+    cache.put("hot1", new byte[100]);
+    cache.put("hot2", new byte[100]);
+
+    // A value requested once does not displace the popular ones
+    cache.get("cold");
+    cache.put("cold", new byte[100]);
+
+    assertNull(cache.get("cold"));
+    assertNotNull(cache.get("hot1"));
+    assertNotNull(cache.get("hot2"));
+    assertEquals(1, cache.stats().rejections());
+  }
+
+  @Test
+  void testValuesLargerThanTheCacheAreIgnored() {
+    ByteCache cache = new ByteCache(100, false);
+    cache.put("big", new byte[101]);
+
+    assertNull(cache.get("big"));
+    assertEquals(0, cache.stats().bytes());
+  }
+
+  @Test
+  void testOffHeapValuesAreCopiedOut() {
+    ByteCache cache = new ByteCache(1024, true);
+    byte[] value = { 1, 2, 3 };
+    cache.put("a", value);
+
+    byte[] cached = cache.get("a");
+    assertArrayEquals(value, cached);
+    assertNotSame(value, cached);
+  }
+
+  @Test
+  void testDisabledCacheStoresNothing() {
+    ByteCache cache = new ByteCache(0, false);
+    cache.put("a", new byte[1]);
+
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.stats().entries());
+  }
+}
@@ -0,0 +1,55 @@
+package io.beanthemoonman.photos.utility;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CacheLedgerTest {
+
+  @Test
+  void testTotalFollowsWritesAndRemovals() {
+    CacheLedger ledger = new CacheLedger();
+
+    ledger.written("a", 100, 1);
+    ledger.written("b", 50, 2);
+    ledger.written("a", 120, 3);
+    // A file found on disk does not replace a newer record
+    ledger.found("b", 999, 0);
+
+    assertEquals(170, ledger.getTotalBytes());
+    assertEquals(120, ledger.removed("a"));
+    assertEquals(0, ledger.removed("a"));
+    assertEquals(50, ledger.getTotalBytes());
+    assertEquals(1, ledger.size());
+  }
+
+  @Test
+  void testLeastRecentlyServedComeFirst() {
+    CacheLedger ledger = new CacheLedger();
+    for (int i = 0; i < 10; i++) {
+      ledger.found("key" + i, 10, i);
+    }
+    ledger.served("key0", 100);
+    ledger.served("key1", 101);
+    // Serving a file that is not recorded does not add it
+    ledger.served("unknown", 102);
+
+    assertEquals(List.of("key2", "key3", "key4"),
+        ledger.leastRecentlyServed(3).stream().map(CacheLedger.Candidate::key).toList());
+    assertEquals(10, ledger.leastRecentlyServed(100).size());
+    assertEquals("key1", ledger.leastRecentlyServed(100).getLast().key());
+  }
+
+  @Test
+  void testMatchingIsLimited() {
+    CacheLedger ledger = new CacheLedger();
+    for (int i = 0; i < 10; i++) {
+      ledger.found((i % 2 == 0 ? "even" : "odd") + i, 10, i);
+    }
+
+    assertEquals(5, ledger.matching(key -> key.startsWith("even"), 100).size());
+    assertEquals(2, ledger.matching(key -> key.startsWith("even"), 2).size());
+  }
+}
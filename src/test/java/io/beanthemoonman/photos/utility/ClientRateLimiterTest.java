@@ -0,0 +1,104 @@
+package io.beanthemoonman.photos.utility;
+
+import io.beanthemoonman.photos.utility.ClientRateLimiter.EndpointClass;
+import io.github.bucket4j.ConsumptionProbe;
+import io.github.bucket4j.TimeMeter;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClientRateLimiterTest {
+
+  private final ManualTime time = new ManualTime();
+
+  @Test
+  void testBucketsAreSeparatePerClientAndEndpointClass() {
+    ClientRateLimiter rateLimiter = new ClientRateLimiter(Map.of(EndpointClass.LISTING, 2L,
+        EndpointClass.FULL_SIZE, 1L), 100, time);
+
+    assertTrue(rateLimiter.tryConsume("a", EndpointClass.LISTING).isConsumed());
+    assertTrue(rateLimiter.tryConsume("a", EndpointClass.LISTING).isConsumed());
+    ConsumptionProbe rejected = rateLimiter.tryConsume("a", EndpointClass.LISTING);
+    assertFalse(rejected.isConsumed());
+    assertEquals(Duration.ofSeconds(30).toNanos(), rejected.getNanosToWaitForRefill());
+
+    // Other clients and endpoint classes are not affected, and classes without a limit are not tracked
+    assertTrue(rateLimiter.tryConsume("b", EndpointClass.LISTING).isConsumed());
+    assertTrue(rateLimiter.tryConsume("a", EndpointClass.FULL_SIZE).isConsumed());
+    assertTrue(rateLimiter.tryConsume("a", EndpointClass.THUMBNAIL).isConsumed());
+    assertEquals(3, rateLimiter.size());
+  }
+
+  @Test
+  void testTokensRefillOverTime() {
+    ClientRateLimiter rateLimiter = new ClientRateLimiter(Map.of(EndpointClass.LISTING, 2L), 100, time);
+    rateLimiter.tryConsume("a", EndpointClass.LISTING);
+    rateLimiter.tryConsume("a", EndpointClass.LISTING);
+
+    time.advance(Duration.ofSeconds(30));
+
+    assertTrue(rateLimiter.tryConsume("a", EndpointClass.LISTING).isConsumed());
+    assertFalse(rateLimiter.tryConsume("a", EndpointClass.LISTING).isConsumed());
+  }
+
+  @Test
+  void testSeveralTokensAreTakenAtOnce() {
+    ClientRateLimiter rateLimiter = new ClientRateLimiter(Map.of(EndpointClass.THUMBNAIL_GENERATE, 4L), 100, time);
+
+    assertTrue(rateLimiter.tryConsume("a", EndpointClass.THUMBNAIL_GENERATE, 3).isConsumed());
+    assertFalse(rateLimiter.tryConsume("a", EndpointClass.THUMBNAIL_GENERATE, 2).isConsumed());
+    assertTrue(rateLimiter.tryConsume("a", EndpointClass.THUMBNAIL_GENERATE, 1).isConsumed());
+
+    // More tokens than the bucket holds take the whole bucket once it has refilled
+    time.advance(Duration.ofMinutes(1));
+    assertTrue(rateLimiter.tryConsume("a", EndpointClass.THUMBNAIL_GENERATE, 10).isConsumed());
+    assertFalse(rateLimiter.tryConsume("a", EndpointClass.THUMBNAIL_GENERATE).isConsumed());
+  }
+
+  @Test
+  void testNumberOfBucketsIsBounded() {
+    ClientRateLimiter rateLimiter = new ClientRateLimiter(Map.of(EndpointClass.LISTING, 1L), 1, time);
+
+    for (int i = 0; i < 10; i++) {
+      rateLimiter.tryConsume("client" + i, EndpointClass.LISTING);
+    }
+
+    // One client's worth of buckets, one per endpoint class
+    assertEquals(EndpointClass.values().length, rateLimiter.size());
+  }
+
+  @Test
+  void testIdleBucketsExpire() {
+    ClientRateLimiter rateLimiter = new ClientRateLimiter(Map.of(EndpointClass.LISTING, 1L), 100, time);
+    rateLimiter.tryConsume("a", EndpointClass.LISTING);
+    rateLimiter.tryConsume("b", EndpointClass.LISTING);
+
+    time.advance(Duration.ofMinutes(1));
+    rateLimiter.tryConsume("c", EndpointClass.LISTING);
+
+    assertEquals(1, rateLimiter.size());
+  }
+
+  private static final class ManualTime implements TimeMeter {
+    private long nanos;
+
+    void advance(Duration duration) {
+      nanos += duration.toNanos();
+    }
+
+    @Override
+    public long currentTimeNanos() {
+      return nanos;
+    }
+
+    @Override
+    public boolean isWallClockBased() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package io.beanthemoonman.photos.utility;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExifTest {
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testOrientationInBothByteOrders() {
+    Exif littleEndian = Exif.parse(ByteBuffer.wrap(jpeg(6, ByteOrder.LITTLE_ENDIAN, null)));
+    Exif bigEndian = Exif.parse(ByteBuffer.wrap(jpeg(3, ByteOrder.BIG_ENDIAN, null)));
+
+    assertEquals(6, littleEndian.getOrientation());
+    assertTrue(littleEndian.isTransposed());
+    assertEquals(3, bigEndian.getOrientation());
+    assertFalse(bigEndian.isTransposed());
+  }
+
+  @Test
+  void testEmbeddedThumbnail() {
+    byte[] thumbnail = { (byte) 0xFF, (byte) 0xD8, 1, 2, 3, (byte) 0xFF, (byte) 0xD9 };
+
+    Exif exif = Exif.parse(ByteBuffer.wrap(jpeg(1, ByteOrder.LITTLE_ENDIAN, thumbnail)));
+
+    assertArrayEquals(thumbnail, exif.getThumbnail());
+    assertEquals(1, exif.getOrientation());
+    assertNull(Exif.parse(ByteBuffer.wrap(jpeg(6, ByteOrder.LITTLE_ENDIAN, null))).getThumbnail());
+  }
+
+  @Test
+  void testThumbnailBeyondTheSegmentIsIgnored() {
+    byte[] jpeg = jpeg(6, ByteOrder.BIG_ENDIAN, new byte[] { 1, 2, 3, 4 });
+
+    // Cut off the thumbnail, but keep the orientation
+    Exif exif = Exif.parse(ByteBuffer.wrap(Arrays.copyOf(jpeg, jpeg.length - 4)));
+
+    assertNull(exif.getThumbnail());
+    assertEquals(6, exif.getOrientation());
+  }
+
+  @Test
+  void testDateTakenAndCamera() {
+    Exif exif = Exif.parse(ByteBuffer.wrap(wrap(tiff("2020:01:01 00:00:00", "2019:06:15 14:30:05"))));
+
+    // The original capture date wins over the modification date
+    assertEquals(LocalDateTime.of(2019, 6, 15, 14, 30, 5), exif.getDateTaken());
+    assertEquals("Canon EOS R5", exif.getCamera());
+    assertEquals(1, exif.getOrientation());
+  }
+
+  @Test
+  void testDateTakenFallsBackToModificationDate() {
+    Exif modified = Exif.parse(ByteBuffer.wrap(wrap(tiff("2020:01:01 00:00:00", "    :  :     :  :  "))));
+    Exif unset = Exif.parse(ByteBuffer.wrap(wrap(tiff("0000:00:00 00:00:00", "0000:00:00 00:00:00"))));
+
+    assertEquals(LocalDateTime.of(2020, 1, 1, 0, 0), modified.getDateTaken());
+    assertNull(unset.getDateTaken());
+    assertEquals("Canon EOS R5", unset.getCamera());
+  }
+
+  @Test
+  void testFilesWithoutExifHaveNone() {
+    // Not a JPEG
+    assertSame(Exif.NONE, Exif.parse(ByteBuffer.wrap("GIF89a".getBytes(StandardCharsets.US_ASCII))));
+
+    // A JPEG without an APP1 segment
+    byte[] jpeg = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9 };
+    assertSame(Exif.NONE, Exif.parse(ByteBuffer.wrap(jpeg)));
+  }
+
+  @Test
+  void testTruncatedHeaderHasNone() {
+    byte[] jpeg = jpeg(6, ByteOrder.BIG_ENDIAN, null);
+
+    assertSame(Exif.NONE, Exif.parse(ByteBuffer.wrap(Arrays.copyOf(jpeg, jpeg.length - 12))));
+  }
+
+  @Test
+  void testLargePreviewFromMpfIndex() throws IOException {
+    byte[] preview = { (byte) 0xFF, (byte) 0xD8, 4, 5, 6, 7, (byte) 0xFF, (byte) 0xD9 };
+    byte[] exif = jpeg(6, ByteOrder.BIG_ENDIAN, null);
+    Path file = tempDir.resolve("mpf.jpg");
+    Files.write(file, withMpf(exif, preview, ByteOrder.LITTLE_ENDIAN));
+
+    Exif parsed = Exif.read(file);
+
+    assertEquals(6, parsed.getOrientation());
+    assertTrue(parsed.hasPreview());
+    assertArrayEquals(preview, parsed.readPreview(file));
+    assertFalse(Exif.parse(ByteBuffer.wrap(exif)).hasPreview());
+    assertNull(Exif.parse(ByteBuffer.wrap(exif)).readPreview(file));
+  }
+
+  @Test
+  void testLargePreviewBeyondEndOfFileIsIgnored() throws IOException {
+    byte[] preview = { (byte) 0xFF, (byte) 0xD8, 4, 5, 6, 7, (byte) 0xFF, (byte) 0xD9 };
+    byte[] jpeg = withMpf(jpeg(1, ByteOrder.BIG_ENDIAN, null), preview, ByteOrder.BIG_ENDIAN);
+    Path file = tempDir.resolve("truncated.jpg");
+    Files.write(file, Arrays.copyOf(jpeg, jpeg.length - 4));
+
+    Exif parsed = Exif.read(file);
+
+    assertTrue(parsed.hasPreview());
+    assertNull(parsed.readPreview(file));
+  }
+
+  /**
+   * Build the start of a JPEG file with an EXIF segment holding an orientation and optionally a thumbnail.
+   */
+  private static byte[] jpeg(int orientation, ByteOrder byteOrder, byte[] thumbnail) {
+    int thumbnailOffset = 8 + 18 + 30;
+    int tiffLength = thumbnail != null ? thumbnailOffset + thumbnail.length : 8 + 18;
+    ByteBuffer tiff = ByteBuffer.allocate(tiffLength).order(byteOrder);
+    tiff.putShort(byteOrder == ByteOrder.LITTLE_ENDIAN ? (short) 0x4949 : (short) 0x4D4D)
+        .putShort((short) 42)
+        .putInt(8)
+        .putShort((short) 1)
+        .putShort((short) 0x0112)
+        .putShort((short) 3)
+        .putInt(1)
+        .putShort((short) orientation)
+        .putShort((short) 0)
+        .putInt(thumbnail != null ? 8 + 18 : 0);
+    if (thumbnail != null) {
+      tiff.putShort((short) 2)
+          .putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset)
+          .putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length)
+          .putInt(0)
+          .put(thumbnail);
+    }
+
+    return wrap(tiff.array());
+  }
+
+  /**
+   * Build a big-endian TIFF structure with make, model and modification date in IFD0 and the original capture date in
+   * the Exif IFD.
+   */
+  private static byte[] tiff(String dateTime, String dateTimeOriginal) {
+    int exifIfd = 8 + 2 + 4 * 12 + 4;
+    int data = exifIfd + 2 + 12 + 4;
+    ByteBuffer tiff = ByteBuffer.allocate(data + 6 + 13 + 20 + 20)
+        .putShort((short) 0x4D4D)
+        .putShort((short) 42)
+        .putInt(8)
+        // IFD0
+        .putShort((short) 4)
+        .putShort((short) 0x010F).putShort((short) 2).putInt(6).putInt(data)
+        .putShort((short) 0x0110).putShort((short) 2).putInt(13).putInt(data + 6)
+        .putShort((short) 0x0132).putShort((short) 2).putInt(20).putInt(data + 19)
+        .putShort((short) 0x8769).putShort((short) 4).putInt(1).putInt(exifIfd)
+        .putInt(0)
+        // Exif IFD
+        .putShort((short) 1)
+        .putShort((short) 0x9003).putShort((short) 2).putInt(20).putInt(data + 39)
+        .putInt(0);
+    for (String value : new String[] { "Canon", "Canon EOS R5", dateTime, dateTimeOriginal }) {
+      tiff.put((value + "\0").getBytes(StandardCharsets.US_ASCII));
+    }
+    return tiff.array();
+  }
+
+  /**
+   * Insert an MPF segment before the end of a JPEG file, and append a large preview that its index points to.
+   */
+  private static byte[] withMpf(byte[] jpeg, byte[] preview, ByteOrder byteOrder) {
+    // MPF header, MP Index IFD with the MP Entry tag, and the entries of the primary image and the preview
+    int entries = 8 + 18;
+    int segmentLength = 2 + 4 + entries + 2 * 16;
+    int previewOffset = segmentLength - 2 - 4 + 2;
+    ByteBuffer mpf = ByteBuffer.allocate(entries + 2 * 16).order(byteOrder);
+    mpf.putShort(byteOrder == ByteOrder.LITTLE_ENDIAN ? (short) 0x4949 : (short) 0x4D4D)
+        .putShort((short) 42)
+        .putInt(8)
+        .putShort((short) 1)
+        .putShort((short) 0xB002).putShort((short) 7).putInt(2 * 16).putInt(entries)
+        .putInt(0)
+        .putInt(0x20030000).putInt(jpeg.length).putInt(0).putInt(0)
+        .putInt(0x00010002).putInt(preview.length).putInt(previewOffset).putInt(0);
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    output.write(jpeg, 0, jpeg.length - 2);
+    output.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xE2, (byte) (segmentLength >> 8), (byte) segmentLength });
+    output.writeBytes("MPF\0".getBytes(StandardCharsets.US_ASCII));
+    output.writeBytes(mpf.array());
+    output.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xD9 });
+    output.writeBytes(preview);
+    return output.toByteArray();
+  }
+
+  /**
+   * Wrap a TIFF structure into the EXIF segment of a JPEG file.
+   */
+  private static byte[] wrap(byte[] tiff) {
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    jpeg.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1 });
+    int length = 2 + 6 + tiff.length;
+    jpeg.write(length >> 8);
+    jpeg.write(length);
+    jpeg.writeBytes("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+    jpeg.writeBytes(tiff);
+    jpeg.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xD9 });
+    return jpeg.toByteArray();
+  }
+}
@@ -0,0 +1,119 @@
+package io.beanthemoonman.photos.utility;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashIndexTest {
+
+  private static final String HASH_A = "a".repeat(64);
+
+  private static final String HASH_B = "b".repeat(64);
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testLookupSurvivesReopen() throws IOException {
+    Path file = tempDir.resolve("hashes.idx");
+
+    try (HashIndex index = HashIndex.open(file)) {
+      index.put("a.jpg", 100, 1_000, HASH_A);
+      index.put("b.jpg", 200, 2_000, HASH_B);
+    }
+
+    try (HashIndex index = HashIndex.open(file)) {
+      // Verify hashes are found while size and modification time match
+      assertEquals(2, index.size());
+      assertEquals(HASH_A, index.lookup("a.jpg", 100, 1_000));
+      assertEquals(HASH_B, index.lookup("b.jpg", 200, 2_000));
+
+      // A changed file is not found
+      assertNull(index.lookup("a.jpg", 101, 1_000));
+      assertNull(index.lookup("a.jpg", 100, 1_001));
+      assertNull(index.lookup("c.jpg", 100, 1_000));
+    }
+  }
+
+  @Test
+  void testLastRecordWins() throws IOException {
+    Path file = tempDir.resolve("hashes.idx");
+
+    try (HashIndex index = HashIndex.open(file)) {
+      index.put("a.jpg", 100, 1_000, HASH_A);
+      index.put("a.jpg", 150, 1_500, HASH_B);
+    }
+
+    try (HashIndex index = HashIndex.open(file)) {
+      assertNull(index.lookup("a.jpg", 100, 1_000));
+      assertEquals(HASH_B, index.lookup("a.jpg", 150, 1_500));
+    }
+  }
+
+  @Test
+  void testTornRecordIsDiscarded() throws IOException {
+    Path file = tempDir.resolve("hashes.idx");
+
+    try (HashIndex index = HashIndex.open(file)) {
+      index.put("a.jpg", 100, 1_000, HASH_A);
+    }
+    long validLength = Files.size(file);
+
+    // Simulate a crash in the middle of appending a record
+    Files.write(file, new byte[] { 0, 5, 'b', '.' }, StandardOpenOption.APPEND);
+
+    try (HashIndex index = HashIndex.open(file)) {
+      assertEquals(1, index.size());
+      assertEquals(HASH_A, index.lookup("a.jpg", 100, 1_000));
+    }
+    assertEquals(validLength, Files.size(file));
+  }
+
+  @Test
+  void testCompactDropsDeletedPhotos() throws IOException {
+    Path file = tempDir.resolve("hashes.idx");
+
+    try (HashIndex index = HashIndex.open(file)) {
+      for (int i = 0; i < 2048; i++) {
+        index.put("photo" + i + ".jpg", i, i, HASH_A);
+      }
+      long fullLength = Files.size(file);
+
+      index.compact(Set.of("photo1.jpg"), index.mark());
+
+      assertEquals(1, index.size());
+      assertEquals(HASH_A, index.lookup("photo1.jpg", 1, 1));
+      assertTrue(Files.size(file) < fullLength);
+    }
+
+    try (HashIndex index = HashIndex.open(file)) {
+      assertEquals(1, index.size());
+    }
+  }
+
+  @Test
+  void testCompactKeepsPhotosAddedAfterMark() throws IOException {
+    try (HashIndex index = HashIndex.open(tempDir.resolve("hashes.idx"))) {
+      index.put("listed.jpg", 1, 1, HASH_A);
+      index.put("deleted.jpg", 2, 2, HASH_A);
+      long mark = index.mark();
+
+      // Hashed while the library was being processed, after it was listed
+      index.put("arrived.jpg", 3, 3, HASH_B);
+      index.compact(Set.of("listed.jpg"), mark);
+
+      assertEquals(2, index.size());
+      assertEquals(HASH_B, index.lookup("arrived.jpg", 3, 3));
+      assertNull(index.lookup("deleted.jpg", 2, 2));
+    }
+  }
+}
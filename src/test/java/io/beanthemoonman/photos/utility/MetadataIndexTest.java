@@ -0,0 +1,106 @@
+package io.beanthemoonman.photos.utility;
+
+import io.beanthemoonman.photos.model.PhotoMetadata;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetadataIndexTest {
+
+  private static final String HASH_A = "a".repeat(64);
+
+  private static final String HASH_B = "b".repeat(64);
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testLookupSurvivesReopen() throws IOException {
+    Path file = tempDir.resolve("metadata.idx");
+    PhotoMetadata a = new PhotoMetadata(1_560_609_005_000L, 6000, 4000, 1, "Canon EOS R5");
+    PhotoMetadata b = new PhotoMetadata(PhotoMetadata.UNKNOWN_TIME, 800, 600, 6, null);
+
+    try (MetadataIndex index = MetadataIndex.open(file)) {
+      index.put(HASH_A, a);
+      index.put(HASH_B, b);
+    }
+
+    try (MetadataIndex index = MetadataIndex.open(file)) {
+      assertEquals(2, index.size());
+      assertEquals(a, index.lookup(HASH_A));
+      assertEquals(b, index.lookup(HASH_B));
+      assertNull(index.lookup("c".repeat(64)));
+    }
+  }
+
+  @Test
+  void testTornRecordIsDiscarded() throws IOException {
+    Path file = tempDir.resolve("metadata.idx");
+    PhotoMetadata a = new PhotoMetadata(1_000, 100, 100, 1, "Camera");
+
+    try (MetadataIndex index = MetadataIndex.open(file)) {
+      index.put(HASH_A, a);
+    }
+    long validLength = Files.size(file);
+
+    // Simulate a crash in the middle of appending a record
+    Files.write(file, new byte[] { (byte) 0xBB, (byte) 0xBB, 0, 0 }, StandardOpenOption.APPEND);
+
+    try (MetadataIndex index = MetadataIndex.open(file)) {
+      assertEquals(1, index.size());
+      assertEquals(a, index.lookup(HASH_A));
+    }
+    assertEquals(validLength, Files.size(file));
+  }
+
+  @Test
+  void testCompactDropsDeletedPhotos() throws IOException {
+    Path file = tempDir.resolve("metadata.idx");
+    PhotoMetadata metadata = new PhotoMetadata(1_000, 100, 100, 1, "Camera");
+    String live = String.format("%064x", 1);
+
+    try (MetadataIndex index = MetadataIndex.open(file)) {
+      for (int i = 0; i < 2048; i++) {
+        index.put(String.format("%064x", i), metadata);
+      }
+      long fullLength = Files.size(file);
+
+      index.compact(Set.of(live), index.mark());
+
+      assertEquals(1, index.size());
+      assertEquals(metadata, index.lookup(live));
+      assertTrue(Files.size(file) < fullLength);
+    }
+
+    try (MetadataIndex index = MetadataIndex.open(file)) {
+      assertEquals(1, index.size());
+      assertEquals(metadata, index.lookup(live));
+    }
+  }
+
+  @Test
+  void testCompactKeepsPhotosAddedAfterMark() throws IOException {
+    try (MetadataIndex index = MetadataIndex.open(tempDir.resolve("metadata.idx"))) {
+      PhotoMetadata metadata = new PhotoMetadata(1_000, 100, 100, 1, null);
+      index.put(HASH_A, metadata);
+      long mark = index.mark();
+
+      // Extracted while the library was being processed, after it was listed
+      index.put(HASH_B, metadata);
+      index.compact(Set.of(), mark);
+
+      assertEquals(1, index.size());
+      assertEquals(metadata, index.lookup(HASH_B));
+      assertNull(index.lookup(HASH_A));
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package io.beanthemoonman.photos.utility;
+
+import io.beanthemoonman.photos.config.PhotosConfig;
+import io.beanthemoonman.photos.service.MetadataStore;
+import io.beanthemoonman.photos.service.ThumbnailCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+class ThumbnailHasherTest {
+
+  @TempDir
+  Path tempDir;
+
+  @Mock
+  private ThumbnailCache thumbnailCache;
+
+  @Mock
+  private MetadataStore metadataStore;
+
+  private PhotosConfig config;
+
+  private ThumbnailHasher thumbnailHasher;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    MockitoAnnotations.openMocks(this);
+
+    Path photosDir = Files.createDirectories(tempDir.resolve("photos"));
+    Path cacheDir = Files.createDirectories(tempDir.resolve("cache"));
+    config = new PhotosConfig();
+    config.setDirectory(photosDir.toString());
+    config.getWarmup().setHashConcurrency(1);
+    config.getWarmup().setResizeConcurrency(2);
+    when(thumbnailCache.getCacheDir()).thenReturn(cacheDir);
+    thumbnailHasher = new ThumbnailHasher(config, thumbnailCache, metadataStore, new SimpleMeterRegistry());
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    thumbnailHasher.close();
+  }
+
+  @Test
+  void testWarmupRespectsResizeConcurrency() throws IOException {
+    config.getWarmup().setVirtualThreads(true);
+    for (int i = 0; i < 24; i++) {
+      createPhoto("photo" + i + ".jpg");
+    }
+
+    AtomicInteger resizing = new AtomicInteger();
+    AtomicInteger maxResizing = new AtomicInteger();
+    when(thumbnailCache.ensure(anyString(), any(Path.class), anyBoolean())).thenAnswer(invocation -> {
+      maxResizing.accumulateAndGet(resizing.incrementAndGet(), Math::max);
+      Thread.sleep(10);
+      resizing.decrementAndGet();
+      return true;
+    });
+
+    thumbnailHasher.boot();
+
+    // Virtual threads are unbounded, so only the resize permits keep the pool from resizing every photo at once
+    assertTrue(maxResizing.get() <= 2, "resized " + maxResizing.get() + " photos at once");
+    assertEquals(24, thumbnailHasher.getProgress().getThumbnailed());
+  }
+
+  @Test
+  void testWarmupCountsProgress() throws IOException {
+    createPhoto("new.jpg");
+    createPhoto("other.jpg");
+    createPhoto("cached.jpg");
+    createPhoto("broken.jpg");
+    Files.writeString(tempDir.resolve("photos").resolve("notes.txt"), "not a photo");
+
+    when(thumbnailCache.ensure(anyString(), any(Path.class), anyBoolean())).thenAnswer(invocation -> {
+      String id = invocation.<Path>getArgument(1).getFileName().toString();
+      if (id.equals("broken.jpg")) {
+        throw new IOException("Unreadable photo");
+      }
+      return !id.equals("cached.jpg");
+    });
+
+    thumbnailHasher.boot();
+
+    WarmupProgress progress = thumbnailHasher.getProgress();
+    assertFalse(thumbnailHasher.isWarmingUp());
+    assertTrue(progress.isFinished());
+    assertEquals(4, progress.getTotal());
+    assertEquals(4, progress.getSeen());
+    assertEquals(0, progress.getIndexed());
+    assertEquals(4, progress.getHashed());
+    assertEquals(2, progress.getThumbnailed());
+    assertEquals(1, progress.getFailed());
+    assertEquals(4, progress.getCompleted());
+
+    // A second run starts from fresh counters and finds every hash in memory
+    thumbnailHasher.boot();
+
+    progress = thumbnailHasher.getProgress();
+    assertEquals(4, progress.getCompleted());
+    assertEquals(0, progress.getIndexed());
+    assertEquals(0, progress.getHashed());
+    assertEquals(1, progress.getFailed());
+
+    // After a restart the hashes come from the persistent index without reading the photos
+    thumbnailHasher.close();
+    thumbnailHasher = new ThumbnailHasher(config, thumbnailCache, metadataStore, new SimpleMeterRegistry());
+    thumbnailHasher.boot();
+
+    progress = thumbnailHasher.getProgress();
+    assertEquals(4, progress.getIndexed());
+    assertEquals(0, progress.getHashed());
+  }
+
+  @Test
+  void testWarmupSkipsDerivativesUnderBudget() throws IOException {
+    createPhoto("photo.jpg");
+    List<Boolean> derivatives = new CopyOnWriteArrayList<>();
+    when(thumbnailCache.ensure(anyString(), any(Path.class), anyBoolean())).thenAnswer(invocation -> {
+      derivatives.add(invocation.getArgument(2));
+      return true;
+    });
+
+    thumbnailHasher.boot();
+
+    // Derivatives evicted for the budget are not created again by the next warm-up
+    config.getCache().setMaxSizeMb(100);
+    thumbnailHasher.boot();
+
+    assertEquals(List.of(true, false), derivatives);
+  }
+
+  private void createPhoto(String filename) throws IOException {
+    Files.writeString(tempDir.resolve("photos").resolve(filename), "image data of " + filename);
+  }
+}
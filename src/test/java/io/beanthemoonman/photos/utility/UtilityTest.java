@@ -0,0 +1,46 @@
+package io.beanthemoonman.photos.utility;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class UtilityTest {
+
+  private static final String SHA_256_OF_ABC = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testFileHashMatchesHashOfContent() throws IOException, NoSuchAlgorithmException {
+    // Several reads of the buffer plus a partial one
+    byte[] content = new byte[3 * 64 * 1024 + 123];
+    new Random(42).nextBytes(content);
+    Path photo = Files.write(tempDir.resolve("photo.jpg"), content);
+    Path empty = Files.write(tempDir.resolve("empty.jpg"), new byte[0]);
+
+    assertEquals(Utility.bytesToSha256(Files.readAllBytes(photo)), Utility.fileToSha256(photo));
+    assertEquals(Utility.bytesToSha256(new byte[0]), Utility.fileToSha256(empty));
+    assertEquals(SHA_256_OF_ABC, Utility.bytesToSha256("abc".getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  @Test
+  void testFailedHashDoesNotAffectTheNext() throws IOException, NoSuchAlgorithmException {
+    Path photo = Files.writeString(tempDir.resolve("photo.jpg"), "abc");
+
+    assertThrows(IOException.class, () -> Utility.fileToSha256(tempDir.resolve("missing.jpg")));
+    // A directory opens fine but fails on the first read
+    assertThrows(IOException.class, () -> Utility.fileToSha256(tempDir));
+
+    assertEquals(SHA_256_OF_ABC, Utility.fileToSha256(photo));
+  }
+}